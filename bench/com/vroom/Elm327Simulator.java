@@ -0,0 +1,1160 @@
+package com.vroom;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Elm327Simulator is an in-process ELM327 adapter and vehicle, reached through a pair of streams.
+ * <p>
+ * The streams take the place of the Bluetooth socket streams, so the whole session stack can be run and measured
+ * without a car. The simulator speaks the dialect the session uses: the AT setup commands (ATE, ATS, AT@2, ATH, ATL,
+ * ATAT, ATST, ATSP, ATDP, ATZ, ATI, ATRV), mode 01 requests with up to six PIDs and an optional response count,
+ * mode 09 PIDs 02 (VIN), 04 (calibration id) and 06 (calibration verification number), mode 03, 07 and 0A trouble codes, the repeat-last-command carriage return, SEARCHING... on the first
+ * request after a reset unless the protocol saved with ATSP is the vehicle's, NO DATA for unsupported requests and the '>'
+ * prompt. Settings and the saved protocol survive reconnecting to the same simulator, as they survive on an adapter that
+ * stays powered.
+ * <p>
+ * It also streams bus traffic in monitor mode (ATMA) at a set frame rate, following ATH, ATD, ATCRA, ATCF and ATCM,
+ * until the host sends a character. A host that can not keep up sees BUFFER FULL, as with a real adapter.
+ * <p>
+ * Answers are formatted as a single CAN ECU would send them, including ISO 15765 multi-frame answers, unless
+ * {@link #setCan(boolean)} selects the older single line format. {@link #setSecondEcu(int[])} adds a second ECU that
+ * answers some mode 01 PIDs after the first one, each answer with its own mode byte.
+ * <p>
+ * The timing and fault models are configurable:
+ * <ul>
+ * <li>ECU latency: a base time plus uniform jitter before every OBD answer.</li>
+ * <li>Adapter timeout: after an answer without a response count the adapter waits for more ECUs, following ATST and ATAT.</li>
+ * <li>Link bandwidth: bytes per second towards the host. Zero means unlimited.</li>
+ * <li>Fragmentation: every output burst is cut into chunks of random size up to a maximum.</li>
+ * <li>Errors: a fraction of the answers is replaced by an error line, corrupted, or loses its prompt.</li>
+ * <li>Vehicle: mode 01 PIDs can be removed, which also clears them from the supported PID bitmaps, or made to stop
+ * answering while the bitmaps still claim them.</li>
+ * </ul>
+ * All setters may be called while the simulator runs.
+ *
+ * @version 1
+ *
+ * @see ObdSession
+ * @see StreamLink
+ * @see SessionBench
+ */
+public class Elm327Simulator implements Runnable {
+
+    /**
+     * The version string sent on ATZ and ATI.
+     */
+    public static final String VERSION = "ELM327 v1.5";
+
+    /**
+     * The kinds of injected errors.
+     */
+    public enum Fault {
+	NO_DATA,
+	CAN_ERROR,
+	BUS_ERROR,
+	CORRUPT,
+	LOST_PROMPT;
+    }
+
+    /**
+     * A blocking byte queue between the host and the simulator.
+     */
+    private static final class Pipe {
+	private final byte mBuffer[] = new byte[4096];
+	private int mHead;
+	private int mSize;
+	private boolean mClosed;
+
+	synchronized void write(byte data[], int offset, int length) throws IOException {
+	    for(int i = 0; i < length; i++){
+		while(mSize == mBuffer.length && !mClosed){
+		    try {
+			wait();
+		    }
+		    catch (InterruptedException e){
+			throw new IOException("Interrupted.");
+		    }
+		    //End try/catch
+		}
+		//End while
+		if(mClosed){
+		    throw new IOException("Pipe closed.");
+		}
+		//End if
+		mBuffer[(mHead + mSize) % mBuffer.length] = data[offset + i];
+		mSize++;
+		notifyAll();
+	    }
+	    //End for
+	}
+
+	synchronized int read(byte data[], int offset, int length) throws IOException {
+	    while(mSize == 0 && !mClosed){
+		try {
+		    wait();
+		}
+		catch (InterruptedException e){
+		    throw new IOException("Interrupted.");
+		}
+		//End try/catch
+	    }
+	    //End while
+	    if(mSize == 0){
+		return -1;
+	    }
+	    //End if
+	    int count = Math.min(length, mSize);
+	    for(int i = 0; i < count; i++){
+		data[offset + i] = mBuffer[mHead];
+		mHead = (mHead + 1) % mBuffer.length;
+	    }
+	    //End for
+	    mSize -= count;
+	    notifyAll();
+	    return count;
+	}
+
+	synchronized int available(){
+	    return mSize;
+	}
+
+	synchronized void close(){
+	    mClosed = true;
+	    notifyAll();
+	}
+    }
+    //End Pipe
+
+    //Host to simulator and simulator to host
+    private final Pipe mToAdapter = new Pipe();
+    private final Pipe mToHost = new Pipe();
+
+    private final InputStream mInput = new InputStream() {
+	@Override
+	public int read() throws IOException {
+	    byte one[] = new byte[1];
+	    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte data[], int offset, int length) throws IOException {
+	    return mToHost.read(data, offset, length);
+	}
+
+	@Override
+	public int available(){
+	    return mToHost.available();
+	}
+
+	@Override
+	public void close(){
+	    Elm327Simulator.this.close();
+	}
+    };
+
+    private final OutputStream mOutput = new OutputStream() {
+	@Override
+	public void write(int b) throws IOException {
+	    write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte data[], int offset, int length) throws IOException {
+	    mToAdapter.write(data, offset, length);
+	}
+
+	@Override
+	public void close(){
+	    Elm327Simulator.this.close();
+	}
+    };
+
+    //Models
+    private volatile long mLatencyMillis = 30;
+    private volatile long mJitterMillis = 10;
+    private volatile long mSearchMillis;
+    private volatile int mBytesPerSecond;
+    private volatile int mMaxChunk = Integer.MAX_VALUE;
+    private volatile double mErrorRate;
+    private final Random mRandom;
+
+    //Vehicle
+    private volatile boolean mCan = true;
+    private volatile String mVin = "1HGRH1830XL000000";
+    private volatile String mCalibrationId = "JMB*36761500";
+    private volatile long mCalibrationCvn = 0x17917AB1L;
+    private volatile int mTroubleCodes[] = {0x0133, 0x0420};
+    private volatile int mPendingCodes[] = {};
+
+    //Mode 01 PIDs left out of the vehicle, and PIDs it claims but does not answer. Replaced whole when changed.
+    private volatile boolean mRemoved[] = new boolean[256];
+    private volatile boolean mFailing[] = new boolean[256];
+
+    //Mode 01 PIDs a second ECU answers as well. Empty for a single ECU.
+    private volatile int mSecondPids[] = {};
+    private volatile String mDeviceId = "SIM0001";
+    private volatile int mBusRate = 1000;
+    private final long mStart = System.currentTimeMillis();
+
+    //Adapter settings
+    private boolean mEcho = true;
+    private boolean mSpaces = true;
+    private boolean mHeaders;
+    private boolean mLinefeeds;
+    private int mAdaptive = 1;
+    private int mTimeout = LatencyTuner.DEFAULT_ST;
+    private boolean mSearched;
+    private char mSavedProtocol = '0';
+    private boolean mAutoProtocol = true;
+    private String mLastCommand = "";
+    private boolean mDataLength;
+    private int mReceiveAddress = -1;
+    private int mFilter;
+    private int mFilterMask;
+
+    //Monitored bus traffic: the ids on the bus and their share of the frames
+    private static final int BUS_IDS[] = {0x0C9, 0x0F1, 0x1E5, 0x2F9, 0x3C1, 0x4C9};
+    private static final int BUS_SHARES[] = {8, 4, 4, 2, 1, 1};
+    private static final int BUS_SHARE_TOTAL = 20;
+
+    //Frames the adapter can hold back before it gives up with BUFFER FULL
+    private static final int BUS_BACKLOG = 256;
+
+    //The time the adapter keeps listening after the current answer
+    private long mListen;
+
+    //Metrics
+    private volatile long mCommands;
+    private volatile long mBytesSent;
+    private volatile long mFaults;
+
+    private final StringBuilder mOut = new StringBuilder();
+    private Thread mThread;
+
+    /**
+     * Constructor. Uses a fixed seed so runs can be repeated.
+     */
+    public Elm327Simulator(){
+	this(1);
+    }
+    //End Elm327Simulator
+
+    /**
+     * Constructor.
+     *
+     * @param seed The seed of the random numbers behind jitter, fragmentation and errors.
+     */
+    public Elm327Simulator(long seed){
+	mRandom = new Random(seed);
+    }
+    //End Elm327Simulator
+
+    /**
+     * Returns the stream the host reads the adapter's output from.
+     */
+    public InputStream getInputStream(){
+	return mInput;
+    }
+    //End getInputStream
+
+    /**
+     * Returns the stream the host writes commands to.
+     */
+    public OutputStream getOutputStream(){
+	return mOutput;
+    }
+    //End getOutputStream
+
+    /**
+     * Starts the simulator thread.
+     */
+    public synchronized void start(){
+	if(mThread == null){
+	    mThread = new Thread(this, "Elm327Simulator");
+	    mThread.start();
+	}
+	//End if
+    }
+    //End start
+
+    /**
+     * Stops the simulator. The host's reads return end of stream.
+     */
+    public synchronized void close(){
+	mToAdapter.close();
+	mToHost.close();
+	if(mThread != null){
+	    mThread.interrupt();
+	    mThread = null;
+	}
+	//End if
+    }
+    //End close
+
+    /**
+     * Sets the ECU latency model.
+     *
+     * @param baseMillis The time every answer takes.
+     * @param jitterMillis The largest random time added to it.
+     */
+    public void setLatency(long baseMillis, long jitterMillis){
+	mLatencyMillis = baseMillis;
+	mJitterMillis = jitterMillis;
+    }
+    //End setLatency
+
+    /**
+     * Sets the bandwidth of the link towards the host in bytes per second. Zero means unlimited.
+     */
+    public void setBandwidth(int bytesPerSecond){
+	mBytesPerSecond = bytesPerSecond;
+    }
+    //End setBandwidth
+
+    /**
+     * Sets the largest chunk the output is written in. Chunk sizes are picked at random up to it.
+     */
+    public void setMaxChunk(int bytes){
+	mMaxChunk = Math.max(1, bytes);
+    }
+    //End setMaxChunk
+
+    /**
+     * Sets the fraction of answers replaced by an injected error, from 0 to 1.
+     */
+    public void setErrorRate(double rate){
+	mErrorRate = rate;
+    }
+    //End setErrorRate
+
+    /**
+     * Selects CAN (ISO 15765) answers or the older single line format.
+     */
+    public void setCan(boolean can){
+	mCan = can;
+    }
+    //End setCan
+
+    /**
+     * Sets how long the protocol search on the first request after a reset takes.
+     */
+    public void setSearchTime(long millis){
+	mSearchMillis = millis;
+    }
+    //End setSearchTime
+
+    /**
+     * Sets the VIN answered to 0902.
+     */
+    public void setVin(String vin){
+	mVin = vin;
+    }
+    //End setVin
+
+    /**
+     * Sets the calibration id answered to 0904 and the verification number answered to 0906.
+     */
+    public void setCalibration(String id, long cvn){
+	mCalibrationId = id;
+	mCalibrationCvn = cvn;
+    }
+    //End setCalibration
+
+    /**
+     * Sets the stored trouble codes answered to 03 and 0A, as two byte values such as 0x0133 for P0133.
+     */
+    public void setTroubleCodes(int codes[]){
+	mTroubleCodes = codes.clone();
+    }
+    //End setTroubleCodes
+
+    /**
+     * Sets the pending trouble codes answered to 07.
+     */
+    public void setPendingCodes(int codes[]){
+	mPendingCodes = codes.clone();
+    }
+    //End setPendingCodes
+
+    /**
+     * Removes a mode 01 PID from the simulated vehicle or puts it back. A removed PID is cleared from the supported PID
+     * bitmaps and is not answered.
+     */
+    public void setPidSupported(int pid, boolean supported){
+	boolean removed[] = mRemoved.clone();
+	removed[pid & 0xFF] = !supported;
+	mRemoved = removed;
+    }
+    //End setPidSupported
+
+    /**
+     * Makes a mode 01 PID stop answering while the bitmaps still claim it, as with a sensor failing mid drive.
+     */
+    public void setPidFailing(int pid, boolean failing){
+	boolean failed[] = mFailing.clone();
+	failed[pid & 0xFF] = failing;
+	mFailing = failed;
+    }
+    //End setPidFailing
+
+    /**
+     * Adds a second ECU, such as a transmission controller, that answers the given mode 01 PIDs after the first ECU
+     * and claims them in its own 0100 bitmap. An empty array leaves a single ECU.
+     */
+    public void setSecondEcu(int pids[]){
+	mSecondPids = pids.clone();
+    }
+    //End setSecondEcu
+
+    /**
+     * Sets the number of frames per second seen on the bus in monitor mode, before filtering.
+     */
+    public void setBusRate(int framesPerSecond){
+	mBusRate = framesPerSecond;
+    }
+    //End setBusRate
+
+    /**
+     * Returns the number of commands handled.
+     */
+    public long getCommandCount(){
+	return mCommands;
+    }
+    //End getCommandCount
+
+    /**
+     * Returns the number of bytes sent to the host.
+     */
+    public long getBytesSent(){
+	return mBytesSent;
+    }
+    //End getBytesSent
+
+    /**
+     * Returns the number of errors injected.
+     */
+    public long getFaultCount(){
+	return mFaults;
+    }
+    //End getFaultCount
+
+    /**
+     * The simulator loop. Reads commands up to the carriage return and answers them.
+     */
+    public void run(){
+	StringBuilder command = new StringBuilder();
+	byte in[] = new byte[256];
+	try {
+	    while(true){
+		int count = mToAdapter.read(in, 0, in.length);
+		if(count < 0){
+		    break;
+		}
+		//End if
+		for(int i = 0; i < count; i++){
+		    char c = (char) (in[i] & 0xFF);
+		    if(c == '\r'){
+			handle(command.toString());
+			command.setLength(0);
+		    }
+		    else if(c > ' '){
+			command.append(Character.toUpperCase(c));
+		    }
+		    //End if/else
+		}
+		//End for
+	    }
+	    //End while
+	}
+	catch (IOException e){
+	    //Closed while writing
+	}
+	catch (InterruptedException e){
+	    //Closed while waiting
+	}
+	//End try/catch
+    }
+    //End run
+
+    /**
+     * Handles one command and sends its answer followed by the prompt.
+     */
+    private void handle(String command) throws IOException, InterruptedException {
+	mCommands++;
+	mOut.setLength(0);
+
+	//A bare carriage return repeats the last command
+	if(command.length() == 0){
+	    if(mLastCommand.length() == 0){
+		send(">", 0);
+		return;
+	    }
+	    //End if
+	    command = mLastCommand;
+	}
+	else if(mEcho){
+	    line(command);
+	}
+	//End if/else
+
+	if(command.equals("ATMA")){
+	    mLastCommand = command;
+	    send(mOut.toString(), 0);
+	    monitor();
+	    return;
+	}
+	else if(command.startsWith("AT")){
+	    mLastCommand = command;
+	    at(command.substring(2));
+	    mOut.append('>');
+	    send(mOut.toString(), 0);
+	    return;
+	}
+	//End if
+
+	mLastCommand = command;
+	mListen = 0;
+	long wait = obd(command);
+	if(wait >= 0){
+	    if(mListen > 0){
+		//The answer goes out as it arrives, the prompt only once the adapter stops listening for more
+		send(mOut.toString(), wait);
+		send(">", mListen);
+	    }
+	    else {
+		mOut.append('>');
+		send(mOut.toString(), wait);
+	    }
+	    //End if/else
+	}
+	//End if
+    }
+    //End handle
+
+    /**
+     * Answers an AT command into the output.
+     */
+    private void at(String command){
+	if(command.equals("Z")){
+	    defaults();
+	    mSearched = mSavedProtocol == protocol();
+	    line("");
+	    line(VERSION);
+	}
+	else if(command.equals("I")){
+	    line(VERSION);
+	}
+	else if(command.equals("@1")){
+	    line("OBDII to RS232 Interpreter");
+	}
+	else if(command.equals("@2")){
+	    line(mDeviceId);
+	}
+	else if(command.equals("RV")){
+	    line("12.6V");
+	}
+	else if(command.equals("DP")){
+	    line(mCan ? "AUTO, ISO 15765-4 (CAN 11/500)" : "AUTO, ISO 9141-2");
+	}
+	else if(command.equals("DPN")){
+	    line((mAutoProtocol ? "A" : "") + (mSearched ? protocol() : mSavedProtocol));
+	}
+	else if(command.length() == 2 && "ESHL".indexOf(command.charAt(0)) >= 0 && (command.charAt(1) == '0' || command.charAt(1) == '1')){
+	    boolean on = command.charAt(1) == '1';
+	    switch(command.charAt(0)){
+	    case 'E': mEcho = on; break;
+	    case 'S': mSpaces = on; break;
+	    case 'H': mHeaders = on; break;
+	    default: mLinefeeds = on; break;
+	    }
+	    //End switch
+	    line("OK");
+	}
+	else if(command.startsWith("AT") && command.length() == 3 && command.charAt(2) >= '0' && command.charAt(2) <= '2'){
+	    mAdaptive = command.charAt(2) - '0';
+	    line("OK");
+	}
+	else if(command.startsWith("ST") && command.length() == 4 && isHex(command, 2)){
+	    int st = Integer.parseInt(command.substring(2), 16);
+	    mTimeout = st == 0 ? LatencyTuner.DEFAULT_ST : st;
+	    line("OK");
+	}
+	else if(command.startsWith("SP") && command.length() >= 3){
+	    //SP h fixes the protocol, SP Ah tries it first and searches if it fails. Both are kept over a reset.
+	    mAutoProtocol = command.charAt(2) == 'A' || command.charAt(command.length() - 1) == '0';
+	    mSavedProtocol = command.charAt(command.length() - 1);
+	    mSearched = mSavedProtocol == protocol();
+	    line("OK");
+	}
+	else if(command.equals("D")){
+	    defaults();
+	    line("OK");
+	}
+	else if(command.length() == 2 && command.charAt(0) == 'D' && (command.charAt(1) == '0' || command.charAt(1) == '1')){
+	    mDataLength = command.charAt(1) == '1';
+	    line("OK");
+	}
+	else if(command.equals("CAF0") || command.equals("CAF1")){
+	    line("OK");
+	}
+	else if(command.startsWith("CRA") && isHex(command, 3)){
+	    mReceiveAddress = command.length() > 3 ? Integer.parseInt(command.substring(3), 16) : -1;
+	    mFilter = 0;
+	    mFilterMask = 0;
+	    line("OK");
+	}
+	else if((command.startsWith("CF") || command.startsWith("CM")) && command.length() > 2 && isHex(command, 2)){
+	    int value = Integer.parseInt(command.substring(2), 16);
+	    if(command.charAt(1) == 'F'){
+		mFilter = value;
+	    }
+	    else {
+		mFilterMask = value;
+	    }
+	    //End if/else
+	    mReceiveAddress = -1;
+	    line("OK");
+	}
+	else if(command.equals("WS")){
+	    line("");
+	    line(VERSION);
+	}
+	else {
+	    line("?");
+	}
+	//End if/else
+    }
+    //End at
+
+    /**
+     * Returns the protocol number of the simulated vehicle.
+     */
+    private char protocol(){
+	return mCan ? '6' : '3';
+    }
+    //End protocol
+
+    /**
+     * Puts the settings ATZ and ATD restore back to their defaults.
+     */
+    private void defaults(){
+	mEcho = true;
+	mSpaces = true;
+	mHeaders = false;
+	mLinefeeds = false;
+	mDataLength = false;
+	mAdaptive = 1;
+	mTimeout = LatencyTuner.DEFAULT_ST;
+	mReceiveAddress = -1;
+	mFilter = 0;
+	mFilterMask = 0;
+    }
+    //End defaults
+
+    /**
+     * Streams bus frames until the host sends a character, which is discarded, then sends the prompt.
+     */
+    private void monitor() throws IOException, InterruptedException {
+	long start = System.nanoTime();
+	long sent[] = new long[BUS_IDS.length];
+	while(mToAdapter.available() == 0){
+	    Thread.sleep(1);
+	    long elapsed = System.nanoTime() - start;
+	    int rate = mBusRate;
+	    mOut.setLength(0);
+
+	    //The host fell too far behind while the last burst was going out
+	    long backlog = 0;
+	    for(int i = 0; i < BUS_IDS.length; i++){
+		backlog += (long) (elapsed / 1e9 * rate * BUS_SHARES[i] / BUS_SHARE_TOTAL) - sent[i];
+	    }
+	    //End for
+	    if(backlog > BUS_BACKLOG){
+		line("BUFFER FULL");
+		mOut.append('>');
+		send(mOut.toString(), 0);
+		return;
+	    }
+	    //End if
+
+	    for(int i = 0; i < BUS_IDS.length; i++){
+		long due = (long) (elapsed / 1e9 * rate * BUS_SHARES[i] / BUS_SHARE_TOTAL);
+		while(sent[i] < due){
+		    sent[i]++;
+		    if(accepts(BUS_IDS[i])){
+			frame(BUS_IDS[i], sent[i]);
+		    }
+		    //End if
+		}
+		//End while
+	    }
+	    //End for
+	    if(mOut.length() > 0){
+		send(mOut.toString(), 0);
+	    }
+	    //End if
+	}
+	//End while
+
+	byte stop[] = new byte[1];
+	mToAdapter.read(stop, 0, 1);
+	send(">", 0);
+    }
+    //End monitor
+
+    private boolean accepts(int id){
+	if(mReceiveAddress >= 0){
+	    return id == mReceiveAddress;
+	}
+	//End if
+	return (id & mFilterMask) == (mFilter & mFilterMask);
+    }
+    //End accepts
+
+    /**
+     * Appends a monitored frame line to the output, with a counter as its data.
+     */
+    private void frame(int id, long counter){
+	StringBuilder builder = new StringBuilder();
+	if(mHeaders){
+	    builder.append(hex3(id));
+	}
+	//End if
+	if(mDataLength){
+	    if(mSpaces && builder.length() > 0){
+		builder.append(' ');
+	    }
+	    //End if
+	    builder.append('8');
+	}
+	//End if
+	for(int k = 7; k >= 0; k--){
+	    appendByte(builder, (int) ((counter >> (8 * (k % 4))) & 0xFF));
+	}
+	//End for
+	line(builder.toString());
+    }
+    //End frame
+
+    /**
+     * Answers an OBD command into the output.
+     *
+     * @return The time to wait before sending the output in milliseconds, or -1 if it has been sent already.
+     *   The time to wait before the prompt is left in mListen.
+     */
+    private long obd(String command) throws IOException, InterruptedException {
+	if(command.length() < 2 || !isHex(command, 0)){
+	    line("?");
+	    return 0;
+	}
+	//End if
+
+	//A trailing odd digit is the expected number of responses
+	boolean responseCount = command.length() % 2 == 1;
+	String hex = responseCount ? command.substring(0, command.length() - 1) : command;
+	int bytes[] = new int[hex.length() / 2];
+	for(int i = 0; i < bytes.length; i++){
+	    bytes[i] = Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+	}
+	//End for
+
+	//The first request after a reset searches for the protocol, unless the saved one is right
+	long latency = mLatencyMillis + (mJitterMillis > 0 ? nextLong(mJitterMillis + 1) : 0);
+	if(!mSearched){
+	    if(!mAutoProtocol){
+		line("UNABLE TO CONNECT");
+		return latency;
+	    }
+	    //End if
+	    mSearched = true;
+	    line("SEARCHING...");
+	    latency += mSearchMillis;
+	}
+	//End if
+
+	int answer[] = answer(bytes);
+	long timeout = (long) mTimeout * LatencyTuner.ST_UNIT_MILLIS;
+	if(answer == null){
+	    line("NO DATA");
+	    return timeout;
+	}
+	//End if
+
+	//Inject a fault in place of the answer
+	if(mErrorRate > 0 && nextDouble() < mErrorRate){
+	    mFaults++;
+	    Fault fault = Fault.values()[nextInt(Fault.values().length)];
+	    switch(fault){
+	    case NO_DATA:
+		line("NO DATA");
+		return timeout;
+	    case CAN_ERROR:
+		line("CAN ERROR");
+		return latency;
+	    case BUS_ERROR:
+		line("BUS ERROR");
+		return latency;
+	    case CORRUPT:
+		format(answer, 0);
+		//Lose one character of the answer
+		int at = Math.max(0, mOut.length() - 1 - nextInt(Math.max(1, mOut.length() / 2)));
+		mOut.deleteCharAt(at);
+		return latency;
+	    default:
+		//The answer arrives but the prompt never does
+		format(answer, 0);
+		send(mOut.toString(), latency);
+		return -1;
+	    }
+	    //End switch
+	}
+	//End if
+
+	format(answer, 0);
+	int second[] = secondAnswer(bytes);
+	if(second != null){
+	    format(second, 1);
+	}
+	//End if
+
+	//Without a response count the adapter waits for more ECUs to answer
+	if(!responseCount){
+	    mListen = mAdaptive == 0 ? timeout : Math.min(timeout, Math.max(2 * latency, 20));
+	}
+	//End if
+	return latency;
+    }
+    //End obd
+
+    /**
+     * Builds the data bytes an ECU answers to a request, including the mode byte, or null if nothing answers.
+     */
+    private int[] answer(int request[]){
+	int mode = request[0];
+	if(mode == 0x01 && request.length >= 2 && request.length <= 7){
+	    int out[] = new int[1 + 5 * (request.length - 1)];
+	    int length = 0;
+	    out[length++] = 0x41;
+	    for(int i = 1; i < request.length; i++){
+		int size = PidRegistry.dataLength(request[i]);
+		long value = pidValue(request[i]);
+		if(size == 0 || value < 0){
+		    continue;
+		}
+		//End if
+		out[length++] = request[i];
+		for(int k = size - 1; k >= 0; k--){
+		    out[length++] = (int) ((value >> (8 * k)) & 0xFF);
+		}
+		//End for
+	    }
+	    //End for
+	    return length > 1 ? copy(out, length) : null;
+	}
+	else if(mode == 0x09 && request.length == 2 && (request[1] == 0x02 || request[1] == 0x04)){
+	    //Calibration ids are padded with zeros to 16 characters
+	    String text = request[1] == 0x02 ? mVin : mCalibrationId;
+	    int out[] = new int[3 + (request[1] == 0x02 ? text.length() : 16)];
+	    out[0] = 0x49;
+	    out[1] = request[1];
+	    out[2] = 0x01;
+	    for(int i = 0; i < text.length() && 3 + i < out.length; i++){
+		out[3 + i] = text.charAt(i);
+	    }
+	    //End for
+	    return out;
+	}
+	else if(mode == 0x09 && request.length == 2 && request[1] == 0x06){
+	    long cvn = mCalibrationCvn;
+	    return new int[] {0x49, 0x06, 0x01, (int) (cvn >> 24) & 0xFF, (int) (cvn >> 16) & 0xFF, (int) (cvn >> 8) & 0xFF, (int) cvn & 0xFF};
+	}
+	else if((mode == 0x03 || mode == 0x07 || mode == 0x0A) && request.length == 1){
+	    int codes[] = mode == 0x07 ? mPendingCodes : mTroubleCodes;
+	    int out[] = new int[2 + 2 * codes.length];
+	    out[0] = 0x40 | mode;
+	    out[1] = codes.length;
+	    for(int i = 0; i < codes.length; i++){
+		out[2 + 2 * i] = (codes[i] >> 8) & 0xFF;
+		out[3 + 2 * i] = codes[i] & 0xFF;
+	    }
+	    //End for
+	    return out;
+	}
+	//End if/else
+	return null;
+    }
+    //End answer
+
+    /**
+     * Builds the data bytes the second ECU answers to a request, or null if it does not answer.
+     */
+    private int[] secondAnswer(int request[]){
+	int pids[] = mSecondPids;
+	if(pids.length == 0 || request[0] != 0x01 || request.length < 2 || request.length > 7){
+	    return null;
+	}
+	//End if
+	int out[] = new int[1 + 5 * (request.length - 1)];
+	int length = 0;
+	out[length++] = 0x41;
+	for(int i = 1; i < request.length; i++){
+	    long value = -1;
+	    if(request[i] == 0x00){
+		//Its own bitmap of the PIDs it answers
+		value = 0;
+		for(int k = 0; k < pids.length; k++){
+		    if(pids[k] > 0 && pids[k] <= 0x20){
+			value |= 1L << (0x20 - pids[k]);
+		    }
+		    //End if
+		}
+		//End for
+	    }
+	    else {
+		for(int k = 0; k < pids.length; k++){
+		    if(pids[k] == request[i]){
+			value = pidValue(request[i]);
+		    }
+		    //End if
+		}
+		//End for
+	    }
+	    //End if/else
+	    int size = PidRegistry.dataLength(request[i]);
+	    if(size == 0 || value < 0){
+		continue;
+	    }
+	    //End if
+	    out[length++] = request[i];
+	    for(int k = size - 1; k >= 0; k--){
+		out[length++] = (int) ((value >> (8 * k)) & 0xFF);
+	    }
+	    //End for
+	}
+	//End for
+	return length > 1 ? copy(out, length) : null;
+    }
+    //End secondAnswer
+
+    /**
+     * Returns the current raw value of a mode 01 PID, or -1 if it is not answered. Removed PIDs are cleared from the
+     * supported PID bitmaps.
+     */
+    private long pidValue(int pid){
+	boolean removed[] = mRemoved;
+	if(removed[pid] || mFailing[pid]){
+	    return -1;
+	}
+	//End if
+	long value = vehicleValue(pid);
+	if(pid % 0x20 == 0 && value >= 0){
+	    for(int i = 1; i <= 0x20 && pid + i < removed.length; i++){
+		if(removed[pid + i]){
+		    value &= ~(1L << (0x20 - i));
+		}
+		//End if
+	    }
+	    //End for
+	}
+	//End if
+	return value;
+    }
+    //End pidValue
+
+    /**
+     * Returns the current raw value of a mode 01 PID of the whole simulated vehicle, or -1 if it does not have it.
+     */
+    private long vehicleValue(int pid){
+	double t = (System.currentTimeMillis() - mStart) / 1000.0;
+	switch(pid){
+	//Supported PID bitmaps, matching the cases below
+	case 0x00: return 0x183B8003L;
+	case 0x20: return 0x00000001L;
+	case 0x40: return 0x40000000L;
+	case 0x04: return (long) (80 + 60 * Math.sin(t / 3));
+	case 0x05: return 40 + Math.min(90, 20 + (long) t);
+	case 0x0B: return 35;
+	case 0x0C: return (long) ((1800 + 1200 * Math.sin(t)) * 4);
+	case 0x0D: return (long) (60 + 40 * Math.sin(t / 10));
+	case 0x0F: return 40 + 25;
+	case 0x10: return (long) ((8 + 5 * Math.sin(t)) * 100);
+	case 0x11: return (long) (60 + 50 * Math.sin(t / 2));
+	case 0x1F: return (long) t;
+	case 0x42: return 12600;
+	default: return -1;
+	}
+	//End switch
+    }
+    //End vehicleValue
+
+    /**
+     * Formats answer bytes into the output as a single line or as ISO 15765 frames.
+     *
+     * @param ecu 0 for the first ECU, 1 for the second, which only changes the header.
+     */
+    private void format(int data[], int ecu){
+	if(mCan && data.length > 7){
+	    //First the byte count, then numbered lines of up to seven bytes, the first holding six
+	    line(hex3(data.length));
+	    int frame = 0;
+	    int i = 0;
+	    while(i < data.length){
+		int size = frame == 0 ? 6 : 7;
+		StringBuilder builder = new StringBuilder();
+		builder.append(Integer.toHexString(frame & 0xF).toUpperCase()).append(':');
+		for(int k = 0; k < size && i < data.length; k++, i++){
+		    appendByte(builder, data[i]);
+		}
+		//End for
+		line(builder.toString());
+		frame++;
+	    }
+	    //End while
+	}
+	else if(!mCan && (data[0] == 0x43 || data[0] == 0x47 || data[0] == 0x4A)){
+	    //Older protocols answer three codes per line, padded with zeros
+	    int count = data[1];
+	    int i = 0;
+	    do {
+		StringBuilder builder = new StringBuilder();
+		appendByte(builder, data[0]);
+		for(int k = 0; k < 3; k++, i++){
+		    int code = i < count ? (data[2 + 2 * i] << 8) | data[3 + 2 * i] : 0;
+		    appendByte(builder, code >> 8);
+		    appendByte(builder, code & 0xFF);
+		}
+		//End for
+		line(builder.toString());
+	    } while(i < count);
+	}
+	else if(!mCan && data[0] == 0x49){
+	    //Older protocols answer four data bytes per numbered line, padded with zeros in front
+	    int count = data.length - 3;
+	    int lines = (count + 3) / 4;
+	    int padding = lines * 4 - count;
+	    for(int n = 0; n < lines; n++){
+		StringBuilder builder = new StringBuilder();
+		appendByte(builder, data[0]);
+		appendByte(builder, data[1]);
+		appendByte(builder, n + 1);
+		for(int k = 0; k < 4; k++){
+		    int i = n * 4 + k - padding;
+		    appendByte(builder, i >= 0 ? data[3 + i] : 0);
+		}
+		//End for
+		line(builder.toString());
+	    }
+	    //End for
+	}
+	else {
+	    StringBuilder builder = new StringBuilder();
+	    if(mHeaders){
+		builder.append(mCan ? (ecu == 0 ? "7E8" : "7E9") : (ecu == 0 ? "486B10" : "486B18"));
+		if(mSpaces){
+		    builder.append(' ');
+		}
+		//End if
+	    }
+	    //End if
+	    for(int i = 0; i < data.length; i++){
+		appendByte(builder, data[i]);
+	    }
+	    //End for
+	    line(builder.toString());
+	}
+	//End if/else
+    }
+    //End format
+
+    private void appendByte(StringBuilder builder, int value){
+	if(mSpaces && builder.length() > 0 && builder.charAt(builder.length() - 1) != ':'){
+	    builder.append(' ');
+	}
+	//End if
+	builder.append(Character.toUpperCase(Character.forDigit((value >> 4) & 0xF, 16)));
+	builder.append(Character.toUpperCase(Character.forDigit(value & 0xF, 16)));
+    }
+    //End appendByte
+
+    /**
+     * Appends a line to the output.
+     */
+    private void line(String text){
+	mOut.append(text).append('\r');
+	if(mLinefeeds){
+	    mOut.append('\n');
+	}
+	//End if
+    }
+    //End line
+
+    /**
+     * Sends text to the host after a delay, cut into chunks and paced to the link bandwidth.
+     */
+    private void send(String text, long delayMillis) throws IOException, InterruptedException {
+	if(delayMillis > 0){
+	    Thread.sleep(delayMillis);
+	}
+	//End if
+	byte data[] = text.getBytes();
+	int offset = 0;
+	while(offset < data.length){
+	    int size = data.length - offset;
+	    if(mMaxChunk < size){
+		size = 1 + nextInt(mMaxChunk);
+	    }
+	    //End if
+	    int bandwidth = mBytesPerSecond;
+	    if(bandwidth > 0){
+		long nanos = size * 1000000000L / bandwidth;
+		Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+	    }
+	    //End if
+	    mToHost.write(data, offset, size);
+	    mBytesSent += size;
+	    offset += size;
+	}
+	//End while
+    }
+    //End send
+
+    private synchronized int nextInt(int bound){
+	return mRandom.nextInt(bound);
+    }
+
+    private synchronized long nextLong(long bound){
+	return (long) (mRandom.nextDouble() * bound);
+    }
+
+    private synchronized double nextDouble(){
+	return mRandom.nextDouble();
+    }
+
+    private static int[] copy(int data[], int length){
+	int out[] = new int[length];
+	System.arraycopy(data, 0, out, 0, length);
+	return out;
+    }
+
+    private static String hex3(int value){
+	String hex = Integer.toHexString(value).toUpperCase();
+	while(hex.length() < 3){
+	    hex = "0" + hex;
+	}
+	//End while
+	return hex;
+    }
+
+    private static boolean isHex(String text, int start){
+	for(int i = start; i < text.length(); i++){
+	    if(Character.digit(text.charAt(i), 16) < 0){
+		return false;
+	    }
+	}
+	return true;
+    }
+}
+//End Elm327Simulator
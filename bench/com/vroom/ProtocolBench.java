@@ -0,0 +1,408 @@
+package com.vroom;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ProtocolBench times the protocol and persistence hot paths under a plain JVM.
+ * <p>
+ * Every case is run against the code path it replaced, so a change to one of these paths can be judged by its
+ * throughput and by the bytes it allocates per operation. Each case is warmed up, then run for a fixed time on a
+ * single thread; allocation is read from the thread's allocation counter where the JVM provides one.
+ * <p>
+ * The bench lives outside src so it is never packaged with the application. Build and run it with:
+ * <pre>
+ * javac -d bin/bench src/com/vroom/ElmFrameAssembler.java src/com/vroom/PidBatcher.java src/com/vroom/PidRegistry.java bench/com/vroom/ProtocolBench.java
+ * java -cp bin/bench[:sqlite-jdbc.jar] com.vroom.ProtocolBench [name filter] [seconds per case]
+ * </pre>
+ * The insert cases stand in for the Android database with SQLite over JDBC and are skipped when no driver is on the
+ * class path.
+ *
+ * @version 1
+ *
+ * @see ElmFrameAssembler
+ * @see PidBatcher
+ */
+public class ProtocolBench {
+
+    private static final long WARMUP_MILLIS = 1000;
+    private static final long DEFAULT_MILLIS = 2000;
+
+    //Operations run between clock checks
+    private static final int ROUND = 256;
+
+    //Rows per transaction in the batched insert case, as SampleWriter commits them
+    private static final int BATCH_ROWS = 64;
+
+    //The commands and answers of a typical poll cycle, in the chunks the Bluetooth stack hands them over in
+    private static final String OBD_COMMANDS[] = {"010C", "0105"};
+    private static final int POLL_PIDS[] = {0x0C, 0x05};
+    private static final String CHUNKS[] = {"41 0C 1A", " F8 \r", "41 05 7B \r\r", ">"};
+    private static final String LEGACY_LINES[] = {"410C1AF8", "41057B"};
+    private static final String BATCH_LINES[] = {"41 0C 1A F8 05 7B"};
+
+    //Keeps results alive so the JIT cannot drop the work
+    private static volatile long sSink;
+
+    /**
+     * One timed code path.
+     */
+    private static abstract class Case {
+	final String name;
+
+	Case(String name){
+	    this.name = name;
+	}
+
+	/**
+	 * Prepares the case. Called once before it is timed.
+	 */
+	void setUp() throws Exception {
+	}
+
+	/**
+	 * Runs the operation count times and returns a value depending on the work done.
+	 */
+	abstract long run(int count) throws Exception;
+
+	/**
+	 * Releases what setUp acquired.
+	 */
+	void tearDown() throws Exception {
+	}
+    }
+    //End Case
+
+    public static void main(String args[]) throws Exception {
+	String filter = args.length > 0 ? args[0] : "";
+	long millis = args.length > 1 ? Long.parseLong(args[1]) * 1000 : DEFAULT_MILLIS;
+
+	List<Case> cases = new ArrayList<Case>();
+	addFrameCases(cases);
+	addDecodeCases(cases);
+	addEncodeCases(cases);
+	addInsertCases(cases);
+
+	System.out.println(String.format("%-18s %14s %12s %12s %12s", "case", "ops/s", "ns/op", "B/op", "MB/s alloc"));
+	for(Case c : cases){
+	    if(c.name.indexOf(filter) >= 0){
+		measure(c, millis);
+	    }
+	    //End if
+	}
+	//End for
+    }
+    //End main
+
+    /**
+     * Warms a case up, times it and prints its line of the report.
+     */
+    private static void measure(Case c, long millis) throws Exception {
+	c.setUp();
+	try {
+	    long sink = 0;
+	    long deadline = System.currentTimeMillis() + WARMUP_MILLIS;
+	    while(System.currentTimeMillis() < deadline){
+		sink += c.run(ROUND);
+	    }
+	    //End while
+
+	    long ops = 0;
+	    long bytes = allocatedBytes();
+	    long start = System.nanoTime();
+	    deadline = System.currentTimeMillis() + millis;
+	    while(System.currentTimeMillis() < deadline){
+		sink += c.run(ROUND);
+		ops += ROUND;
+	    }
+	    //End while
+	    long nanos = System.nanoTime() - start;
+	    bytes = bytes < 0 ? -1 : allocatedBytes() - bytes;
+	    sSink += sink;
+
+	    double seconds = nanos / 1e9;
+	    System.out.println(String.format("%-18s %14.0f %12.1f %12s %12s", c.name, ops / seconds, (double) nanos / ops,
+		    bytes < 0 ? "n/a" : String.format("%.1f", (double) bytes / ops),
+		    bytes < 0 ? "n/a" : String.format("%.1f", bytes / seconds / (1 << 20))));
+	}
+	finally {
+	    c.tearDown();
+	}
+	//End try/finally
+    }
+    //End measure
+
+    /**
+     * Returns the bytes allocated by the current thread so far, or -1 if the JVM does not count them.
+     */
+    private static long allocatedBytes(){
+	try {
+	    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+	    if(bean instanceof com.sun.management.ThreadMXBean){
+		return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	    }
+	    //End if
+	}
+	catch (Throwable t){
+	    //Not a HotSpot based JVM
+	}
+	//End try/catch
+	return -1;
+    }
+    //End allocatedBytes
+
+    /**
+     * Response frame assembly: one poll cycle worth of chunks per operation.
+     */
+    private static void addFrameCases(List<Case> cases){
+	final byte chunks[][] = new byte[CHUNKS.length][];
+	for(int i = 0; i < CHUNKS.length; i++){
+	    chunks[i] = CHUNKS[i].getBytes();
+	}
+	//End for
+
+	//The original handler: build a String per chunk, concatenate, then split on the prompt
+	cases.add(new Case("frame.concat") {
+	    long run(int count){
+		long lines = 0;
+		String outPutString = "";
+		for(int n = 0; n < count; n++){
+		    for(int c = 0; c < chunks.length; c++){
+			String readMessage = new String(chunks[c], 0, chunks[c].length);
+			outPutString = outPutString + readMessage;
+			if(readMessage.endsWith(">\r") || readMessage.endsWith("\r>") || readMessage.equals(">")){
+			    String readMessages[] = outPutString.split("\\r");
+			    for(int i = 0; i < readMessages.length; i++){
+				if(readMessages[i].trim().length() > 0){
+				    lines++;
+				}
+				//End if
+			    }
+			    //End for
+			    outPutString = "";
+			}
+			//End if
+		    }
+		    //End for
+		}
+		//End for
+		return lines;
+	    }
+	});
+
+	cases.add(new Case("frame.assembler") {
+	    final ElmFrameAssembler assembler = new ElmFrameAssembler();
+	    long lines;
+	    final ElmFrameAssembler.Listener listener = new ElmFrameAssembler.Listener() {
+		public void onLine(ElmFrameAssembler.Line line){
+		    lines += line.length();
+		}
+
+		public void onPrompt(){
+		    lines++;
+		}
+	    };
+
+	    long run(int count){
+		for(int n = 0; n < count; n++){
+		    for(int c = 0; c < chunks.length; c++){
+			assembler.feed(chunks[c], 0, chunks[c].length, listener);
+		    }
+		    //End for
+		}
+		//End for
+		return lines;
+	    }
+	});
+    }
+    //End addFrameCases
+
+    /**
+     * Hex decoding of the answers to one poll cycle per operation.
+     */
+    private static void addDecodeCases(List<Case> cases){
+	//The original handleResponse: one request per PID, decoded with substring and parseInt
+	cases.add(new Case("decode.substring") {
+	    long run(int count){
+		long total = 0;
+		for(int n = 0; n < count; n++){
+		    for(int l = 0; l < LEGACY_LINES.length; l++){
+			String stringedResponse = LEGACY_LINES[l].trim();
+			if(stringedResponse.startsWith("4")){
+			    String resultCode = "0" + new String(stringedResponse.substring(1, 4));
+			    String resultData = stringedResponse.substring(4);
+			    if(resultCode.equals(OBD_COMMANDS[0])){
+				total += Integer.parseInt(resultData, 16) / 4;
+			    }
+			    else if(resultCode.equals(OBD_COMMANDS[1])){
+				total += Integer.parseInt(resultData, 16) - 40;
+			    }
+			    //End if/else
+			}
+			//End if
+		    }
+		    //End for
+		}
+		//End for
+		return total;
+	    }
+	});
+
+	cases.add(new Case("decode.batcher") {
+	    final PidBatcher batcher = new PidBatcher();
+	    long total;
+	    final PidBatcher.Listener listener = new PidBatcher.Listener() {
+		public void onPidValue(int pid, byte[] data, int offset, int length){
+		    total += pid == 0x0C ? (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF)) / 4 : (data[offset] & 0xFF) - 40;
+		}
+	    };
+
+	    long run(int count){
+		for(int n = 0; n < count; n++){
+		    batcher.request(POLL_PIDS, POLL_PIDS.length, false);
+		    for(int l = 0; l < BATCH_LINES.length; l++){
+			batcher.onLine(BATCH_LINES[l]);
+		    }
+		    //End for
+		    batcher.onPrompt(listener);
+		}
+		//End for
+		return total;
+	    }
+	});
+    }
+    //End addDecodeCases
+
+    /**
+     * Command encoding: the bytes written for one poll cycle per operation.
+     */
+    private static void addEncodeCases(List<Case> cases){
+	//The original sendOBDCommand: one request per PID
+	cases.add(new Case("encode.concat") {
+	    long run(int count){
+		long bytes = 0;
+		for(int n = 0; n < count; n++){
+		    for(int i = 0; i < OBD_COMMANDS.length; i++){
+			bytes += (OBD_COMMANDS[i] + (char) 0x000D).getBytes().length;
+		    }
+		    //End for
+		}
+		//End for
+		return bytes;
+	    }
+	});
+
+	cases.add(new Case("encode.batcher") {
+	    final PidBatcher batcher = new PidBatcher();
+
+	    long run(int count){
+		long bytes = 0;
+		for(int n = 0; n < count; n++){
+		    bytes += batcher.request(POLL_PIDS, POLL_PIDS.length, true).getBytes().length;
+		}
+		//End for
+		return bytes;
+	    }
+	});
+    }
+    //End addEncodeCases
+
+    /**
+     * History inserts through SQLite over JDBC: one sample row per operation.
+     */
+    private static void addInsertCases(List<Case> cases){
+	try {
+	    Class.forName("org.sqlite.JDBC");
+	}
+	catch (ClassNotFoundException e){
+	    System.out.println("insert cases skipped: no SQLite JDBC driver on the class path");
+	    return;
+	}
+	//End try/catch
+
+	//One transaction per row, as the original updateRPM and updateTEMP wrote them
+	cases.add(new InsertCase("insert.row", 1));
+
+	//One transaction per batch, as SampleWriter writes them
+	cases.add(new InsertCase("insert.batch", BATCH_ROWS));
+    }
+    //End addInsertCases
+
+    /**
+     * Inserts sample rows into a scratch database file, committing every rowsPerCommit rows.
+     */
+    private static class InsertCase extends Case {
+	private final int mRowsPerCommit;
+	private File mFile;
+	private Connection mConnection;
+	private PreparedStatement mInsert;
+	private long mTime;
+
+	InsertCase(String name, int rowsPerCommit){
+	    super(name);
+	    mRowsPerCommit = rowsPerCommit;
+	}
+
+	@Override
+	void setUp() throws Exception {
+	    mFile = File.createTempFile("bench", ".db");
+	    mConnection = DriverManager.getConnection("jdbc:sqlite:" + mFile.getPath());
+	    Statement statement = mConnection.createStatement();
+	    statement.execute("CREATE TABLE samples (_id INTEGER PRIMARY KEY, vehicle INTEGER NOT NULL, signal INTEGER NOT NULL, "
+		    + "value REAL NOT NULL, time INTEGER NOT NULL)");
+	    statement.execute("CREATE INDEX samples_vehicle_signal_time ON samples (vehicle, signal, time)");
+	    statement.close();
+	    mConnection.setAutoCommit(false);
+	    mInsert = mConnection.prepareStatement("INSERT INTO samples (vehicle, signal, value, time) VALUES (?, ?, ?, ?)");
+	}
+
+	long run(int count) throws SQLException {
+	    for(int n = 0; n < count; n++){
+		mTime++;
+		mInsert.setLong(1, 1);
+		mInsert.setInt(2, (int) (mTime & 1) == 0 ? 0x0C : 0x05);
+		mInsert.setFloat(3, mTime % 8000);
+		mInsert.setLong(4, mTime);
+		if(mRowsPerCommit > 1){
+		    mInsert.addBatch();
+		}
+		else {
+		    mInsert.executeUpdate();
+		}
+		//End if/else
+
+		if(mTime % mRowsPerCommit == 0){
+		    if(mRowsPerCommit > 1){
+			mInsert.executeBatch();
+		    }
+		    //End if
+		    mConnection.commit();
+		}
+		//End if
+	    }
+	    //End for
+	    return mTime;
+	}
+
+	@Override
+	void tearDown() throws Exception {
+	    if(mConnection != null){
+		mConnection.close();
+	    }
+	    //End if
+	    if(mFile != null){
+		mFile.delete();
+	    }
+	    //End if
+	}
+    }
+    //End InsertCase
+}
+//End ProtocolBench
@@ -0,0 +1,448 @@
+package com.vroom;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SessionBench runs the whole session stack against the Elm327Simulator under a plain JVM and prints what a driver
+ * would notice: the time to the first value, the values per second and the messages of the session.
+ * <p>
+ * Each scenario replays one part of a drive:
+ * <ul>
+ * <li>setup: a cold connect with a 3 s protocol search, a reconnect to an adapter that is still set up, a power
+ * cycle and another vehicle on the same adapter.</li>
+ * <li>pids: a vehicle without PID 05, and RPM that stops answering for 12 s mid drive.</li>
+ * <li>profiles: every link profile, cold, on reconnect and after switching to another profile.</li>
+ * <li>capture: polling against fast captures of RPM and speed, of RPM alone, of a PID that stops answering and into
+ * a buffer that fills.</li>
+ * <li>ecus: a second ECU answering along with the engine, polled and then captured with four PIDs, so both ECUs
+ * send multi-frame answers. Every value should land on a requested PID, from both ECUs.</li>
+ * </ul>
+ * The recorder plays the part of Monitor and the vehicle cache, so what one connect reports is handed to the next.
+ * <p>
+ * The bench lives outside src so it is never packaged with the application. Build and run it with:
+ * <pre>
+ * javac -d bin/bench -sourcepath src bench/com/vroom/SessionBench.java bench/com/vroom/Elm327Simulator.java bench/com/vroom/StreamLink.java
+ * java -cp bin/bench com.vroom.SessionBench [scenario] [link bytes per second] [legacy]
+ * </pre>
+ * The link defaults to 1000 bytes per second, about what an ELM327 clone passes over Bluetooth. 0 means unlimited.
+ * legacy selects the single line answers of the older protocols instead of CAN.
+ *
+ * @version 1
+ *
+ * @see Elm327Simulator
+ * @see StreamLink
+ * @see ObdSession
+ */
+public class SessionBench {
+
+    private static final int DEFAULT_BANDWIDTH = 1000;
+
+    //The longest wait for the first value of a connect
+    private static final long FIRST_SAMPLE_TIMEOUT = 20000;
+
+    private static int sBandwidth = DEFAULT_BANDWIDTH;
+    private static boolean sCan = true;
+
+    public static void main(String args[]) throws Exception {
+	String filter = args.length > 0 ? args[0] : "";
+	if(args.length > 1){
+	    sBandwidth = Integer.parseInt(args[1]);
+	}
+	//End if
+	sCan = !(args.length > 2 && args[2].equals("legacy"));
+
+	if("setup".indexOf(filter) >= 0){
+	    runSetup();
+	}
+	//End if
+	if("pids".indexOf(filter) >= 0){
+	    runPids();
+	}
+	//End if
+	if("profiles".indexOf(filter) >= 0){
+	    runProfiles();
+	}
+	//End if
+	if("capture".indexOf(filter) >= 0){
+	    runCapture();
+	}
+	//End if
+	if("ecus".indexOf(filter) >= 0){
+	    runEcus();
+	}
+	//End if
+    }
+    //End main
+
+    /**
+     * Connects cold, reconnects to the set up adapter, reconnects after a power cycle and then to another vehicle.
+     */
+    private static void runSetup() throws Exception {
+	System.out.println("== setup");
+	Elm327Simulator sim = newSimulator(3, 30, 5);
+	sim.setBandwidth(0);
+	sim.setSearchTime(3000);
+	StreamLink link = new StreamLink(sim.getInputStream(), sim.getOutputStream());
+	Recorder recorder = new Recorder("The adapter", "Adapter kept", "Protocol", "Vehicle");
+
+	System.out.println("cold, unknown protocol");
+	drive(link, recorder, null, 300);
+
+	System.out.println("reconnect, adapter kept set up");
+	drive(link, recorder, null, 300);
+
+	System.out.println("adapter power cycled, same vehicle");
+	powerCycle(link);
+	drive(link, recorder, null, 300);
+
+	System.out.println("other vehicle, same protocol");
+	sim.setVin("WVWZZZ1JZXW000001");
+	recorder.mSupported.put(0, 0xFFFFFFFFL);
+	powerCycle(link);
+	drive(link, recorder, null, 300);
+
+	link.close();
+	sim.close();
+    }
+    //End runSetup
+
+    /**
+     * Drives a vehicle without PID 05 whose RPM stops answering for a while, then reconnects to it.
+     */
+    private static void runPids() throws Exception {
+	System.out.println("== pids");
+	Elm327Simulator sim = newSimulator(3, 30, 5);
+	sim.setBandwidth(0);
+	sim.setSearchTime(500);
+	sim.setPidSupported(ObdSession.PID_TEMPERATURE, false);
+	StreamLink link = new StreamLink(sim.getInputStream(), sim.getOutputStream());
+	Recorder recorder = new Recorder("Unsupported", "Paused", "Resumed", "Poll");
+
+	System.out.println("cold, vehicle without 0105");
+	ObdSession session = connect(link, recorder, null);
+	awaitFirstSample(recorder);
+	Thread.sleep(11000);
+	System.out.println("RPM values before the failure " + recorder.getCount(ObdSession.PID_RPM));
+
+	sim.setPidFailing(ObdSession.PID_RPM, true);
+	recorder.reset();
+	Thread.sleep(12000);
+	System.out.println("RPM values while failing " + recorder.getCount(ObdSession.PID_RPM));
+
+	sim.setPidFailing(ObdSession.PID_RPM, false);
+	recorder.reset();
+	Thread.sleep(12000);
+	System.out.println("RPM values after it answers again " + recorder.getCount(ObdSession.PID_RPM));
+	disconnect(session);
+
+	System.out.println("reconnect");
+	drive(link, recorder, null, 300);
+
+	link.close();
+	sim.close();
+    }
+    //End runPids
+
+    /**
+     * Polls with every link profile on a fresh simulator, then reports the measurements of each.
+     */
+    private static void runProfiles() throws Exception {
+	System.out.println("== profiles");
+	LinkProfile profiles[] = {LinkProfile.VERBOSE, LinkProfile.STANDARD, LinkProfile.LEAN};
+	for(int i = 0; i < profiles.length; i++){
+	    LinkProfile profile = profiles[i];
+	    LinkProfile other = profile == LinkProfile.LEAN ? LinkProfile.VERBOSE : LinkProfile.LEAN;
+	    Elm327Simulator sim = newSimulator(5, 20, 2);
+	    StreamLink link = new StreamLink(sim.getInputStream(), sim.getOutputStream());
+	    Recorder recorder = new Recorder("Link", "The adapter", "Adapter kept", "Setting the", "Unknown");
+
+	    System.out.println(profile.getName() + " cold");
+	    System.out.println("  values " + drive(link, recorder, profile, 10500));
+	    System.out.println(profile.getName() + " reconnect");
+	    System.out.println("  values " + drive(link, recorder, profile, 1500));
+	    System.out.println("switch to " + other.getName());
+	    System.out.println("  values " + drive(link, recorder, other, 1500));
+
+	    link.close();
+	    sim.close();
+	}
+	//End for
+	System.out.println(LinkProfile.report());
+    }
+    //End runProfiles
+
+    /**
+     * Compares polling with fast captures of two PIDs and of one, then lets a capture end on a failing PID and on a
+     * full buffer.
+     */
+    private static void runCapture() throws Exception {
+	System.out.println("== capture");
+	Elm327Simulator sim = newSimulator(5, 20, 2);
+	StreamLink link = new StreamLink(sim.getInputStream(), sim.getOutputStream());
+	Recorder recorder = new Recorder("Captur", "The vehicle");
+	ObdSession session = connect(link, recorder, null);
+	awaitFirstSample(recorder);
+	Thread.sleep(6000);
+	System.out.println("polling RPM per second " + countFor(recorder, ObdSession.PID_RPM, 4000));
+
+	CaptureBuffer both = new CaptureBuffer(CaptureBuffer.DEFAULT_CAPACITY);
+	session.startCapture(new int[] {ObdSession.PID_RPM, ObdSession.PID_SPEED}, both);
+	Thread.sleep(4000);
+	System.out.println("capture of RPM and speed: RPM " + round(both.getRate(ObdSession.PID_RPM)) + " Hz, speed "
+		+ round(both.getRate(ObdSession.PID_SPEED)) + " Hz");
+
+	CaptureBuffer one = new CaptureBuffer(CaptureBuffer.DEFAULT_CAPACITY);
+	session.startCapture(new int[] {ObdSession.PID_RPM}, one);
+	Thread.sleep(4000);
+	System.out.println("capture of RPM: " + round(one.getRate(ObdSession.PID_RPM)) + " Hz");
+
+	sim.setPidFailing(ObdSession.PID_RPM, true);
+	Thread.sleep(2000);
+	System.out.println("capturing after RPM stopped answering " + session.isCapturing());
+	sim.setPidFailing(ObdSession.PID_RPM, false);
+	Thread.sleep(6000);
+	System.out.println("polling RPM per second again " + countFor(recorder, ObdSession.PID_RPM, 4000));
+
+	CaptureBuffer small = new CaptureBuffer(50);
+	session.startCapture(new int[] {ObdSession.PID_RPM}, small);
+	Thread.sleep(3000);
+	System.out.println("small buffer " + small.size() + " values, capturing " + session.isCapturing());
+
+	disconnect(session);
+	link.close();
+	sim.close();
+    }
+    //End runCapture
+
+    /**
+     * Polls and captures a vehicle with a second ECU that answers four PIDs, then prints the values per PID.
+     */
+    private static void runEcus() throws Exception {
+	System.out.println("== ecus");
+	int pids[] = {ObdSession.PID_RPM, ObdSession.PID_SPEED, ObdSession.PID_TEMPERATURE, 0x11};
+	Elm327Simulator sim = newSimulator(5, 20, 2);
+	sim.setSecondEcu(pids);
+	StreamLink link = new StreamLink(sim.getInputStream(), sim.getOutputStream());
+	Recorder recorder = new Recorder("Captur", "The vehicle");
+	ObdSession session = connect(link, recorder, null);
+	awaitFirstSample(recorder);
+	Thread.sleep(4000);
+	System.out.println("polling: " + recorder.report());
+
+	CaptureBuffer buffer = new CaptureBuffer(CaptureBuffer.DEFAULT_CAPACITY);
+	recorder.reset();
+	session.startCapture(pids, buffer);
+	Thread.sleep(3000);
+	session.stopCapture();
+	System.out.println("capture of four PIDs: " + recorder.report());
+
+	disconnect(session);
+	link.close();
+	sim.close();
+    }
+    //End runEcus
+
+    /**
+     * Returns a started simulator with the given seed and ECU latency, on the link speed of the bench.
+     */
+    private static Elm327Simulator newSimulator(long seed, long latencyMillis, long jitterMillis){
+	Elm327Simulator sim = new Elm327Simulator(seed);
+	sim.setLatency(latencyMillis, jitterMillis);
+	sim.setBandwidth(sBandwidth);
+	sim.setCan(sCan);
+	sim.start();
+	return sim;
+    }
+    //End newSimulator
+
+    /**
+     * Connects, prints the time to the first value, polls for the given time and disconnects.
+     *
+     * @return The number of values received.
+     */
+    private static long drive(StreamLink link, Recorder recorder, LinkProfile profile, long millis) throws Exception {
+	ObdSession session = connect(link, recorder, profile);
+	awaitFirstSample(recorder);
+	Thread.sleep(millis);
+	disconnect(session);
+	return recorder.getCount(-1);
+    }
+    //End drive
+
+    /**
+     * Starts a session over the link with what the recorder kept from earlier connects, as Monitor does.
+     */
+    private static ObdSession connect(StreamLink link, Recorder recorder, LinkProfile profile){
+	recorder.reset();
+	ObdSession session = new ObdSession(link, recorder);
+	if(profile != null){
+	    session.setLinkProfile(profile);
+	}
+	//End if
+	session.setProtocol(recorder.mProtocol);
+	for(Map.Entry<Integer, String> info : recorder.mInfo.entrySet()){
+	    session.setVehicleInfo(info.getKey(), info.getValue());
+	}
+	//End for
+	for(Map.Entry<Integer, Long> supported : recorder.mSupported.entrySet()){
+	    session.setSupported(supported.getKey(), supported.getValue());
+	}
+	//End for
+	link.start(session);
+	session.start();
+	return session;
+    }
+    //End connect
+
+    /**
+     * Stops the session and gives the simulator time to finish what was asked of it.
+     */
+    private static void disconnect(ObdSession session) throws InterruptedException {
+	session.stop();
+	Thread.sleep(200);
+    }
+    //End disconnect
+
+    /**
+     * Sends ATZ as if the adapter had been switched off and on, keeping the protocol it saved.
+     */
+    private static void powerCycle(StreamLink link) throws Exception {
+	link.write("ATZ\r".getBytes());
+	Thread.sleep(300);
+    }
+    //End powerCycle
+
+    /**
+     * Waits for the first value since the last reset of the recorder and prints how long it took.
+     */
+    private static void awaitFirstSample(Recorder recorder) throws InterruptedException {
+	long deadline = recorder.mStart + FIRST_SAMPLE_TIMEOUT * 1000000L;
+	while(recorder.mFirst == 0 && System.nanoTime() < deadline){
+	    Thread.sleep(5);
+	}
+	//End while
+	if(recorder.mFirst == 0){
+	    System.out.println("  no value within " + FIRST_SAMPLE_TIMEOUT + " ms");
+	}
+	else {
+	    System.out.println("  time to first value " + round((recorder.mFirst - recorder.mStart) / 1e6) + " ms");
+	}
+	//End if/else
+    }
+    //End awaitFirstSample
+
+    /**
+     * Returns the values of a PID per second over the given time.
+     */
+    private static double countFor(Recorder recorder, int pid, long millis) throws InterruptedException {
+	long before = recorder.getCount(pid);
+	Thread.sleep(millis);
+	return round((recorder.getCount(pid) - before) * 1000.0 / millis);
+    }
+    //End countFor
+
+    private static double round(double value){
+	return Math.round(value * 10) / 10.0;
+    }
+
+    /**
+     * Recorder counts the values of a session, prints the messages starting with one of its prefixes and keeps what
+     * the session reports about the vehicle for the next connect.
+     */
+    private static class Recorder implements ObdSession.Listener {
+	private final String mPrefixes[];
+	private final Map<Integer, Long> mCounts = new HashMap<Integer, Long>();
+
+	//Kept across connects, as Monitor and VehicleInfoCache keep them
+	private volatile String mProtocol;
+	private final Map<Integer, String> mInfo = new HashMap<Integer, String>();
+	private final Map<Integer, Long> mSupported = new HashMap<Integer, Long>();
+
+	private volatile long mStart;
+	private volatile long mFirst;
+
+	Recorder(String... prefixes){
+	    mPrefixes = prefixes;
+	}
+
+	synchronized void reset(){
+	    mCounts.clear();
+	    mStart = System.nanoTime();
+	    mFirst = 0;
+	}
+
+	/**
+	 * Returns the number of values of a PID since the last reset, or of every PID for -1.
+	 */
+	synchronized long getCount(int pid){
+	    long count = 0;
+	    for(Map.Entry<Integer, Long> entry : mCounts.entrySet()){
+		if(pid < 0 || entry.getKey() == pid){
+		    count += entry.getValue();
+		}
+		//End if
+	    }
+	    //End for
+	    return count;
+	}
+
+	/**
+	 * Returns the number of values of every PID since the last reset, such as "0C 120, 0D 60".
+	 */
+	synchronized String report(){
+	    StringBuilder report = new StringBuilder();
+	    for(Map.Entry<Integer, Long> entry : new TreeMap<Integer, Long>(mCounts).entrySet()){
+		if(report.length() > 0){
+		    report.append(", ");
+		}
+		//End if
+		report.append(String.format("%02X ", entry.getKey())).append(entry.getValue());
+	    }
+	    //End for
+	    return report.toString();
+	}
+
+	public synchronized void onSample(int pid, float value, long timeMillis){
+	    if(mFirst == 0){
+		mFirst = System.nanoTime();
+	    }
+	    //End if
+	    Long count = mCounts.get(pid);
+	    mCounts.put(pid, count == null ? 1 : count + 1);
+	}
+
+	public void onVehicleId(String vehicleId){
+	    onVehicleInfo(VehicleInfoDecoder.VEHICLE_ID, vehicleId);
+	}
+
+	public synchronized void onVehicleInfo(int infoType, String value){
+	    mInfo.put(infoType, value);
+	}
+
+	public synchronized void onSupported(int base, long bitmap){
+	    mSupported.put(base, bitmap);
+	}
+
+	public void onTroubleCode(int mode, String code){
+	}
+
+	public void onProtocol(String protocol){
+	    mProtocol = protocol;
+	}
+
+	public void onMessage(String message){
+	    for(int i = 0; i < mPrefixes.length; i++){
+		if(message.startsWith(mPrefixes[i])){
+		    System.out.println("  " + message);
+		    return;
+		}
+		//End if
+	    }
+	    //End for
+	}
+    }
+    //End Recorder
+}
+//End SessionBench
@@ -0,0 +1,141 @@
+package com.vroom;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * StreamLink connects an ObdSession to a plain pair of streams, such as those of the Elm327Simulator.
+ * <p>
+ * It reads the same way the Bluetooth connected thread does: into pooled buffers, coalescing whatever else of a
+ * burst has already arrived, and hands each buffer to the session, which gives it back once handled. This lets the
+ * session stack run under a plain JVM.
+ *
+ * @version 1
+ *
+ * @see ObdSession
+ * @see Elm327Simulator
+ */
+public class StreamLink implements ObdSession.Link, Runnable {
+
+    private final InputStream mInput;
+    private final OutputStream mOutput;
+    private final ReadBufferPool mBuffers = new ReadBufferPool();
+    private ObdSession mSession;
+    private Thread mThread;
+
+    //Metrics
+    private volatile long mBytesRead;
+    private volatile long mBytesWritten;
+
+    /**
+     * Constructor.
+     *
+     * @param input The stream the adapter's output is read from.
+     * @param output The stream commands are written to.
+     */
+    public StreamLink(InputStream input, OutputStream output){
+	mInput = input;
+	mOutput = output;
+    }
+    //End StreamLink
+
+    /**
+     * Starts reading into the given session.
+     *
+     * @param session The session receiving the bytes read.
+     */
+    public synchronized void start(ObdSession session){
+	mSession = session;
+	if(mThread == null){
+	    mThread = new Thread(this, "StreamLink");
+	    mThread.start();
+	}
+	//End if
+    }
+    //End start
+
+    /**
+     * Closes both streams, which ends the read loop.
+     */
+    public synchronized void close(){
+	try {
+	    mInput.close();
+	    mOutput.close();
+	}
+	catch (IOException e){
+	    //Already closed
+	}
+	//End try/catch
+	mThread = null;
+    }
+    //End close
+
+    public void write(byte[] data) throws IOException {
+	mOutput.write(data);
+	mOutput.flush();
+	mBytesWritten += data.length;
+    }
+    //End write
+
+    public void recycle(byte[] buffer){
+	mBuffers.release(buffer);
+    }
+    //End recycle
+
+    /**
+     * Returns the number of bytes read.
+     */
+    public long getBytesRead(){
+	return mBytesRead;
+    }
+    //End getBytesRead
+
+    /**
+     * Returns the number of bytes written.
+     */
+    public long getBytesWritten(){
+	return mBytesWritten;
+    }
+    //End getBytesWritten
+
+    /**
+     * The read loop.
+     */
+    public void run(){
+	while(true){
+	    byte buffer[] = mBuffers.lease();
+	    try {
+		int bytes = mInput.read(buffer);
+		if(bytes < 0){
+		    mBuffers.release(buffer);
+		    break;
+		}
+		//End if
+
+		//Coalesce whatever else of the burst has already arrived
+		int more;
+		while(bytes < buffer.length && (more = mInput.available()) > 0){
+		    more = mInput.read(buffer, bytes, Math.min(more, buffer.length - bytes));
+		    if(more <= 0){
+			break;
+		    }
+		    //End if
+		    bytes += more;
+		}
+		//End while
+
+		mBytesRead += bytes;
+		mSession.receive(buffer, bytes);
+	    }
+	    catch (IOException e){
+		mBuffers.release(buffer);
+		break;
+	    }
+	    //End try/catch
+	}
+	//End while
+    }
+    //End run
+}
+//End StreamLink
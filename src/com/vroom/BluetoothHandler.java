@@ -1,24 +1,24 @@
-package com.vroom;
-
-import android.os.Handler;
-import android.os.Message;
-
-public class BluetoothHandler extends Handler{
-
-	public enum MessageType {
-		STATE,
-		READ,
-		WRITE,
-		DEVICE,
-		NOTIFY;
-	}
-	
-	public Message obtainMessage(MessageType message, int count, Object obj){
-	    return obtainMessage(message.ordinal(), count, -1, obj);
-	}
-	
-	public MessageType getMessageType(int ordinal) {
-	    return MessageType.values()[ordinal];
-	}
-	
-}
+package com.vroom;
+
+import android.os.Handler;
+import android.os.Message;
+
+public class BluetoothHandler extends Handler{
+
+	public enum MessageType {
+		STATE,
+		READ,
+		WRITE,
+		DEVICE,
+		NOTIFY;
+	}
+	
+	public Message obtainMessage(MessageType message, int count, Object obj){
+	    return obtainMessage(message.ordinal(), count, -1, obj);
+	}
+	
+	public MessageType getMessageType(int ordinal) {
+	    return MessageType.values()[ordinal];
+	}
+	
+}
@@ -0,0 +1,689 @@
+package com.vroom;
+
+import java.io.IOException;
+
+/**
+ * CanMonitor puts the adapter in monitor mode (AT MA) and turns the stream of raw CAN frames into compact records.
+ * <p>
+ * In monitor mode the adapter sends every frame it sees, hundreds to thousands per second, until any character is
+ * sent to it. Frames are parsed on the reading thread, straight from the assembler's line buffer, into a bounded
+ * queue of parallel primitive arrays: id, data length, up to eight data bytes and the time the bytes were read.
+ * Nothing is allocated per frame.
+ * <p>
+ * When the queue is full the {@link Policy} decides what gives: the new frame, the oldest queued frame, or the queued
+ * frame with the same id, which is overwritten with the newer data. Every case is counted. Frames are taken out with
+ * {@link #drain(Listener, int)} on whatever thread consumes them.
+ * <p>
+ * Per id frame counts and rates are kept for up to {@link #MAX_IDS} ids. Filters (AT CRA, AT CF and AT CM) are sent to
+ * the adapter before monitoring starts, so unwanted frames never cross the link.
+ *
+ * @version 1
+ *
+ * @see ObdSession
+ * @see ElmFrameAssembler
+ */
+public class CanMonitor {
+
+    /**
+     * What to do with a frame that arrives while the queue is full.
+     */
+    public enum Policy {
+	/**
+	 * Keep the queue, drop the new frame.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Drop the oldest queued frame to make room.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Overwrite the queued frame with the same id, dropping the new frame if there is none.
+	 */
+	COALESCE;
+    }
+
+    /**
+     * Receives the frames taken out of the queue.
+     */
+    public interface Listener {
+	/**
+	 * Called once for every frame drained.
+	 *
+	 * @param id The 11 or 29 bit frame id.
+	 * @param data A buffer holding the data bytes. Only valid for the duration of the call.
+	 * @param offset The offset of the first data byte.
+	 * @param length The number of data bytes.
+	 * @param timeNanos The System.nanoTime() at which the frame was read.
+	 */
+	void onFrame(int id, byte[] data, int offset, int length, long timeNanos);
+    }
+    //End Listener
+
+    /**
+     * The default number of frames the queue holds.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The largest number of distinct ids statistics are kept for.
+     */
+    public static final int MAX_IDS = 256;
+
+    private static final int MAX_DATA = 8;
+    private static final int ID_SLOTS = MAX_IDS * 2;
+
+    //Adapter set up for monitoring: headers and data length on, spaces and CAN auto formatting off
+    private static final String SETUP[] = {"ATH1", "ATS0", "ATD1", "ATCAF0"};
+    private static final String MONITOR = "ATMA";
+
+    private final ObdSession.Link mLink;
+    private final Policy mPolicy;
+    private final ElmFrameAssembler mAssembler = new ElmFrameAssembler();
+    private final Object mLock = new Object();
+
+    //The queue. Positions are absolute and wrapped with the mask.
+    private final int mMask;
+    private final int mIds[];
+    private final byte mLengths[];
+    private final byte mData[];
+    private final long mTimes[];
+    private long mHead;
+    private long mTail;
+
+    //Per id statistics, an open addressed table keyed by id
+    private final int mStatIds[] = new int[ID_SLOTS];
+    private final long mStatFrames[] = new long[ID_SLOTS];
+    private final long mStatFirst[] = new long[ID_SLOTS];
+    private final long mStatPosition[] = new long[ID_SLOTS];
+    private final int mStatSlots[] = new int[MAX_IDS];
+    private int mIdCount;
+
+    //Set up commands and the one waiting for its OK
+    private final String mCommands[] = new String[SETUP.length + 4];
+    private int mCommandCount;
+    private int mStep;
+    private boolean mAcknowledged;
+    private volatile boolean mRunning;
+    private volatile boolean mMonitoring;
+    private boolean mStopping;
+    private boolean mRestored;
+    private Runnable mOnStopped;
+    private String mReceiveAddress;
+    private String mFilter;
+    private String mFilterMask;
+
+    //Frames parsed when ATMA was last written, to tell a monitor run that ended from one that never started
+    private long mMonitorStart;
+
+    //The frame being parsed and the time its chunk was read
+    private final byte mFrame[] = new byte[MAX_DATA];
+    private volatile long mReadTime;
+
+    //Metrics
+    private volatile long mFrames;
+    private volatile long mDropped;
+    private volatile long mCoalesced;
+    private volatile long mOverflows;
+    private volatile long mMalformed;
+
+    /**
+     * Constructor. Builds a monitor with the default capacity.
+     *
+     * @param link The connection to the adapter.
+     * @param policy What to do with frames that arrive while the queue is full.
+     */
+    public CanMonitor(ObdSession.Link link, Policy policy){
+	this(link, policy, DEFAULT_CAPACITY);
+    }
+    //End CanMonitor
+
+    /**
+     * Constructor.
+     *
+     * @param link The connection to the adapter.
+     * @param policy What to do with frames that arrive while the queue is full.
+     * @param capacity The number of frames the queue holds. Rounded up to the next power of two.
+     */
+    public CanMonitor(ObdSession.Link link, Policy policy, int capacity){
+	mLink = link;
+	mPolicy = policy;
+	int size = 16;
+	while(size < capacity){
+	    size = size << 1;
+	}
+	//End while
+	mMask = size - 1;
+	mIds = new int[size];
+	mLengths = new byte[size];
+	mData = new byte[size * MAX_DATA];
+	mTimes = new long[size];
+	resetStatistics();
+    }
+    //End CanMonitor
+
+    /**
+     * Only lets frames with the given id through (AT CRA). Takes effect on the next start.
+     *
+     * @param id The 11 or 29 bit id, or -1 to let every id through.
+     */
+    public synchronized void setReceiveAddress(int id){
+	mReceiveAddress = id < 0 ? null : hexId(id);
+	mFilter = null;
+	mFilterMask = null;
+    }
+    //End setReceiveAddress
+
+    /**
+     * Only lets frames through whose id matches filter in the bits set in mask (AT CF and AT CM). Takes effect on the
+     * next start.
+     *
+     * @param filter The id bits to match.
+     * @param mask The id bits that must match.
+     */
+    public synchronized void setFilter(int filter, int mask){
+	mReceiveAddress = null;
+	mFilter = hexId(filter);
+	mFilterMask = hexId(mask);
+    }
+    //End setFilter
+
+    /**
+     * Sets the adapter up and starts monitoring. The adapter must be idle at its prompt.
+     */
+    public synchronized void start(){
+	if(mRunning){
+	    return;
+	}
+	//End if
+
+	mCommandCount = 0;
+	for(int i = 0; i < SETUP.length; i++){
+	    mCommands[mCommandCount++] = SETUP[i];
+	}
+	//End for
+	if(mReceiveAddress != null){
+	    mCommands[mCommandCount++] = "ATCRA" + mReceiveAddress;
+	}
+	else if(mFilter != null){
+	    mCommands[mCommandCount++] = "ATCF" + mFilter;
+	    mCommands[mCommandCount++] = "ATCM" + mFilterMask;
+	}
+	else {
+	    //Clears any filter left from an earlier run
+	    mCommands[mCommandCount++] = "ATCRA";
+	}
+	//End if/else
+	mCommands[mCommandCount++] = MONITOR;
+
+	mAssembler.reset();
+	mStep = 0;
+	mAcknowledged = false;
+	mMonitoring = false;
+	mStopping = false;
+	mRestored = false;
+	mRunning = true;
+	write(mCommands[0]);
+    }
+    //End start
+
+    /**
+     * Stops monitoring. The adapter drops out of monitor mode on the character sent, then its settings are put back to
+     * their defaults (AT D) so nothing of the monitor set up is left for whoever talks to it next.
+     *
+     * @param done Run on the reader thread once the adapter is back at its prompt, or right away if the monitor is
+     *   not running. May be null.
+     */
+    public synchronized void stop(Runnable done){
+	if(!mRunning){
+	    if(done != null){
+		done.run();
+	    }
+	    //End if
+	    return;
+	}
+	//End if
+	mOnStopped = done;
+	mStopping = true;
+
+	//While setting up, the prompt of the current command comes back by itself
+	if(mMonitoring){
+	    write("");
+	}
+	//End if
+    }
+    //End stop
+
+    /**
+     * Stops at once without talking to the adapter. Used when the link is going away.
+     */
+    public synchronized void cancel(){
+	mRunning = false;
+	mMonitoring = false;
+	mStopping = false;
+	mOnStopped = null;
+    }
+    //End cancel
+
+    /**
+     * Returns true from start until the monitor has stopped.
+     */
+    public boolean isRunning(){
+	return mRunning;
+    }
+    //End isRunning
+
+    /**
+     * Hands bytes read from the adapter to the monitor and gives the buffer straight back. Called from the link's
+     * reader thread.
+     *
+     * @param buffer The buffer holding the bytes.
+     * @param length The number of valid bytes.
+     */
+    public void receive(byte[] buffer, int length){
+	try {
+	    if(mRunning){
+		mReadTime = System.nanoTime();
+		mAssembler.feed(buffer, 0, length, mFrameListener);
+	    }
+	    //End if
+	}
+	finally {
+	    mLink.recycle(buffer);
+	}
+	//End try/finally
+    }
+    //End receive
+
+    /**
+     * Takes queued frames out, oldest first.
+     * <p>
+     * The listener is called with the queue locked, so it should only copy what it needs.
+     *
+     * @param listener The listener receiving the frames.
+     * @param max The largest number of frames to take.
+     * @return The number of frames taken.
+     */
+    public int drain(Listener listener, int max){
+	synchronized(mLock){
+	    int count = 0;
+	    while(mHead < mTail && count < max){
+		int slot = (int) (mHead & mMask);
+		listener.onFrame(mIds[slot], mData, slot * MAX_DATA, mLengths[slot], mTimes[slot]);
+		mHead++;
+		count++;
+	    }
+	    //End while
+	    return count;
+	}
+    }
+    //End drain
+
+    /**
+     * Clears the per id statistics.
+     */
+    public void resetStatistics(){
+	synchronized(mLock){
+	    for(int i = 0; i < ID_SLOTS; i++){
+		mStatIds[i] = -1;
+	    }
+	    //End for
+	    mIdCount = 0;
+	}
+    }
+    //End resetStatistics
+
+    /**
+     * Returns the number of distinct ids seen since the statistics were reset.
+     */
+    public int getIdCount(){
+	synchronized(mLock){
+	    return mIdCount;
+	}
+    }
+    //End getIdCount
+
+    /**
+     * Returns the id at an index from 0 to getIdCount() - 1, in the order the ids were first seen.
+     */
+    public int getId(int index){
+	synchronized(mLock){
+	    return mStatIds[mStatSlots[index]];
+	}
+    }
+    //End getId
+
+    /**
+     * Returns the number of frames seen with the id at an index.
+     */
+    public long getIdFrames(int index){
+	synchronized(mLock){
+	    return mStatFrames[mStatSlots[index]];
+	}
+    }
+    //End getIdFrames
+
+    /**
+     * Returns the rate of the id at an index in frames per second, measured from its first frame to the last read.
+     */
+    public float getIdRate(int index){
+	synchronized(mLock){
+	    int slot = mStatSlots[index];
+	    long nanos = mReadTime - mStatFirst[slot];
+	    return nanos > 0 ? (mStatFrames[slot] - 1) * 1e9f / nanos : 0;
+	}
+    }
+    //End getIdRate
+
+    /**
+     * Returns the number of frames queued.
+     */
+    public int getQueueDepth(){
+	synchronized(mLock){
+	    return (int) (mTail - mHead);
+	}
+    }
+    //End getQueueDepth
+
+    /**
+     * Returns the number of frames parsed.
+     */
+    public long getFrameCount(){
+	return mFrames;
+    }
+    //End getFrameCount
+
+    /**
+     * Returns the number of frames lost to a full queue.
+     */
+    public long getDroppedCount(){
+	return mDropped;
+    }
+    //End getDroppedCount
+
+    /**
+     * Returns the number of frames merged into a queued frame with the same id.
+     */
+    public long getCoalescedCount(){
+	return mCoalesced;
+    }
+    //End getCoalescedCount
+
+    /**
+     * Returns the number of times the adapter reported its own buffer full.
+     */
+    public long getOverflowCount(){
+	return mOverflows;
+    }
+    //End getOverflowCount
+
+    /**
+     * Returns the number of lines that looked like frames but did not parse.
+     */
+    public long getMalformedCount(){
+	return mMalformed;
+    }
+    //End getMalformedCount
+
+    /**
+     * Returns a one line summary of the counters and the rate of every id, for logging.
+     */
+    public String report(){
+	StringBuilder builder = new StringBuilder();
+	builder.append("frames ").append(mFrames).append(", dropped ").append(mDropped).append(", coalesced ").append(mCoalesced)
+		.append(", adapter overflows ").append(mOverflows).append(", malformed ").append(mMalformed);
+	int count = getIdCount();
+	for(int i = 0; i < count; i++){
+	    builder.append(i == 0 ? "; " : ", ").append(Integer.toHexString(getId(i)).toUpperCase()).append(' ')
+		    .append(Math.round(getIdRate(i))).append("/s");
+	}
+	//End for
+	return builder.toString();
+    }
+    //End report
+
+    /**
+     * Receives the lines and prompts found by the assembler.
+     */
+    private final ElmFrameAssembler.Listener mFrameListener = new ElmFrameAssembler.Listener() {
+	public void onLine(ElmFrameAssembler.Line line){
+	    if(mMonitoring){
+		if(!parse(line) && line.startsWith("BUFFER FULL")){
+		    mOverflows++;
+		}
+		//End if
+	    }
+	    else if(line.contentEquals("OK")){
+		mAcknowledged = true;
+	    }
+	    //End if/else
+	}
+	//End onLine
+
+	public void onPrompt(){
+	    synchronized(CanMonitor.this){
+		if(!mRunning){
+		    return;
+		}
+		//End if
+
+		//Stopping: restore the defaults, then hand the adapter back
+		if(mStopping){
+		    if(!mRestored){
+			mRestored = true;
+			write("ATD");
+			return;
+		    }
+		    //End if
+		    Runnable done = mOnStopped;
+		    cancel();
+		    if(done != null){
+			done.run();
+		    }
+		    //End if
+		    return;
+		}
+		//End if
+
+		//Monitoring ended on its own, after an adapter overflow or error. Start it again unless it never started.
+		if(mMonitoring){
+		    mMonitoring = false;
+		    if(mFrames == mMonitorStart){
+			mRunning = false;
+			return;
+		    }
+		    //End if
+		    write(MONITOR);
+		    return;
+		}
+		//End if
+
+		//A prompt without an OK means the command was lost or interrupted. Send it again.
+		if(mAcknowledged){
+		    mStep++;
+		}
+		//End if
+		mAcknowledged = false;
+		write(mCommands[mStep]);
+	    }
+	}
+	//End onPrompt
+    };//End mFrameListener
+
+    /**
+     * Writes a command to the adapter. Monitor mode starts as soon as ATMA is written.
+     */
+    private void write(String command){
+	try {
+	    mMonitoring = command.equals(MONITOR);
+	    mMonitorStart = mFrames;
+	    mLink.write((command + '\r').getBytes());
+	}
+	catch (IOException e){
+	    mRunning = false;
+	}
+	//End try/catch
+    }
+    //End write
+
+    /**
+     * Parses a monitored line (7E8803410D00... or 18DAF110803410D00...) into the queue.
+     * <p>
+     * With the data length shown, an 11 bit frame has an even number of digits and a 29 bit frame an odd one.
+     *
+     * @return true if the line was a frame.
+     */
+    private boolean parse(ElmFrameAssembler.Line line){
+	int digits = 0;
+	for(int i = 0; i < line.length(); i++){
+	    char c = line.charAt(i);
+	    if(PidBatcher.hexValue(c) >= 0){
+		digits++;
+	    }
+	    else if(c != ' '){
+		return false;
+	    }
+	    //End if/else
+	}
+	//End for
+
+	int idDigits = digits % 2 == 0 ? 3 : 8;
+	if(digits < idDigits + 1){
+	    mMalformed++;
+	    return true;
+	}
+	//End if
+
+	int id = 0;
+	int length = -1;
+	int high = -1;
+	int n = 0;
+	int bytes = 0;
+	for(int i = 0; i < line.length(); i++){
+	    int digit = PidBatcher.hexValue(line.charAt(i));
+	    if(digit < 0){
+		continue;
+	    }
+	    //End if
+	    if(n < idDigits){
+		id = (id << 4) | digit;
+	    }
+	    else if(n == idDigits){
+		length = digit;
+	    }
+	    else if(high < 0){
+		high = digit;
+	    }
+	    else {
+		if(bytes < MAX_DATA){
+		    mFrame[bytes] = (byte) ((high << 4) | digit);
+		}
+		//End if
+		bytes++;
+		high = -1;
+	    }
+	    //End if/else
+	    n++;
+	}
+	//End for
+
+	if(length > MAX_DATA || bytes != length){
+	    mMalformed++;
+	    return true;
+	}
+	//End if
+
+	mFrames++;
+	offer(id, length);
+	return true;
+    }
+    //End parse
+
+    /**
+     * Queues the parsed frame according to the policy and counts it against its id.
+     */
+    private void offer(int id, int length){
+	synchronized(mLock){
+	    int stat = statistics(id);
+	    if(stat >= 0){
+		if(mStatFrames[stat]++ == 0){
+		    mStatFirst[stat] = mReadTime;
+		}
+		//End if
+	    }
+	    //End if
+
+	    long position;
+	    if(mTail - mHead <= mMask){
+		position = mTail++;
+	    }
+	    else if(mPolicy == Policy.DROP_OLDEST){
+		mHead++;
+		mDropped++;
+		position = mTail++;
+	    }
+	    else if(mPolicy == Policy.COALESCE && stat >= 0 && mStatPosition[stat] >= mHead
+		    && mIds[(int) (mStatPosition[stat] & mMask)] == id){
+		position = mStatPosition[stat];
+		mCoalesced++;
+	    }
+	    else {
+		mDropped++;
+		return;
+	    }
+	    //End if/else
+
+	    int slot = (int) (position & mMask);
+	    mIds[slot] = id;
+	    mLengths[slot] = (byte) length;
+	    System.arraycopy(mFrame, 0, mData, slot * MAX_DATA, length);
+	    mTimes[slot] = mReadTime;
+	    if(stat >= 0){
+		mStatPosition[stat] = position;
+	    }
+	    //End if
+	}
+    }
+    //End offer
+
+    /**
+     * Returns the statistics slot of an id, adding the id if there is room, or -1 if the table is full.
+     */
+    private int statistics(int id){
+	int slot = (id * 0x9E3779B1) >>> 23;
+	while(mStatIds[slot] != -1){
+	    if(mStatIds[slot] == id){
+		return slot;
+	    }
+	    //End if
+	    slot = (slot + 1) & (ID_SLOTS - 1);
+	}
+	//End while
+	if(mIdCount == MAX_IDS){
+	    return -1;
+	}
+	//End if
+	mStatIds[slot] = id;
+	mStatFrames[slot] = 0;
+	mStatPosition[slot] = -1;
+	mStatSlots[mIdCount++] = slot;
+	return slot;
+    }
+    //End statistics
+
+    /**
+     * Formats an id as three hex digits when it fits in 11 bits, eight otherwise.
+     */
+    private static String hexId(int id){
+	String hex = Integer.toHexString(id).toUpperCase();
+	int digits = (id & ~0x7FF) == 0 ? 3 : 8;
+	while(hex.length() < digits){
+	    hex = "0" + hex;
+	}
+	//End while
+	return hex;
+    }
+    //End hexId
+}
+//End CanMonitor
@@ -0,0 +1,142 @@
+package com.vroom;
+
+/**
+ * CaptureBuffer records the values of a fast capture, such as a drag or track run, for reading during and after it.
+ * <p>
+ * Unlike the SampleRing, nothing is dropped to make room: the values are appended to parallel primitive arrays until
+ * the buffer is full, so a whole run can be read back in order once it is over. Every value keeps the time its answer
+ * was read from the link, in System.nanoTime() terms, which is closer to when the vehicle sent it than the time it was
+ * decoded.
+ * <p>
+ * Exactly one thread may call {@link #add(int, float, long)}. The values up to {@link #size()} may be read from any
+ * other thread, since the count is volatile and only moved on once a value is written. {@link #clear()} must only be
+ * called while nothing is being added.
+ *
+ * @version 1
+ *
+ * @see ObdSession
+ */
+public final class CaptureBuffer {
+
+    /**
+     * The default number of values. Two signals at 50 answers a second fill it in about 80 seconds.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private final int mPids[];
+    private final float mValues[];
+    private final long mTimes[];
+
+    //The number of values written. Only the writer moves it.
+    private volatile int mCount;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The largest number of values kept.
+     */
+    public CaptureBuffer(int capacity){
+	mPids = new int[capacity];
+	mValues = new float[capacity];
+	mTimes = new long[capacity];
+    }
+    //End CaptureBuffer
+
+    /**
+     * Appends a value. Called on the writing thread only.
+     *
+     * @param pid The PID of the value.
+     * @param value The decoded value.
+     * @param timeNanos When the answer holding the value was read.
+     * @return false if the buffer is full and the value was not kept.
+     */
+    public boolean add(int pid, float value, long timeNanos){
+	int count = mCount;
+	if(count == mPids.length){
+	    return false;
+	}
+	//End if
+	mPids[count] = pid;
+	mValues[count] = value;
+	mTimes[count] = timeNanos;
+
+	//Publish the value
+	mCount = count + 1;
+	return true;
+    }
+    //End add
+
+    /**
+     * Returns the number of values kept.
+     */
+    public int size(){
+	return mCount;
+    }
+    //End size
+
+    /**
+     * Returns the largest number of values the buffer keeps.
+     */
+    public int capacity(){
+	return mPids.length;
+    }
+    //End capacity
+
+    /**
+     * Returns the PID of value i.
+     */
+    public int getPid(int i){
+	return mPids[i];
+    }
+    //End getPid
+
+    /**
+     * Returns value i.
+     */
+    public float getValue(int i){
+	return mValues[i];
+    }
+    //End getValue
+
+    /**
+     * Returns the time value i was read in System.nanoTime() terms.
+     */
+    public long getTimeNanos(int i){
+	return mTimes[i];
+    }
+    //End getTimeNanos
+
+    /**
+     * Returns how many values of a PID were kept per second, from the first to the last, or 0 if there are fewer than
+     * two.
+     */
+    public double getRate(int pid){
+	int count = mCount;
+	int found = 0;
+	long first = 0;
+	long last = 0;
+	for(int i = 0; i < count; i++){
+	    if(mPids[i] == pid){
+		if(found == 0){
+		    first = mTimes[i];
+		}
+		//End if
+		last = mTimes[i];
+		found++;
+	    }
+	    //End if
+	}
+	//End for
+	return found > 1 && last > first ? (found - 1) * 1e9 / (last - first) : 0;
+    }
+    //End getRate
+
+    /**
+     * Drops every value. Only while nothing is being added.
+     */
+    public void clear(){
+	mCount = 0;
+    }
+    //End clear
+}
+//End CaptureBuffer
\ No newline at end of file
@@ -0,0 +1,183 @@
+package com.vroom;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * ChartView draws the recent values of one PID as a line scrolling from right to left.
+ * <p>
+ * Points are kept in a ring of primitive arrays and the chart spans a fixed time window ending at the newest point.
+ * Like {@link GaugeView}, adding a point only stores it and the chart is redrawn on the next {@link #refresh()} of
+ * the render loop. Drawing reuses one preallocated line array, so a frame allocates nothing.
+ *
+ * @version 1
+ *
+ * @see SampleRing
+ * @see GaugeView
+ */
+public class ChartView extends View {
+
+    /**
+     * The number of points kept. Enough for the window at 50 samples per second.
+     */
+    public static final int MAX_POINTS = 512;
+
+    /**
+     * The default time span of the chart in milliseconds.
+     */
+    public static final long DEFAULT_WINDOW = 10000;
+
+    private final Paint mLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mGridPaint = new Paint();
+    private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    //The points, oldest first from mHead
+    private final float mValues[] = new float[MAX_POINTS];
+    private final long mTimes[] = new long[MAX_POINTS];
+    private int mHead;
+    private int mCount;
+
+    //Line segment end points handed to drawLines, four floats per segment
+    private final float mLines[] = new float[MAX_POINTS * 4];
+
+    private int mPid = -1;
+    private float mMin;
+    private float mMax = 1;
+    private long mWindow = DEFAULT_WINDOW;
+    private String mLabel = "";
+    private boolean mDirty;
+
+    public ChartView(Context context){
+	this(context, null);
+    }
+    //End ChartView
+
+    public ChartView(Context context, AttributeSet attrs){
+	super(context, attrs);
+	float density = context.getResources().getDisplayMetrics().density;
+
+	mLinePaint.setStyle(Paint.Style.STROKE);
+	mLinePaint.setStrokeWidth(2 * density);
+	mLinePaint.setColor(context.getResources().getColor(R.color.textGreen));
+
+	mGridPaint.setColor(context.getResources().getColor(R.color.buttonBackground));
+
+	mLabelPaint.setTextSize(11 * density);
+	mLabelPaint.setColor(context.getResources().getColor(R.color.textGray));
+    }
+    //End ChartView
+
+    /**
+     * Sets the PID charted and the value range of the chart. Clears the points.
+     *
+     * @param pid The mode 01 PID.
+     * @param min The value at the bottom of the chart.
+     * @param max The value at the top of the chart.
+     * @param window The time span of the chart in milliseconds.
+     */
+    public void setPid(int pid, float min, float max, long window){
+	mPid = pid;
+	mMin = min;
+	mMax = max;
+	mWindow = window;
+	mLabel = PidRegistry.getName(pid) + " (" + PidRegistry.getUnit(pid) + ")";
+	mHead = 0;
+	mCount = 0;
+	mDirty = true;
+    }
+    //End setPid
+
+    /**
+     * Returns the PID charted, or -1 if none is set.
+     */
+    public int getPid(){
+	return mPid;
+    }
+    //End getPid
+
+    /**
+     * Adds a point, dropping the oldest once MAX_POINTS are kept. Does not redraw.
+     */
+    public void addPoint(float value, long timeMillis){
+	int slot = (mHead + mCount) % MAX_POINTS;
+	mValues[slot] = value;
+	mTimes[slot] = timeMillis;
+	if(mCount < MAX_POINTS){
+	    mCount++;
+	}
+	else {
+	    mHead = (mHead + 1) % MAX_POINTS;
+	}
+	//End if/else
+	mDirty = true;
+    }
+    //End addPoint
+
+    /**
+     * Redraws the chart if points were added since the last refresh. Called once per frame by the render loop.
+     */
+    public void refresh(){
+	if(mDirty){
+	    mDirty = false;
+	    invalidate();
+	}
+	//End if
+    }
+    //End refresh
+
+    @Override
+    protected void onDraw(Canvas canvas){
+	float left = getPaddingLeft();
+	float top = getPaddingTop();
+	float right = getWidth() - getPaddingRight();
+	float bottom = getHeight() - getPaddingBottom();
+
+	canvas.drawLine(left, bottom, right, bottom, mGridPaint);
+	canvas.drawLine(left, top, right, top, mGridPaint);
+	canvas.drawText(mLabel, left, top + mLabelPaint.getTextSize(), mLabelPaint);
+	if(mCount < 2){
+	    return;
+	}
+	//End if
+
+	float xScale = (right - left) / mWindow;
+	float yScale = (bottom - top) / (mMax - mMin);
+	long end = mTimes[(mHead + mCount - 1) % MAX_POINTS];
+	long start = end - mWindow;
+
+	int segments = 0;
+	float lastX = 0;
+	float lastY = 0;
+	boolean started = false;
+	for(int i = 0; i < mCount; i++){
+	    int slot = (mHead + i) % MAX_POINTS;
+	    if(mTimes[slot] < start){
+		continue;
+	    }
+	    //End if
+
+	    float value = Math.max(mMin, Math.min(mMax, mValues[slot]));
+	    float x = left + (mTimes[slot] - start) * xScale;
+	    float y = bottom - (value - mMin) * yScale;
+	    if(started){
+		int at = segments * 4;
+		mLines[at] = lastX;
+		mLines[at + 1] = lastY;
+		mLines[at + 2] = x;
+		mLines[at + 3] = y;
+		segments++;
+	    }
+	    //End if
+	    lastX = x;
+	    lastY = y;
+	    started = true;
+	}
+	//End for
+	canvas.drawLines(mLines, 0, segments * 4, mLinePaint);
+    }
+    //End onDraw
+}
+//End ChartView
\ No newline at end of file
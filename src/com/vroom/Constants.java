@@ -1,109 +1,188 @@
-package com.vroom;
-
-import android.provider.BaseColumns;
-
-public interface Constants extends BaseColumns {
-//Start local database columns
-    
-//Start userCodes table	
-	/**
-	 * This defines the name of the table containing the list of codes specific to the user defined vehicles.
-	 * 
-	 * @author Neale Petrillo
-	 * @version 1, 2/14/2011
-	 */
-	public static final String TABLE_USERCODES = "userCodes";
-	
-	/**
-	 * This defines the name of the OBD Code column of the userCodes table
-	 * 
-	 *  @author Neale Petrillo
-	 *  @version 1, 2/19/2011
-	 */
-	public static final String userCode = "code";
-	
-	/**
-	 * This defines the name of the vehicle id column for the userCodes table.
-	 * 
-	 * This column acts as a reference to the user defined vehicle table.
-	 * 
-	 *  @author Neale Petrillo
-	 *  @version 1, 2/19/2011
-	 */
-	public static final String userVehicle = "vehicleId";
-	
-//End userCodes table
-//Start userVehicles table	
-	/**
-	 * This defines the name of the table containing the list of user vehicles.
-	 * 
-	 * @author Neale Petrillo
-	 * @version 1, 2/14/2011
-	 */
-	public static final String TABLE_USERVEHICLES = "userVehicles";
-	
-	/**
-	 * This defines the name of the vehicle identifier column
-	 * 
-	 * @author Neale Petrillo
-	 * @version 1, 2/20/0211
-	 */
-	public static final String vehicleId = "identifier";
-	
-	/**
-	 * Defines the name of the vehicle model column
-	 * 
-	 * @author Neale Petrillo
-	 * @version 1, 3/6/2011
-	 */
-	public static final String vehicleModel = "model";
-	
-	/**
-	 * Defines the name of the vehicle make column
-	 * 
-	 * @author Neale Petrillo
-	 * @version 1, 3/6/2011
-	 */
-	public static final String vehicleMake = "make";
-	
-	/**
-	 * Defines the name of the vehicle year column
-	 * 
-	 * @author Neale Petrillo
-	 * @version 1, 3/6/2011
-	 */
-	public static final String vehicleYear = "year";
-//End userVehicles table
-//Start userHistory table	
-	/**
-	 * This defines the name of the table containing the user's vehicle history.
-	 * 
-	 * @author Neale Petrillo
-	 * @version 1, 2/14/2011
-	 */
-	public static final String TABLE_USERHISTORY = "userHistory";
-	
-	public static final String historyId = "vehicleId";
-	
-	public static final String voltage = "voltage";
-	
-	public static final String temperature = "temperature";
-	
-	public static final String timestamp = "timestamp";
-	
-	public static final String rpm = "rpm";
-	
-	public static final String troubleCode = "troubleCode";
-//End userHistory table
-
-//Start external database information 
-	public static final String getErrorInfoURL = "http://eclipse.wells.edu/~npetrillo/thesis/getsolution.php";
-//End external database information
-	
-//Start activity list data
-	public static final int DEVICE_LIST_ACTIVITY_ID = 000001;
-//End activity list data
-	
-	
-	
-}
+package com.vroom;
+
+import android.provider.BaseColumns;
+
+public interface Constants extends BaseColumns {
+//Start local database columns
+    
+//Start userCodes table	
+	/**
+	 * This defines the name of the table containing the list of codes specific to the user defined vehicles.
+	 * 
+	 * @author Neale Petrillo
+	 * @version 1, 2/14/2011
+	 */
+	public static final String TABLE_USERCODES = "userCodes";
+	
+	/**
+	 * This defines the name of the OBD Code column of the userCodes table
+	 * 
+	 *  @author Neale Petrillo
+	 *  @version 1, 2/19/2011
+	 */
+	public static final String userCode = "code";
+	
+	/**
+	 * This defines the name of the vehicle id column for the userCodes table.
+	 * 
+	 * This column acts as a reference to the user defined vehicle table.
+	 * 
+	 *  @author Neale Petrillo
+	 *  @version 1, 2/19/2011
+	 */
+	public static final String userVehicle = "vehicleId";
+	
+	/**
+	 * This defines the name of the time column for the userCodes table, in milliseconds since the epoch.
+	 * 
+	 *  @version 1
+	 */
+	public static final String userCodeTime = "time";
+	
+//End userCodes table
+//Start userVehicles table	
+	/**
+	 * This defines the name of the table containing the list of user vehicles.
+	 * 
+	 * @author Neale Petrillo
+	 * @version 1, 2/14/2011
+	 */
+	public static final String TABLE_USERVEHICLES = "userVehicles";
+	
+	/**
+	 * This defines the name of the vehicle identifier column
+	 * 
+	 * @author Neale Petrillo
+	 * @version 1, 2/20/0211
+	 */
+	public static final String vehicleId = "identifier";
+	
+	/**
+	 * Defines the name of the vehicle model column
+	 * 
+	 * @author Neale Petrillo
+	 * @version 1, 3/6/2011
+	 */
+	public static final String vehicleModel = "model";
+	
+	/**
+	 * Defines the name of the vehicle make column
+	 * 
+	 * @author Neale Petrillo
+	 * @version 1, 3/6/2011
+	 */
+	public static final String vehicleMake = "make";
+	
+	/**
+	 * Defines the name of the vehicle year column
+	 * 
+	 * @author Neale Petrillo
+	 * @version 1, 3/6/2011
+	 */
+	public static final String vehicleYear = "year";
+//End userVehicles table
+//Start userHistory table	
+	/**
+	 * This defines the name of the table containing the user's vehicle history.
+	 * 
+	 * @author Neale Petrillo
+	 * @version 1, 2/14/2011
+	 */
+	public static final String TABLE_USERHISTORY = "userHistory";
+	
+	public static final String historyId = "vehicleId";
+	
+	public static final String voltage = "voltage";
+	
+	public static final String temperature = "temperature";
+	
+	public static final String timestamp = "timestamp";
+	
+	public static final String rpm = "rpm";
+	
+	public static final String troubleCode = "troubleCode";
+//End userHistory table
+//Start samples table
+	/**
+	 * This defines the name of the table containing the values read from the user's vehicles.
+	 * <p>
+	 * Each row holds one value of one signal. It replaces the userHistory table, which held a mostly empty row per value.
+	 * 
+	 * @version 1
+	 */
+	public static final String TABLE_SAMPLES = "samples";
+	
+	/**
+	 * The vehicle column. References the _id of the userVehicles table.
+	 */
+	public static final String sampleVehicle = "vehicle";
+	
+	/**
+	 * The signal column. Holds the mode 01 PID the value was read with, or one of the SIGNAL_ ids.
+	 */
+	public static final String sampleSignal = "signal";
+	
+	public static final String sampleValue = "value";
+	
+	/**
+	 * The time column, in milliseconds since the epoch.
+	 */
+	public static final String sampleTime = "time";
+	
+	/**
+	 * Signal ids of the values kept in the samples table.
+	 */
+	public static final int SIGNAL_TEMPERATURE = 0x05;
+	public static final int SIGNAL_RPM = 0x0C;
+	public static final int SIGNAL_VOLTAGE = 0x42;
+//End samples table
+//Start rollup tables
+	/**
+	 * These define the names of the tables holding per minute and per hour aggregates of the samples table.
+	 * <p>
+	 * Each row sums up one signal of one vehicle over one period, so long term trends can be read without touching the raw samples.
+	 * The average of a period is total / readings.
+	 * 
+	 * @version 1
+	 */
+	public static final String TABLE_ROLLUP_MINUTE = "rollupMinute";
+	public static final String TABLE_ROLLUP_HOUR = "rollupHour";
+	
+	/**
+	 * The vehicle column. References the _id of the userVehicles table, or holds 0 for values without a vehicle.
+	 */
+	public static final String rollupVehicle = "vehicle";
+	
+	public static final String rollupSignal = "signal";
+	
+	/**
+	 * The bucket column. Holds the start of the period in milliseconds since the epoch.
+	 */
+	public static final String rollupBucket = "bucket";
+	
+	public static final String rollupMin = "minimum";
+	
+	public static final String rollupMax = "maximum";
+	
+	public static final String rollupTotal = "total";
+	
+	public static final String rollupCount = "readings";
+	
+	/**
+	 * The length of the rollup periods in milliseconds.
+	 */
+	public static final long ROLLUP_MINUTE = 60000;
+	public static final long ROLLUP_HOUR = 3600000;
+//End rollup tables
+
+//Start external database information 
+	public static final String getErrorInfoURL = "http://eclipse.wells.edu/~npetrillo/thesis/getsolution.php";
+//End external database information
+	
+//Start activity list data
+	public static final int DEVICE_LIST_ACTIVITY_ID = 000001;
+//End activity list data
+	
+	
+	
+}
@@ -0,0 +1,239 @@
+package com.vroom;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * ConversationLog is the list model behind the conversation view: a fixed number of lines in a ring buffer, shown
+ * through a throttled adapter.
+ * <p>
+ * Lines can be added from any thread. They go into the ring, overwriting the oldest line once it is full, and the
+ * list is refreshed on the UI thread at most once every {@link #REFRESH_PERIOD}, however fast the lines come in.
+ * <p>
+ * Every line has a {@link Level}. Lines above the current level are dropped before they are stored, and raw traffic
+ * lines are also dropped while the view is not shown. Callers building traffic lines should check
+ * {@link #isLogging(Level)} first, so the text is never formatted when nobody would see it.
+ *
+ * @version 1
+ *
+ * @see Monitor
+ */
+public class ConversationLog extends BaseAdapter {
+
+    /**
+     * How much of the conversation is logged. Each level includes the ones before it.
+     */
+    public enum Level {
+	/**
+	 * Errors and connection changes only.
+	 */
+	QUIET,
+
+	/**
+	 * Decoded results and adapter set up as well.
+	 */
+	NORMAL,
+
+	/**
+	 * Every line read from and written to the adapter as well.
+	 */
+	TRAFFIC;
+    }
+
+    /**
+     * The default number of lines kept.
+     */
+    public static final int DEFAULT_CAPACITY = 200;
+
+    /**
+     * The shortest time in milliseconds between two list refreshes.
+     */
+    public static final long REFRESH_PERIOD = 100;
+
+    private final LayoutInflater mInflater;
+    private final int mLayout;
+    private final Handler mHandler = new Handler();
+
+    //The ring the lines are added to, oldest first from mHead
+    private final Object mLock = new Object();
+    private final String mLines[];
+    private int mHead;
+    private int mCount;
+    private boolean mRefreshPending;
+    private long mLastRefresh;
+
+    //The lines the list shows, copied from the ring on every refresh. Only touched on the UI thread.
+    private final String mShown[];
+    private int mShownCount;
+
+    private volatile Level mLevel = Level.NORMAL;
+    private volatile boolean mVisible = true;
+
+    /**
+     * Constructor. Must be called on the UI thread.
+     *
+     * @param context The context used to inflate the line views.
+     * @param layout The layout of a line, a TextView.
+     * @param capacity The number of lines kept.
+     */
+    public ConversationLog(Context context, int layout, int capacity){
+	mInflater = LayoutInflater.from(context);
+	mLayout = layout;
+	mLines = new String[capacity];
+	mShown = new String[capacity];
+    }
+    //End ConversationLog
+
+    /**
+     * Sets how much of the conversation is logged.
+     */
+    public void setLevel(Level level){
+	mLevel = level;
+    }
+    //End setLevel
+
+    /**
+     * Returns how much of the conversation is logged.
+     */
+    public Level getLevel(){
+	return mLevel;
+    }
+    //End getLevel
+
+    /**
+     * Tells the log whether its view is on screen. While it is not, traffic lines are dropped and the list is not
+     * refreshed.
+     */
+    public void setVisible(boolean visible){
+	mVisible = visible;
+	if(visible){
+	    scheduleRefresh();
+	}
+	//End if
+    }
+    //End setVisible
+
+    /**
+     * Returns true if lines of the given level are kept right now.
+     */
+    public boolean isLogging(Level level){
+	return level.ordinal() <= mLevel.ordinal() && (level != Level.TRAFFIC || mVisible);
+    }
+    //End isLogging
+
+    /**
+     * Adds a line at the NORMAL level.
+     */
+    public void add(String line){
+	add(Level.NORMAL, line);
+    }
+    //End add
+
+    /**
+     * Adds a line. May be called from any thread.
+     *
+     * @param level The level of the line.
+     * @param line The text of the line.
+     */
+    public void add(Level level, String line){
+	if(!isLogging(level)){
+	    return;
+	}
+	//End if
+	synchronized(mLock){
+	    mLines[(mHead + mCount) % mLines.length] = line;
+	    if(mCount < mLines.length){
+		mCount++;
+	    }
+	    else {
+		mHead = (mHead + 1) % mLines.length;
+	    }
+	    //End if/else
+	}
+	scheduleRefresh();
+    }
+    //End add
+
+    /**
+     * Returns a copy of the lines kept, oldest first.
+     */
+    public String[] getLines(){
+	synchronized(mLock){
+	    String lines[] = new String[mCount];
+	    for(int i = 0; i < mCount; i++){
+		lines[i] = mLines[(mHead + i) % mLines.length];
+	    }
+	    //End for
+	    return lines;
+	}
+    }
+    //End getLines
+
+    public int getCount(){
+	return mShownCount;
+    }
+    //End getCount
+
+    public Object getItem(int position){
+	return mShown[position];
+    }
+    //End getItem
+
+    public long getItemId(int position){
+	return position;
+    }
+    //End getItemId
+
+    public View getView(int position, View convertView, ViewGroup parent){
+	TextView view = (TextView) (convertView != null ? convertView : mInflater.inflate(mLayout, parent, false));
+	view.setText(mShown[position]);
+	return view;
+    }
+    //End getView
+
+    /**
+     * Posts a refresh unless one is already waiting, no sooner than REFRESH_PERIOD after the last one.
+     */
+    private void scheduleRefresh(){
+	synchronized(mLock){
+	    if(mRefreshPending){
+		return;
+	    }
+	    //End if
+	    mRefreshPending = true;
+	    long wait = Math.max(0, mLastRefresh + REFRESH_PERIOD - SystemClock.uptimeMillis());
+	    mHandler.postDelayed(mRefresh, wait);
+	}
+    }
+    //End scheduleRefresh
+
+    /**
+     * Copies the ring into the shown lines and tells the list. Runs on the UI thread.
+     */
+    private final Runnable mRefresh = new Runnable() {
+	public void run(){
+	    synchronized(mLock){
+		mRefreshPending = false;
+		if(!mVisible){
+		    return;
+		}
+		//End if
+		mLastRefresh = SystemClock.uptimeMillis();
+		for(int i = 0; i < mCount; i++){
+		    mShown[i] = mLines[(mHead + i) % mLines.length];
+		}
+		//End for
+		mShownCount = mCount;
+	    }
+	    notifyDataSetChanged();
+	}
+	//End run
+    };//End mRefresh
+}
+//End ConversationLog
\ No newline at end of file
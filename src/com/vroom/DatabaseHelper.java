@@ -1,138 +1,283 @@
-package com.vroom;
-
-//Import the list of constants from the constants class
-import static com.vroom.Constants.TABLE_USERCODES;
-import static com.vroom.Constants.userCode;
-import static com.vroom.Constants.userVehicle;
-
-import static com.vroom.Constants.TABLE_USERHISTORY;
-import static com.vroom.Constants.historyId;
-import static com.vroom.Constants.voltage;
-import static com.vroom.Constants.temperature;
-import static com.vroom.Constants.troubleCode;
-import static com.vroom.Constants.rpm;
-import static com.vroom.Constants.timestamp;
-
-import static com.vroom.Constants.TABLE_USERVEHICLES;
-import static com.vroom.Constants.vehicleId;
-import static com.vroom.Constants.vehicleMake;
-import static com.vroom.Constants.vehicleModel;
-import static com.vroom.Constants.vehicleYear;
-
-import static android.provider.BaseColumns._ID;
-
-//Import the other libraries
-import android.content.Context;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
-import android.util.Log;
-
-
-
-/**
- * The database helper class builds the database used for various user information.
- *
- * @author Neale Petrillo
- * @version 1, 2/20/2011
- */
-public class DatabaseHelper extends SQLiteOpenHelper {
-	
-    	private static final String TAG = "DatabaseHelper";
-	private static final String DATABASE_NAME = "vroomInfo.db";
-	private static final int DATABASE_VERSION = 2;
-
-	/**
-	 * Constructor for DatabaseHelper
-	 * 
-	 * Uses the SQLiteOpenHelper to create the database.
-	 * 
-	 * @author Neale Petrillo
-	 * @version 1, 2/14/2011
-	 * 
-	 * @param context The context in which we're working. Type Context. 
-	 * 
-	 * @throws none
-	 */
-    DatabaseHelper (Context context){
-	 super(context, DATABASE_NAME, null, DATABASE_VERSION);
-	
-	 Log.v(TAG, "Database helper class sucessfully created. ");
-
-    }
-    
-    /**
-     * Called when the class is first created. Builds all the tables for the database.
-     * 
-     * @author Neale Petrillo
-     * @version 1, 2011
-     * 
-     * @param db The database we're working on. Type SQLite Database
-     * 
-     * @throws none
-     */
-    @Override
-    public void onCreate(SQLiteDatabase db){
-	try {
-	    	Log.v(TAG, "Creating database. UserCodes table being created. ");
-	    	
-	    	//Create the USERCODES table
-	    	db.execSQL("CREATE TABLE " + TABLE_USERCODES + " (" 
-	    			+ _ID +" INTEGER PRIMARY KEY AUTOINCREMENT, "
-	    			+ userCode + " VARCHAR(10), " 
-	    			+ userVehicle + " INTEGER);");
-	    	
-	    	Log.v(TAG, "UserCodes table craeted. Creating UserHistory table. ");
-	    	
-	    	//Create the USERHISTORY table
-	    	db.execSQL("CREATE TABLE " + TABLE_USERHISTORY + " ("
-	    			+ _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-	    			+ historyId + " TEXT, "
-	    			+ voltage + " FLOAT, "
-	    			+ temperature + " INTEGER, "
-	    			+ rpm + " INTEGER, "
-	    			+ troubleCode + " TEXT, "
-	    			+ timestamp + " TIMESTAMP NOT NULL DEFAULT current_timestamp);");
-	    	
-	    	Log.v(TAG, "UserHistory table created. Creating vehicle table. ");
-	    	
-	    	//Create the USERVEHICLES table
-	    	db.execSQL("CREATE TABLE " + TABLE_USERVEHICLES + " ("
-	    			+ _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " 
-	    			+ vehicleId + " VARCHAR(45), " 
-	    			+ vehicleMake + " VARCHAR(45), "
-	    			+ vehicleModel + " VARCHAR(45), "
-	    			+ vehicleYear + " INT(4));");
-	}
-	catch(Exception e){
-	    Log.e(TAG, "Unable to create tables. "+e.getMessage(), e.getCause());
-	    return;
-	}
-    }
-    
-    /**
-     * Called when the database is upgraded.
-     * 
-     * This will have to be modified for later versions. 
-     * 
-     * @author Neale Petrillo
-     * @version 1, 2/15/2011
-     * 
-     * @param db the database we're working on. Type SQLiteDatabase.
-     * @param oldVersion the previous version number of the database. Type int.
-     * @param newVersion the new version number of the database. Type int.
-     * 
-     * @throws none
-     */
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion){
-    	try {
-    	    	Log.v(TAG, "Updating database. Destroying then calling the onCreate method.");
-        	db.execSQL("DROP DATABASE IF EXISTS " + DATABASE_NAME);
-        	onCreate(db);
-        	
-    	}catch (Exception e){
-    	    Log.e(TAG, "Unable to update database. "+e.getMessage(), e.getCause());
-    	    return; 
-    	}
-    }
-}
+package com.vroom;
+
+//Import the list of constants from the constants class
+import static com.vroom.Constants.TABLE_USERCODES;
+import static com.vroom.Constants.userCode;
+import static com.vroom.Constants.userVehicle;
+import static com.vroom.Constants.userCodeTime;
+
+import static com.vroom.Constants.TABLE_USERHISTORY;
+import static com.vroom.Constants.historyId;
+import static com.vroom.Constants.voltage;
+import static com.vroom.Constants.temperature;
+import static com.vroom.Constants.troubleCode;
+import static com.vroom.Constants.rpm;
+import static com.vroom.Constants.timestamp;
+
+import static com.vroom.Constants.TABLE_SAMPLES;
+import static com.vroom.Constants.sampleVehicle;
+import static com.vroom.Constants.sampleSignal;
+import static com.vroom.Constants.sampleValue;
+import static com.vroom.Constants.sampleTime;
+import static com.vroom.Constants.SIGNAL_RPM;
+import static com.vroom.Constants.SIGNAL_TEMPERATURE;
+import static com.vroom.Constants.SIGNAL_VOLTAGE;
+
+import static com.vroom.Constants.TABLE_ROLLUP_MINUTE;
+import static com.vroom.Constants.TABLE_ROLLUP_HOUR;
+import static com.vroom.Constants.rollupVehicle;
+import static com.vroom.Constants.rollupSignal;
+import static com.vroom.Constants.rollupBucket;
+import static com.vroom.Constants.rollupMin;
+import static com.vroom.Constants.rollupMax;
+import static com.vroom.Constants.rollupTotal;
+import static com.vroom.Constants.rollupCount;
+import static com.vroom.Constants.ROLLUP_MINUTE;
+import static com.vroom.Constants.ROLLUP_HOUR;
+
+import static com.vroom.Constants.TABLE_USERVEHICLES;
+import static com.vroom.Constants.vehicleId;
+import static com.vroom.Constants.vehicleMake;
+import static com.vroom.Constants.vehicleModel;
+import static com.vroom.Constants.vehicleYear;
+
+import static android.provider.BaseColumns._ID;
+
+//Import the other libraries
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+
+
+/**
+ * The database helper class builds the database used for various user information.
+ *
+ * @author Neale Petrillo
+ * @version 1, 2/20/2011
+ */
+public class DatabaseHelper extends SQLiteOpenHelper {
+	
+    	private static final String TAG = "DatabaseHelper";
+	private static final String DATABASE_NAME = "vroomInfo.db";
+	private static final int DATABASE_VERSION = 5;
+
+	/**
+	 * Constructor for DatabaseHelper
+	 * 
+	 * Uses the SQLiteOpenHelper to create the database.
+	 * 
+	 * @author Neale Petrillo
+	 * @version 1, 2/14/2011
+	 * 
+	 * @param context The context in which we're working. Type Context. 
+	 * 
+	 * @throws none
+	 */
+    DatabaseHelper (Context context){
+	 super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	
+	 Log.v(TAG, "Database helper class sucessfully created. ");
+
+    }
+    
+    /**
+     * Called when the class is first created. Builds all the tables for the database.
+     * 
+     * @author Neale Petrillo
+     * @version 1, 2011
+     * 
+     * @param db The database we're working on. Type SQLite Database
+     * 
+     * @throws none
+     */
+    @Override
+    public void onCreate(SQLiteDatabase db){
+	try {
+	    	Log.v(TAG, "Creating database. UserCodes table being created. ");
+	    	
+	    	//Create the USERCODES table
+	    	db.execSQL("CREATE TABLE " + TABLE_USERCODES + " (" 
+	    			+ _ID +" INTEGER PRIMARY KEY AUTOINCREMENT, "
+	    			+ userCode + " VARCHAR(10), " 
+	    			+ userVehicle + " INTEGER, "
+	    			+ userCodeTime + " INTEGER);");
+	    	
+	    	Log.v(TAG, "UserCodes table craeted. Creating samples table. ");
+	    	
+	    	createSamples(db);
+	    	
+	    	Log.v(TAG, "Samples table created. Creating rollup tables. ");
+	    	
+	    	createRollup(db, TABLE_ROLLUP_MINUTE);
+	    	createRollup(db, TABLE_ROLLUP_HOUR);
+	    	
+	    	Log.v(TAG, "Rollup tables created. Creating vehicle table. ");
+	    	
+	    	//Create the USERVEHICLES table
+	    	db.execSQL("CREATE TABLE " + TABLE_USERVEHICLES + " ("
+	    			+ _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " 
+	    			+ vehicleId + " VARCHAR(45), " 
+	    			+ vehicleMake + " VARCHAR(45), "
+	    			+ vehicleModel + " VARCHAR(45), "
+	    			+ vehicleYear + " INT(4));");
+	    	
+	    	Log.v(TAG, "Vehicle table created. Creating indexes. ");
+	    	
+	    	createIndexes(db);
+	}
+	catch(Exception e){
+	    Log.e(TAG, "Unable to create tables. "+e.getMessage(), e.getCause());
+	    return;
+	}
+    }
+    
+    /**
+     * Creates the samples table. One row per value, keyed by integer vehicle and signal ids.
+     * 
+     * @version 1
+     * 
+     * @param db The database we're working on.
+     */
+    private void createSamples(SQLiteDatabase db){
+	db.execSQL("CREATE TABLE " + TABLE_SAMPLES + " ("
+			+ _ID + " INTEGER PRIMARY KEY, "
+			+ sampleVehicle + " INTEGER, "
+			+ sampleSignal + " INTEGER NOT NULL, "
+			+ sampleValue + " REAL NOT NULL, "
+			+ sampleTime + " INTEGER NOT NULL);");
+    }
+    //End createSamples
+    
+    /**
+     * Creates a rollup table. The primary key doubles as the index for trend queries on one signal of one vehicle.
+     * 
+     * @version 1
+     * 
+     * @param db The database we're working on.
+     * @param table The name of the table.
+     */
+    private void createRollup(SQLiteDatabase db, String table){
+	db.execSQL("CREATE TABLE " + table + " ("
+			+ rollupVehicle + " INTEGER NOT NULL, "
+			+ rollupSignal + " INTEGER NOT NULL, "
+			+ rollupBucket + " INTEGER NOT NULL, "
+			+ rollupMin + " REAL NOT NULL, "
+			+ rollupMax + " REAL NOT NULL, "
+			+ rollupTotal + " REAL NOT NULL, "
+			+ rollupCount + " INTEGER NOT NULL, "
+			+ "PRIMARY KEY (" + rollupVehicle + ", " + rollupSignal + ", " + rollupBucket + "));");
+    }
+    //End createRollup
+    
+    /**
+     * Fills a rollup table from the samples already stored.
+     * 
+     * @version 1
+     * 
+     * @param db The database we're working on.
+     * @param table The name of the rollup table.
+     * @param period The length of its periods in milliseconds.
+     */
+    private void backfillRollup(SQLiteDatabase db, String table, long period){
+	db.execSQL("INSERT INTO " + table + " SELECT IFNULL(" + sampleVehicle + ", 0), " + sampleSignal + ", "
+		+ "(" + sampleTime + " / " + period + ") * " + period + ", MIN(" + sampleValue + "), MAX(" + sampleValue + "), "
+		+ "SUM(" + sampleValue + "), COUNT(*) FROM " + TABLE_SAMPLES + " GROUP BY 1, 2, 3;");
+    }
+    //End backfillRollup
+    
+    /**
+     * Called when the database is upgraded.
+     * <p>
+     * Version 3 replaces the userHistory table with the samples table. Every non empty value of an old history row becomes 
+     * one sample, trouble codes move to the userCodes table and the text vehicle ids become references to userVehicles.
+     * Version 4 adds the lookup indexes and version 5 the rollup tables, filled from the samples already stored.
+     * SQLiteOpenHelper runs the upgrade in a transaction, so a failed migration leaves the old tables untouched.
+     * 
+     * @author Neale Petrillo
+     * @version 2
+     * 
+     * @param db the database we're working on. Type SQLiteDatabase.
+     * @param oldVersion the previous version number of the database. Type int.
+     * @param newVersion the new version number of the database. Type int.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion){
+	if(oldVersion < 3){
+	    Log.v(TAG, "Updating database. Moving the history to the samples table.");
+	    
+	    createSamples(db);
+	    db.execSQL("ALTER TABLE " + TABLE_USERCODES + " ADD COLUMN " + userCodeTime + " INTEGER;");
+	    
+	    //Every vehicle seen in the history needs a row to be referenced by
+	    db.execSQL("INSERT INTO " + TABLE_USERVEHICLES + " (" + vehicleId + ") "
+		    + "SELECT DISTINCT " + historyId + " FROM " + TABLE_USERHISTORY + " "
+		    + "WHERE " + historyId + " IS NOT NULL AND " + historyId + " NOT IN "
+		    + "(SELECT " + vehicleId + " FROM " + TABLE_USERVEHICLES + " WHERE " + vehicleId + " IS NOT NULL);");
+	    
+	    //One sample per filled value column
+	    String columns[] = {rpm, temperature, voltage};
+	    int signals[] = {SIGNAL_RPM, SIGNAL_TEMPERATURE, SIGNAL_VOLTAGE};
+	    for(int i = 0; i < columns.length; i++){
+		db.execSQL("INSERT INTO " + TABLE_SAMPLES + " (" + sampleVehicle + ", " + sampleSignal + ", " + sampleValue + ", " + sampleTime + ") "
+			+ "SELECT v." + _ID + ", " + signals[i] + ", h." + columns[i] + ", " + historyTime("h") + " "
+			+ "FROM " + TABLE_USERHISTORY + " h LEFT JOIN " + TABLE_USERVEHICLES + " v ON v." + vehicleId + " = h." + historyId + " "
+			+ "WHERE h." + columns[i] + " IS NOT NULL ORDER BY h." + _ID + ";");
+	    }
+	    //End for
+	    
+	    db.execSQL("INSERT INTO " + TABLE_USERCODES + " (" + userCode + ", " + userVehicle + ", " + userCodeTime + ") "
+		    + "SELECT h." + troubleCode + ", v." + _ID + ", " + historyTime("h") + " "
+		    + "FROM " + TABLE_USERHISTORY + " h LEFT JOIN " + TABLE_USERVEHICLES + " v ON v." + vehicleId + " = h." + historyId + " "
+		    + "WHERE h." + troubleCode + " IS NOT NULL ORDER BY h." + _ID + ";");
+	    
+	    db.execSQL("DROP TABLE " + TABLE_USERHISTORY + ";");
+	    Log.v(TAG, "History moved to the samples table.");
+	}
+	//End if
+	
+	if(oldVersion < 4){
+	    Log.v(TAG, "Updating database. Creating indexes.");
+	    createIndexes(db);
+	}
+	//End if
+	
+	if(oldVersion < 5){
+	    Log.v(TAG, "Updating database. Building the rollup tables.");
+	    createRollup(db, TABLE_ROLLUP_MINUTE);
+	    createRollup(db, TABLE_ROLLUP_HOUR);
+	    backfillRollup(db, TABLE_ROLLUP_MINUTE, ROLLUP_MINUTE);
+	    backfillRollup(db, TABLE_ROLLUP_HOUR, ROLLUP_HOUR);
+	}
+	//End if
+    }
+    //End onUpgrade
+    
+    /**
+     * Creates the indexes behind the history lookups.
+     * <p>
+     * Every lookup finds the vehicle by its identifier, then reads its newest rows, so codes are indexed on (vehicle, time)
+     * and samples, which are read one signal at a time, on (vehicle, signal, time). A query with a LIMIT reads only the
+     * rows it returns instead of sorting the whole table.
+     * 
+     * @version 1
+     * 
+     * @param db The database we're working on.
+     */
+    private void createIndexes(SQLiteDatabase db){
+	db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_USERVEHICLES + "_" + vehicleId + " ON " + TABLE_USERVEHICLES + " (" + vehicleId + ");");
+	db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_SAMPLES + "_" + sampleVehicle + "_" + sampleSignal + "_" + sampleTime + " ON " + TABLE_SAMPLES 
+		+ " (" + sampleVehicle + ", " + sampleSignal + ", " + sampleTime + ");");
+	db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_USERCODES + "_" + userVehicle + "_" + userCodeTime + " ON " + TABLE_USERCODES + " (" + userVehicle + ", " + userCodeTime + ");");
+    }
+    //End createIndexes
+    
+    /**
+     * Returns the SQL converting the text timestamp of a userHistory row to milliseconds since the epoch.
+     */
+    private static String historyTime(String alias){
+	return "CAST(strftime('%s', " + alias + "." + timestamp + ") AS INTEGER) * 1000";
+    }
+    //End historyTime
+}
\ No newline at end of file
@@ -1,153 +1,207 @@
-package com.vroom;
-
-import android.os.Bundle;
-import android.preference.PreferenceActivity;
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
-import android.util.Log;
-
-import java.lang.Exception;
-
-/**
- * PersonalSettings creates the personal settings directory under the options menu. 
- * <p>
- * The class and its methods are responsible for holding, updating, and providing the various device settings
- * for the program
- * 
- * @author Neale Petrillo
- * @version 1.0 2/9/2011
- *
- */
-
-public class DeviceSettings extends PreferenceActivity {
-	/** 
-	 * TAG defines the class for debuggin purposes
-	 * 
-	 * @see PersonalSettings
-	 */
-	private static final  String TAG = "DeviceSettings";
-	
-	/**
-	 * OPT_MAC is the key for the device_mac setting in xml/device_settings.xml
-	 * 
-	 * @see DeviceSettings
-	 */
-	private static final String OPT_MAC = "device_mac";
-	
-	/**
-	 * OPT_MAC_DEF is the default value for the device_mac setting in xml/device_settings.xml if the value cannot be found.
-	 * 
-	 * @see DeviceSettings
-	 */
-	public static final String OPT_MAC_DEF = "";
-	
-	/**
-	 * OPT_CONNECT is the key for the device_connect settings in xml/device_settings.xml
-	 * 
-	 * @see DeviceSettings
-	 */
-	private static final String OPT_CONNECT = "device_connect";
-	
-	/**
-	 * OPT_CONNECT_DEF is the default value for the device_connect setting in xml/device_settings.xml if the value cannot be found.
-	 */
-	private static final boolean OPT_CONNECT_DEF = false;
-	
-	private static final String OPT_VEHILCEID = "vehicle_id";
-	private static final String OPT_VEHICLEID_DEF = "";
-	
-	/**
-	 * onCreate is called when the DeviceSettins button is clicked in the menu dialog. 
-	 * <p>
-	 * onCreate creates the DeviceSettings page using the buttons stored in the xml/device_settings.xml file.
-	 * 
-	 * @author Neale Petrillo
-	 * @version 1.0 2/9/2011
-	 * 
-	 * @param savedInstanceState The previous instance state, type  Bundle
-	 * @throws none
-	 */
-	//Start onCreate
-	@Override
-	protected void onCreate(Bundle savedInstanceState) {
-		try{
-			Log.v(TAG,"Trying to create the DeviceSettings page");
-			super.onCreate(savedInstanceState);
-			addPreferencesFromResource(R.xml.device_settings);
-		}
-		catch (Exception e){
-			Log.e(TAG,"There was an error creating DeviceSettings. Exiting. "+e.getMessage(),e.getCause());
-			finish();
-		}
-	}	
-	//End onCreate
-	
-	/**
-	 * getDeviceMac() returns the MAC address of the OBD-II interpreter on file.
-	 * 
-	 * @author Neale Petrillo
-	 * @version 1.0 2/9/2011
-	 * 
-	 * @param context The context in which we're working, type Context
-	 * @return String containing the MAC stored address
-	 * @throws none This method throws no errors
-	 */
-	//Start getDeviceMac()
-	public static String getDeviceMac(Context context){
-		try {
-			Log.v(TAG, "Trying to get the MAC address on file");
-			return PreferenceManager.getDefaultSharedPreferences(context).getString(OPT_MAC,OPT_MAC_DEF);
-		}
-		catch (Exception e){
-			Log.e(TAG, "Error while trying to get the stored MAC address. Exiting. "+e.getMessage(),e.getCause());
-			return "";
-		}
-	}
-	//End getDeviceMac()
-	
-	/**
-	 * getConnect() returns true if the user wants to try to connect to the stored device or false otherwise. 
-	 * 
-	 * @author Neale Petrillo
-	 * @version 1.0 2/9/2011
-	 * 
-	 * @param context The context in which we're working, type Context
-	 * @return true if the user wants to automatically connect or false otherwise (or on failure)
-	 * @throws none This method throws no errors.
-	 */
-	//Start getConnect()
-	public static boolean getConnect(Context context){
-		try{
-			Log.v(TAG, "Trying to determine if the user wants to automatically connect");
-			return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(OPT_CONNECT,OPT_CONNECT_DEF);
-		}
-		catch (Exception e){
-			Log.e(TAG, "Error while trying to see if the user wants to automatically connect. Exiting. "+e.getMessage(),e.getCause());
-			return false;
-		}
-	}
-	
-	public static String getVehicleId(Context context){
-	    try {
-		Log.v(TAG, "Trying to get the stored vehilce id");
-		return PreferenceManager.getDefaultSharedPreferences(context).getString(OPT_VEHILCEID, OPT_VEHICLEID_DEF);
-	    }
-	    catch (Exception e){
-		Log.e(TAG, "Error while trying to return the vehicle id.");
-		return "";
-	    }
-	}
-	
-	public void setVehicleId(Context context, String id){
-	    try {
-		//Get preferences
-		SharedPreferences prefs = getSharedPreferences("device_settings", 0);
-		prefs.edit().putString(OPT_VEHILCEID, id).commit();
-		
-	    }
-	    catch (Exception e){
-		Log.e(TAG, "Error while trying to save vehicle id.");
-	    }
-	}
-}	
+package com.vroom;
+
+import android.os.Bundle;
+import android.preference.PreferenceActivity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.lang.Exception;
+
+/**
+ * PersonalSettings creates the personal settings directory under the options menu. 
+ * <p>
+ * The class and its methods are responsible for holding, updating, and providing the various device settings
+ * for the program
+ * 
+ * @author Neale Petrillo
+ * @version 1.0 2/9/2011
+ *
+ */
+
+public class DeviceSettings extends PreferenceActivity {
+	/** 
+	 * TAG defines the class for debuggin purposes
+	 * 
+	 * @see PersonalSettings
+	 */
+	private static final  String TAG = "DeviceSettings";
+	
+	/**
+	 * OPT_MAC is the key for the device_mac setting in xml/device_settings.xml
+	 * 
+	 * @see DeviceSettings
+	 */
+	private static final String OPT_MAC = "device_mac";
+	
+	/**
+	 * OPT_MAC_DEF is the default value for the device_mac setting in xml/device_settings.xml if the value cannot be found.
+	 * 
+	 * @see DeviceSettings
+	 */
+	public static final String OPT_MAC_DEF = "";
+	
+	/**
+	 * OPT_CONNECT is the key for the device_connect settings in xml/device_settings.xml
+	 * 
+	 * @see DeviceSettings
+	 */
+	private static final String OPT_CONNECT = "device_connect";
+	
+	/**
+	 * OPT_CONNECT_DEF is the default value for the device_connect setting in xml/device_settings.xml if the value cannot be found.
+	 */
+	private static final boolean OPT_CONNECT_DEF = false;
+	
+	private static final String OPT_VEHILCEID = "vehicle_id";
+	private static final String OPT_VEHICLEID_DEF = "";
+	
+	/**
+	 * OPT_LINK is the key for the device_link setting in xml/device_settings.xml
+	 * 
+	 * @see LinkProfile
+	 */
+	private static final String OPT_LINK = "device_link";
+	
+	/**
+	 * OPT_LINK_DEF is the default value for the device_link setting in xml/device_settings.xml if the value cannot be found.
+	 */
+	private static final String OPT_LINK_DEF = "lean";
+	
+	/**
+	 * onCreate is called when the DeviceSettins button is clicked in the menu dialog. 
+	 * <p>
+	 * onCreate creates the DeviceSettings page using the buttons stored in the xml/device_settings.xml file.
+	 * 
+	 * @author Neale Petrillo
+	 * @version 1.0 2/9/2011
+	 * 
+	 * @param savedInstanceState The previous instance state, type  Bundle
+	 * @throws none
+	 */
+	//Start onCreate
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		try{
+			Log.v(TAG,"Trying to create the DeviceSettings page");
+			super.onCreate(savedInstanceState);
+			addPreferencesFromResource(R.xml.device_settings);
+		}
+		catch (Exception e){
+			Log.e(TAG,"There was an error creating DeviceSettings. Exiting. "+e.getMessage(),e.getCause());
+			finish();
+		}
+	}	
+	//End onCreate
+	
+	/**
+	 * getDeviceMac() returns the MAC address of the OBD-II interpreter on file.
+	 * 
+	 * @author Neale Petrillo
+	 * @version 1.0 2/9/2011
+	 * 
+	 * @param context The context in which we're working, type Context
+	 * @return String containing the MAC stored address
+	 * @throws none This method throws no errors
+	 */
+	//Start getDeviceMac()
+	public static String getDeviceMac(Context context){
+		try {
+			Log.v(TAG, "Trying to get the MAC address on file");
+			return PreferenceManager.getDefaultSharedPreferences(context).getString(OPT_MAC,OPT_MAC_DEF);
+		}
+		catch (Exception e){
+			Log.e(TAG, "Error while trying to get the stored MAC address. Exiting. "+e.getMessage(),e.getCause());
+			return "";
+		}
+	}
+	//End getDeviceMac()
+	
+	/**
+	 * setDeviceMac() stores the MAC address of the OBD-II interpreter last connected, for getDeviceMac().
+	 * 
+	 * @version 1
+	 * 
+	 * @param context The context in which we're working, type Context
+	 * @param mac The MAC address to store, type String
+	 * @throws none This method throws no errors
+	 */
+	//Start setDeviceMac()
+	public static void setDeviceMac(Context context, String mac){
+		try {
+			Log.v(TAG, "Trying to store the MAC address");
+			PreferenceManager.getDefaultSharedPreferences(context).edit().putString(OPT_MAC, mac).commit();
+		}
+		catch (Exception e){
+			Log.e(TAG, "Error while trying to store the MAC address. "+e.getMessage(),e.getCause());
+		}
+	}
+	//End setDeviceMac()
+	
+	/**
+	 * getConnect() returns true if the user wants to try to connect to the stored device or false otherwise. 
+	 * 
+	 * @author Neale Petrillo
+	 * @version 1.0 2/9/2011
+	 * 
+	 * @param context The context in which we're working, type Context
+	 * @return true if the user wants to automatically connect or false otherwise (or on failure)
+	 * @throws none This method throws no errors.
+	 */
+	//Start getConnect()
+	public static boolean getConnect(Context context){
+		try{
+			Log.v(TAG, "Trying to determine if the user wants to automatically connect");
+			return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(OPT_CONNECT,OPT_CONNECT_DEF);
+		}
+		catch (Exception e){
+			Log.e(TAG, "Error while trying to see if the user wants to automatically connect. Exiting. "+e.getMessage(),e.getCause());
+			return false;
+		}
+	}
+	
+	/**
+	 * getLinkProfile() returns the name of the link profile the adapter is set up with.
+	 * 
+	 * @version 1
+	 * 
+	 * @param context The context in which we're working, type Context
+	 * @return The profile name, for LinkProfile.forName()
+	 * @throws none This method throws no errors.
+	 */
+	//Start getLinkProfile()
+	public static String getLinkProfile(Context context){
+		try{
+			return PreferenceManager.getDefaultSharedPreferences(context).getString(OPT_LINK,OPT_LINK_DEF);
+		}
+		catch (Exception e){
+			Log.e(TAG, "Error while trying to get the link profile. "+e.getMessage(),e.getCause());
+			return OPT_LINK_DEF;
+		}
+	}
+	//End getLinkProfile()
+	
+	public static String getVehicleId(Context context){
+	    try {
+		Log.v(TAG, "Trying to get the stored vehilce id");
+		return PreferenceManager.getDefaultSharedPreferences(context).getString(OPT_VEHILCEID, OPT_VEHICLEID_DEF);
+	    }
+	    catch (Exception e){
+		Log.e(TAG, "Error while trying to return the vehicle id.");
+		return "";
+	    }
+	}
+	
+	public void setVehicleId(Context context, String id){
+	    try {
+		//Get preferences
+		SharedPreferences prefs = getSharedPreferences("device_settings", 0);
+		prefs.edit().putString(OPT_VEHILCEID, id).commit();
+		
+	    }
+	    catch (Exception e){
+		Log.e(TAG, "Error while trying to save vehicle id.");
+	    }
+	}
+}	
@@ -0,0 +1,296 @@
+package com.vroom;
+
+/**
+ * ElmFrameAssembler turns the raw bytes read from an ELM327 adapter into response lines.
+ * <p>
+ * Bytes are copied into a reusable ring buffer. Every carriage return, line feed or prompt character ends the
+ * current line, wherever it falls inside a chunk, and every prompt ('>') is reported on its own once the lines
+ * before it have been delivered. Lines are handed to the listener as a {@link Line} slice over the ring buffer,
+ * so no String is built unless the listener asks for one.
+ * <p>
+ * Whether the adapter ends its lines with a line feed as well is set by its link profile. Both ways are read the
+ * same, the line feeds are only counted so the session can tell the setting took effect. Every byte fed is counted
+ * too, for the bytes per answer of the profile.
+ * <p>
+ * The assembler is not thread safe. It is meant to be fed from the single thread that handles the read messages.
+ *
+ * @version 1
+ *
+ * @see Monitor
+ */
+public class ElmFrameAssembler {
+
+    /**
+     * The character the ELM327 sends when it is ready for the next command.
+     */
+    public static final byte PROMPT = '>';
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    /**
+     * The default ring buffer capacity. Longer than any single ELM response line.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Callback for assembled lines and prompts.
+     */
+    public interface Listener {
+	/**
+	 * Called for every non blank response line. The line is only valid for the duration of the call.
+	 *
+	 * @param line The trimmed line.
+	 */
+	void onLine(Line line);
+
+	/**
+	 * Called when the adapter sends the prompt character, after all the lines in front of it.
+	 */
+	void onPrompt();
+    }
+    //End Listener
+
+    //The ring buffer and the mask used to wrap positions into it
+    private final byte[] mBuffer;
+    private final int mMask;
+
+    //Absolute position of the first byte of the current line and of the next free byte
+    private long mLineStart;
+    private long mEnd;
+
+    //Number of lines cut short because they did not fit in the buffer
+    private long mOverflows;
+
+    //Number of bytes and of line feeds fed so far
+    private long mBytes;
+    private long mLinefeeds;
+
+    //The reusable line slice handed to the listener
+    private final Line mLine = new Line();
+
+    /**
+     * Constructor. Builds an assembler with the default capacity.
+     */
+    public ElmFrameAssembler(){
+	this(DEFAULT_CAPACITY);
+    }
+    //End ElmFrameAssembler
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The ring buffer capacity in bytes. Rounded up to the next power of two.
+     */
+    public ElmFrameAssembler(int capacity){
+	int size = 16;
+	while(size < capacity){
+	    size = size << 1;
+	}
+	//End while
+	mBuffer = new byte[size];
+	mMask = size - 1;
+    }
+    //End ElmFrameAssembler
+
+    /**
+     * Feeds a chunk of bytes read from the adapter.
+     * <p>
+     * Every line and prompt completed by the chunk is passed to the listener before this method returns.
+     * The bytes of an unfinished line are kept until the next call.
+     *
+     * @param data The buffer holding the bytes.
+     * @param offset The offset of the first valid byte.
+     * @param length The number of valid bytes.
+     * @param listener The listener receiving lines and prompts.
+     */
+    public void feed(byte[] data, int offset, int length, Listener listener){
+	for(int i = offset; i < offset + length; i++){
+	    byte b = data[i];
+	    mBytes++;
+
+	    if(b == CR || b == LF){
+		if(b == LF){
+		    mLinefeeds++;
+		}
+		//End if
+		emitLine(listener);
+	    }
+	    else if(b == PROMPT){
+		emitLine(listener);
+		listener.onPrompt();
+	    }
+	    else {
+		//Drop the oldest byte of an overlong line rather than the whole response
+		if(mEnd - mLineStart == mBuffer.length){
+		    mLineStart++;
+		    mOverflows++;
+		}
+		//End if
+		mBuffer[(int) (mEnd & mMask)] = b;
+		mEnd++;
+	    }
+	    //End if/else
+	}
+	//End for
+    }
+    //End feed
+
+    /**
+     * Discards any partially received line.
+     */
+    public void reset(){
+	mLineStart = mEnd;
+    }
+    //End reset
+
+    /**
+     * Returns the number of bytes held for the line currently being received.
+     */
+    public int pending(){
+	return (int) (mEnd - mLineStart);
+    }
+    //End pending
+
+    /**
+     * Returns the number of bytes dropped because a line was longer than the buffer.
+     */
+    public long getOverflowCount(){
+	return mOverflows;
+    }
+    //End getOverflowCount
+
+    /**
+     * Returns the number of bytes fed so far, up to and including the one being handled.
+     */
+    public long getByteCount(){
+	return mBytes;
+    }
+    //End getByteCount
+
+    /**
+     * Returns the number of line feeds fed so far.
+     */
+    public long getLinefeedCount(){
+	return mLinefeeds;
+    }
+    //End getLinefeedCount
+
+    /**
+     * Passes the current line to the listener if it holds anything other than white space.
+     */
+    private void emitLine(Listener listener){
+	long start = mLineStart;
+	long end = mEnd;
+	mLineStart = mEnd;
+
+	//Trim white space and the NUL bytes some adapters send ahead of the prompt
+	while(start < end && mBuffer[(int) (start & mMask)] <= ' '){
+	    start++;
+	}
+	while(end > start && mBuffer[(int) ((end - 1) & mMask)] <= ' '){
+	    end--;
+	}
+
+	if(end > start){
+	    mLine.set(start, (int) (end - start));
+	    listener.onLine(mLine);
+	}
+	//End if
+    }
+    //End emitLine
+
+    /**
+     * A read-only view of one response line inside the ring buffer.
+     * <p>
+     * A Line is reused for every callback; copy it with {@link #toString()} to keep it.
+     *
+     * @version 1
+     */
+    public final class Line implements CharSequence {
+	private long mStart;
+	private int mLength;
+
+	private Line(){
+	}
+
+	private void set(long start, int length){
+	    mStart = start;
+	    mLength = length;
+	}
+
+	/**
+	 * Returns the number of bytes in the line.
+	 */
+	public int length(){
+	    return mLength;
+	}
+
+	/**
+	 * Returns the byte at index i of the line.
+	 */
+	public byte byteAt(int i){
+	    return mBuffer[(int) ((mStart + i) & mMask)];
+	}
+
+	public char charAt(int i){
+	    return (char) (byteAt(i) & 0xFF);
+	}
+
+	/**
+	 * Returns true if the line starts with the given ASCII text.
+	 */
+	public boolean startsWith(String prefix){
+	    if(prefix.length() > mLength){
+		return false;
+	    }
+	    for(int i = 0; i < prefix.length(); i++){
+		if(charAt(i) != prefix.charAt(i)){
+		    return false;
+		}
+	    }
+	    return true;
+	}
+
+	/**
+	 * Returns true if the line holds exactly the given ASCII text.
+	 */
+	public boolean contentEquals(String text){
+	    return text.length() == mLength && startsWith(text);
+	}
+
+	/**
+	 * Copies length bytes of the line, starting at index start, into dest.
+	 */
+	public void copyTo(int start, byte[] dest, int destOffset, int length){
+	    for(int i = 0; i < length; i++){
+		dest[destOffset + i] = byteAt(start + i);
+	    }
+	}
+
+	/**
+	 * Returns a String copy of part of the line. Allocates, like toString().
+	 */
+	public CharSequence subSequence(int start, int end){
+	    char chars[] = new char[end - start];
+	    for(int i = start; i < end; i++){
+		chars[i - start] = charAt(i);
+	    }
+	    return new String(chars);
+	}
+
+	/**
+	 * Builds a String copy of the line. Only this method and subSequence allocate.
+	 */
+	@Override
+	public String toString(){
+	    char chars[] = new char[mLength];
+	    for(int i = 0; i < mLength; i++){
+		chars[i] = charAt(i);
+	    }
+	    return new String(chars);
+	}
+    }
+    //End Line
+}
+//End ElmFrameAssembler
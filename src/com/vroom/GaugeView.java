@@ -0,0 +1,158 @@
+package com.vroom;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * GaugeView draws the latest value of one PID as a dial.
+ * <p>
+ * Setting a value only stores it. The view is redrawn when {@link #refresh()} is called by the render loop, so however
+ * often the PID is sampled the gauge costs at most one invalidation per frame. The paints and the dial bounds are made
+ * once, and the value text is only rebuilt when the shown number changes.
+ *
+ * @version 1
+ *
+ * @see SampleRing
+ * @see PidRegistry
+ */
+public class GaugeView extends View {
+
+    //The dial sweeps from the lower left round to the lower right
+    private static final float START_ANGLE = 150;
+    private static final float SWEEP_ANGLE = 240;
+
+    private final Paint mTrackPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mValuePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF mArc = new RectF();
+    private final float mDensity;
+
+    private int mPid = -1;
+    private float mMin;
+    private float mMax = 1;
+    private String mLabel = "";
+    private String mUnit = "";
+
+    private float mValue = Float.NaN;
+    private boolean mDirty;
+    private int mShownNumber = Integer.MIN_VALUE;
+    private String mText = "--";
+
+    public GaugeView(Context context){
+	this(context, null);
+    }
+    //End GaugeView
+
+    public GaugeView(Context context, AttributeSet attrs){
+	super(context, attrs);
+	mDensity = context.getResources().getDisplayMetrics().density;
+
+	mTrackPaint.setStyle(Paint.Style.STROKE);
+	mTrackPaint.setStrokeWidth(8 * mDensity);
+	mTrackPaint.setColor(context.getResources().getColor(R.color.buttonBackground));
+
+	mValuePaint.setStyle(Paint.Style.STROKE);
+	mValuePaint.setStrokeWidth(8 * mDensity);
+	mValuePaint.setColor(context.getResources().getColor(R.color.textGreen));
+
+	mTextPaint.setTextAlign(Paint.Align.CENTER);
+	mTextPaint.setTextSize(22 * mDensity);
+	mTextPaint.setColor(context.getResources().getColor(R.color.textGray));
+
+	mLabelPaint.setTextAlign(Paint.Align.CENTER);
+	mLabelPaint.setTextSize(11 * mDensity);
+	mLabelPaint.setColor(context.getResources().getColor(R.color.textGray));
+    }
+    //End GaugeView
+
+    /**
+     * Sets the PID shown and the range of the dial. The unit comes from the registry.
+     *
+     * @param pid The mode 01 PID.
+     * @param label The short name shown under the value.
+     * @param min The value at the start of the dial.
+     * @param max The value at the end of the dial.
+     */
+    public void setPid(int pid, String label, float min, float max){
+	mPid = pid;
+	mLabel = label;
+	mUnit = PidRegistry.getUnit(pid);
+	mMin = min;
+	mMax = max;
+	mValue = Float.NaN;
+	mDirty = true;
+    }
+    //End setPid
+
+    /**
+     * Returns the PID shown, or -1 if none is set.
+     */
+    public int getPid(){
+	return mPid;
+    }
+    //End getPid
+
+    /**
+     * Stores the latest value. Does not redraw.
+     */
+    public void setValue(float value){
+	mValue = value;
+	mDirty = true;
+    }
+    //End setValue
+
+    /**
+     * Redraws the gauge if its value changed since the last refresh. Called once per frame by the render loop.
+     */
+    public void refresh(){
+	if(mDirty){
+	    mDirty = false;
+	    invalidate();
+	}
+	//End if
+    }
+    //End refresh
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh){
+	float inset = mTrackPaint.getStrokeWidth() / 2;
+	float size = Math.min(w - getPaddingLeft() - getPaddingRight(), h - getPaddingTop() - getPaddingBottom());
+	float left = getPaddingLeft() + (w - getPaddingLeft() - getPaddingRight() - size) / 2;
+	float top = getPaddingTop() + (h - getPaddingTop() - getPaddingBottom() - size) / 2;
+	mArc.set(left + inset, top + inset, left + size - inset, top + size - inset);
+    }
+    //End onSizeChanged
+
+    @Override
+    protected void onDraw(Canvas canvas){
+	canvas.drawArc(mArc, START_ANGLE, SWEEP_ANGLE, false, mTrackPaint);
+
+	if(!Float.isNaN(mValue)){
+	    float fraction = (mValue - mMin) / (mMax - mMin);
+	    fraction = Math.max(0, Math.min(1, fraction));
+	    canvas.drawArc(mArc, START_ANGLE, SWEEP_ANGLE * fraction, false, mValuePaint);
+
+	    //Only build a new String when the number shown changes
+	    int number = Math.round(mValue);
+	    if(number != mShownNumber){
+		mShownNumber = number;
+		mText = Integer.toString(number);
+	    }
+	    //End if
+	}
+	//End if
+
+	float centerX = (mArc.left + mArc.right) / 2;
+	float centerY = (mArc.top + mArc.bottom) / 2;
+	canvas.drawText(mText, centerX, centerY, mTextPaint);
+	canvas.drawText(mUnit, centerX, centerY + mTextPaint.getTextSize() * 0.8f, mLabelPaint);
+	canvas.drawText(mLabel, centerX, mArc.bottom, mLabelPaint);
+    }
+    //End onDraw
+}
+//End GaugeView
\ No newline at end of file
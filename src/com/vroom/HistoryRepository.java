@@ -0,0 +1,283 @@
+package com.vroom;
+
+import static android.provider.BaseColumns._ID;
+import static com.vroom.Constants.TABLE_SAMPLES;
+import static com.vroom.Constants.sampleVehicle;
+import static com.vroom.Constants.sampleSignal;
+import static com.vroom.Constants.sampleValue;
+import static com.vroom.Constants.sampleTime;
+import static com.vroom.Constants.TABLE_USERVEHICLES;
+import static com.vroom.Constants.vehicleId;
+import static com.vroom.Constants.TABLE_ROLLUP_MINUTE;
+import static com.vroom.Constants.TABLE_ROLLUP_HOUR;
+import static com.vroom.Constants.rollupVehicle;
+import static com.vroom.Constants.rollupSignal;
+import static com.vroom.Constants.rollupBucket;
+import static com.vroom.Constants.rollupMin;
+import static com.vroom.Constants.rollupMax;
+import static com.vroom.Constants.rollupTotal;
+import static com.vroom.Constants.rollupCount;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * HistoryRepository reads the stored history one window at a time on a background thread.
+ * <p>
+ * Raw samples are paged newest first with a keyset on (time, _id): every page hands back the key of its last row and
+ * the next page starts right after it, so a page costs an index seek whatever its position in the history and no
+ * more than one page is ever held in memory. Long ranges are read from the rollup tables instead.
+ * <p>
+ * Results are delivered as primitive arrays rather than a live Cursor. Listeners are called on the repository thread
+ * and must hand the page over to the UI thread themselves.
+ *
+ * @version 1
+ *
+ * @see DatabaseHelper
+ * @see SampleWriter
+ */
+public class HistoryRepository {
+
+    private static final String TAG = "HistoryRepository";
+
+    /**
+     * The key to pass as the page start to read from the newest row.
+     */
+    public static final long NEWEST = Long.MAX_VALUE;
+
+    /**
+     * Rollup resolutions for trend queries.
+     */
+    public enum Resolution {
+	MINUTE,
+	HOUR;
+    }
+
+    /**
+     * One window of history, newest row first.
+     */
+    public static final class Page {
+	/**
+	 * The time of each row in milliseconds since the epoch.
+	 */
+	public final long times[];
+
+	/**
+	 * The value of each row. For rollup pages it is the average of the period.
+	 */
+	public final float values[];
+
+	/**
+	 * The smallest and largest value of each period. Null for raw sample pages.
+	 */
+	public final float minimums[];
+	public final float maximums[];
+
+	//The _id of each row, used as the second part of the keyset
+	final long ids[];
+
+	/**
+	 * The number of rows filled in the arrays.
+	 */
+	public int count;
+
+	Page(int size, boolean ranges){
+	    times = new long[size];
+	    values = new float[size];
+	    ids = new long[size];
+	    minimums = ranges ? new float[size] : null;
+	    maximums = ranges ? new float[size] : null;
+	}
+
+	/**
+	 * Returns true if the page was full, so there may be older rows.
+	 */
+	public boolean hasMore(){
+	    return count == times.length;
+	}
+
+	/**
+	 * Returns the time to pass as beforeTime to get the next page.
+	 */
+	public long getNextTime(){
+	    return count > 0 ? times[count - 1] : NEWEST;
+	}
+
+	/**
+	 * Returns the id to pass as beforeId to get the next page.
+	 */
+	public long getNextId(){
+	    return count > 0 ? ids[count - 1] : NEWEST;
+	}
+    }
+    //End Page
+
+    /**
+     * Receives the pages read. Called on the repository thread.
+     */
+    public interface Listener {
+	/**
+	 * Called when a page has been read.
+	 *
+	 * @param page The page, or null if it could not be read.
+	 */
+	void onPage(Page page);
+    }
+    //End Listener
+
+    private final DatabaseHelper mHelper;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Constructor.
+     *
+     * @param helper The helper of the database to read.
+     */
+    public HistoryRepository(DatabaseHelper helper){
+	mHelper = helper;
+    }
+    //End HistoryRepository
+
+    /**
+     * Reads a page of raw samples of one signal, newest first.
+     * <p>
+     * Pass NEWEST as beforeTime and beforeId for the first page, then the page's getNextTime and getNextId for the next.
+     *
+     * @param identifier The identifier of the vehicle.
+     * @param signal The signal id.
+     * @param fromTime The oldest time of the window, inclusive.
+     * @param beforeTime The time of the last row of the previous page.
+     * @param beforeId The id of the last row of the previous page.
+     * @param size The largest number of rows in the page.
+     * @param listener The listener receiving the page.
+     * @return A future that can be used to cancel the read.
+     */
+    public Future<?> loadSamples(final String identifier, final int signal, final long fromTime, final long beforeTime, final long beforeId,
+	    final int size, final Listener listener){
+	return mExecutor.submit(new Runnable() {
+	    public void run(){
+		listener.onPage(readSamples(identifier, signal, fromTime, beforeTime, beforeId, size));
+	    }
+	});
+    }
+    //End loadSamples
+
+    /**
+     * Reads a page of rollup periods of one signal, newest first.
+     *
+     * @param identifier The identifier of the vehicle.
+     * @param signal The signal id.
+     * @param resolution The length of the periods.
+     * @param fromTime The oldest time of the window, inclusive.
+     * @param beforeTime The start of the last period of the previous page, or NEWEST for the first page.
+     * @param size The largest number of periods in the page.
+     * @param listener The listener receiving the page.
+     * @return A future that can be used to cancel the read.
+     */
+    public Future<?> loadTrend(final String identifier, final int signal, final Resolution resolution, final long fromTime,
+	    final long beforeTime, final int size, final Listener listener){
+	return mExecutor.submit(new Runnable() {
+	    public void run(){
+		listener.onPage(readTrend(identifier, signal, resolution, fromTime, beforeTime, size));
+	    }
+	});
+    }
+    //End loadTrend
+
+    /**
+     * Stops the repository thread. Reads already queued still run.
+     */
+    public void close(){
+	mExecutor.shutdown();
+    }
+    //End close
+
+    /**
+     * Reads a page of raw samples. Runs on the repository thread.
+     */
+    private Page readSamples(String identifier, int signal, long fromTime, long beforeTime, long beforeId, int size){
+	Cursor cursor = null;
+	try {
+	    SQLiteDatabase db = mHelper.getReadableDatabase();
+
+	    //The time bound lets the index seek straight to the page, the id bound breaks ties between rows of the same time
+	    String where = sampleVehicle + " = (SELECT " + _ID + " FROM " + TABLE_USERVEHICLES + " WHERE " + vehicleId + " = ?) AND "
+		    + sampleSignal + " = ? AND " + sampleTime + " >= ? AND " + sampleTime + " <= ? AND "
+		    + "(" + sampleTime + " < ? OR " + _ID + " < ?)";
+	    String args[] = {identifier, String.valueOf(signal), String.valueOf(fromTime), String.valueOf(beforeTime),
+		    String.valueOf(beforeTime), String.valueOf(beforeId)};
+	    cursor = db.query(TABLE_SAMPLES, new String[] {_ID, sampleTime, sampleValue}, where, args, null, null,
+		    sampleTime + " DESC, " + _ID + " DESC", String.valueOf(size));
+
+	    Page page = new Page(size, false);
+	    while(cursor.moveToNext() && page.count < size){
+		int i = page.count++;
+		page.ids[i] = cursor.getLong(0);
+		page.times[i] = cursor.getLong(1);
+		page.values[i] = cursor.getFloat(2);
+	    }
+	    //End while
+	    return page;
+	}
+	catch (Exception e){
+	    Log.e(TAG, "Unable to read samples. "+e.getMessage(), e.getCause());
+	    return null;
+	}
+	finally {
+	    if(cursor != null){
+		cursor.close();
+	    }
+	    //End if
+	}
+	//End try/catch/finally
+    }
+    //End readSamples
+
+    /**
+     * Reads a page of rollup periods. Runs on the repository thread.
+     */
+    private Page readTrend(String identifier, int signal, Resolution resolution, long fromTime, long beforeTime, int size){
+	Cursor cursor = null;
+	try {
+	    SQLiteDatabase db = mHelper.getReadableDatabase();
+	    String table = resolution == Resolution.HOUR ? TABLE_ROLLUP_HOUR : TABLE_ROLLUP_MINUTE;
+
+	    //Periods are unique per vehicle and signal, so the bucket alone is the key
+	    String where = rollupVehicle + " = (SELECT " + _ID + " FROM " + TABLE_USERVEHICLES + " WHERE " + vehicleId + " = ?) AND "
+		    + rollupSignal + " = ? AND " + rollupBucket + " >= ? AND " + rollupBucket + " < ?";
+	    String args[] = {identifier, String.valueOf(signal), String.valueOf(fromTime), String.valueOf(beforeTime)};
+	    cursor = db.query(table, new String[] {rollupBucket, rollupTotal + " / " + rollupCount, rollupMin, rollupMax}, where, args,
+		    null, null, rollupBucket + " DESC", String.valueOf(size));
+
+	    Page page = new Page(size, true);
+	    while(cursor.moveToNext() && page.count < size){
+		int i = page.count++;
+		page.times[i] = cursor.getLong(0);
+		page.ids[i] = page.times[i];
+		page.values[i] = cursor.getFloat(1);
+		page.minimums[i] = cursor.getFloat(2);
+		page.maximums[i] = cursor.getFloat(3);
+	    }
+	    //End while
+	    return page;
+	}
+	catch (Exception e){
+	    Log.e(TAG, "Unable to read trend. "+e.getMessage(), e.getCause());
+	    return null;
+	}
+	finally {
+	    if(cursor != null){
+		cursor.close();
+	    }
+	    //End if
+	}
+	//End try/catch/finally
+    }
+    //End readTrend
+}
+//End HistoryRepository
@@ -0,0 +1,308 @@
+package com.vroom;
+
+import java.util.Arrays;
+
+/**
+ * LatencyTuner measures how long the ECU takes to answer each command and tunes the ELM327 response timeout to match.
+ * <p>
+ * Without tuning the adapter waits its full default timeout (about 200 ms) after the last answer in case another ECU
+ * replies, and a request nobody answers stalls the poll loop for just as long. The tuner keeps a smoothed round trip
+ * time and its deviation for every command, measured from the moment the request is written to the moment the first
+ * answer line arrives, and derives an AT ST value from the slowest of them. Once enough samples are in it switches
+ * the adapter to AT AT0 so that timeout is used as is.
+ * <p>
+ * On links where a single ECU answers, requests can also carry the expected number of responses (010C1), which lets
+ * the adapter return as soon as the answer arrives instead of waiting for the timeout at all. Adapters that reject
+ * the suffix turn it off for good. Vehicles with more than one responding ECU turn it off for the connection; they
+ * are counted in the answer to 0100, which is sent without the suffix on every connect, since with it the adapter
+ * stops listening after the first ECU.
+ * <p>
+ * The learned timings can be saved to and restored from a short string so they can be kept per adapter.
+ * The tuner is not thread safe.
+ *
+ * @version 1
+ *
+ * @see Monitor
+ */
+public class LatencyTuner {
+
+    /**
+     * The ELM327 AT ST unit in milliseconds.
+     */
+    public static final int ST_UNIT_MILLIS = 4;
+
+    /**
+     * The adapter's default AT ST value (about 200 ms).
+     */
+    public static final int DEFAULT_ST = 0x32;
+
+    //Bounds on the tuned timeout, in AT ST units
+    private static final int MIN_ST = 0x05;
+    private static final int MAX_ST = 0xFF;
+
+    //Samples needed before the first tuning and between two tunings
+    private static final int SAMPLES_PER_TUNE = 16;
+
+    //Safety factor on top of the smoothed round trip plus four deviations
+    private static final double MARGIN = 1.25;
+
+    private final double mSmoothed[];
+    private final double mDeviation[];
+    private final long mSamples[];
+
+    //The current and the wanted AT ST values
+    private int mCurrentSt = DEFAULT_ST;
+    private int mWantedSt = DEFAULT_ST;
+    private boolean mAdaptiveOff;
+    private int mSamplesSinceTune;
+
+    //Whether the adapter takes the response count, and whether more than one ECU may answer on this connection
+    private boolean mResponseCount = true;
+    private boolean mMultipleResponders = true;
+
+    //The commands in the request waiting for its first answer
+    private long mSentNanos = -1;
+    private final int mPending[];
+    private int mPendingCount;
+
+    /**
+     * Constructor.
+     *
+     * @param commands The number of commands whose round trip is measured.
+     */
+    public LatencyTuner(int commands){
+	mSmoothed = new double[commands];
+	mDeviation = new double[commands];
+	mSamples = new long[commands];
+	mPending = new int[commands];
+    }
+    //End LatencyTuner
+
+    /**
+     * Records that a request for the given commands has just been written.
+     *
+     * @param commands The indexes of the commands in the request.
+     * @param count The number of indexes used from the array.
+     * @param nanos The time of the write from System.nanoTime().
+     */
+    public void onSent(int commands[], int count, long nanos){
+	mPendingCount = Math.min(count, mPending.length);
+	System.arraycopy(commands, 0, mPending, 0, mPendingCount);
+	mSentNanos = nanos;
+    }
+    //End onSent
+
+    /**
+     * Records the arrival of the first answer line to the outstanding request. Later lines are ignored.
+     *
+     * @param nanos The arrival time from System.nanoTime().
+     */
+    public void onFirstAnswer(long nanos){
+	if(mSentNanos < 0){
+	    return;
+	}
+	//End if
+
+	double rtt = (nanos - mSentNanos) / 1000000.0;
+	mSentNanos = -1;
+	for(int k = 0; k < mPendingCount; k++){
+	    int i = mPending[k];
+	    if(mSamples[i] == 0){
+		mSmoothed[i] = rtt;
+		mDeviation[i] = rtt / 2;
+	    }
+	    else {
+		mDeviation[i] += 0.25 * (Math.abs(rtt - mSmoothed[i]) - mDeviation[i]);
+		mSmoothed[i] += 0.125 * (rtt - mSmoothed[i]);
+	    }
+	    //End if/else
+	    mSamples[i]++;
+	}
+	//End for
+
+	if(++mSamplesSinceTune >= SAMPLES_PER_TUNE){
+	    mSamplesSinceTune = 0;
+	    retune();
+	}
+	//End if
+    }
+    //End onFirstAnswer
+
+    /**
+     * Records that the outstanding request got no answer at all.
+     * <p>
+     * If the commands in it have answered before, the timeout is probably too tight and is doubled.
+     * Commands that never answered are most likely not supported and say nothing about the timeout.
+     */
+    public void onNoAnswer(){
+	if(mSentNanos < 0){
+	    return;
+	}
+	//End if
+	mSentNanos = -1;
+
+	boolean answeredBefore = false;
+	for(int k = 0; k < mPendingCount; k++){
+	    answeredBefore |= mSamples[mPending[k]] > 0;
+	}
+	//End for
+	if(mAdaptiveOff && answeredBefore){
+	    mWantedSt = Math.min(MAX_ST, Math.max(mWantedSt, mCurrentSt) * 2);
+	    mSamplesSinceTune = 0;
+	}
+	//End if
+    }
+    //End onNoAnswer
+
+    /**
+     * Records how many ECUs answered a request sent without a response count. Until this is called on a connection,
+     * more than one is assumed.
+     *
+     * @param responders The number of ECUs that answered.
+     */
+    public void onResponders(int responders){
+	mMultipleResponders = responders != 1;
+    }
+    //End onResponders
+
+    /**
+     * Records that the adapter did not understand a request with a response count.
+     */
+    public void onResponseCountRejected(){
+	mResponseCount = false;
+    }
+    //End onResponseCountRejected
+
+    /**
+     * Returns true if single frame requests should carry the expected response count.
+     */
+    public boolean useResponseCount(){
+	return mResponseCount && !mMultipleResponders;
+    }
+    //End useResponseCount
+
+    /**
+     * Returns the next AT command needed to bring the adapter in line with the tuned timing, or null if it is up to date.
+     * The command is assumed to be sent as soon as it is returned.
+     */
+    public String nextCommand(){
+	if(mWantedSt == mCurrentSt){
+	    return null;
+	}
+	//End if
+	if(!mAdaptiveOff){
+	    mAdaptiveOff = true;
+	    return "ATAT0\r";
+	}
+	//End if
+	mCurrentSt = mWantedSt;
+	return "ATST" + toHex(mCurrentSt) + "\r";
+    }
+    //End nextCommand
+
+    /**
+     * Forgets what the adapter has been told. Called on every new connection, since adapters reset their timing.
+     */
+    public void onConnect(){
+	mCurrentSt = DEFAULT_ST;
+	mAdaptiveOff = false;
+	mSentNanos = -1;
+	mMultipleResponders = true;
+    }
+    //End onConnect
+
+    /**
+     * Returns the tuned timeout in milliseconds.
+     */
+    public int getTimeoutMillis(){
+	return mWantedSt * ST_UNIT_MILLIS;
+    }
+    //End getTimeoutMillis
+
+    /**
+     * Returns the smoothed round trip time of command i in milliseconds, or 0 before it has been measured.
+     */
+    public double getRoundTripMillis(int i){
+	return mSmoothed[i];
+    }
+    //End getRoundTripMillis
+
+    /**
+     * Saves the learned timings as a short string.
+     */
+    public String save(){
+	return "st=" + mWantedSt + ";rc=" + (mResponseCount ? 1 : 0);
+    }
+    //End save
+
+    /**
+     * Forgets everything learned on another adapter, then restores timings written by save. Unknown or malformed
+     * entries are ignored.
+     *
+     * @param saved The saved string. May be null, which leaves the defaults.
+     */
+    public void restore(String saved){
+	mWantedSt = DEFAULT_ST;
+	mResponseCount = true;
+	mSamplesSinceTune = 0;
+	Arrays.fill(mSmoothed, 0);
+	Arrays.fill(mDeviation, 0);
+	Arrays.fill(mSamples, 0);
+	if(saved == null){
+	    return;
+	}
+	//End if
+	String entries[] = saved.split(";");
+	for(int i = 0; i < entries.length; i++){
+	    try {
+		if(entries[i].startsWith("st=")){
+		    mWantedSt = Math.max(MIN_ST, Math.min(MAX_ST, Integer.parseInt(entries[i].substring(3))));
+		}
+		else if(entries[i].startsWith("rc=")){
+		    mResponseCount = entries[i].substring(3).equals("1");
+		}
+		//End if/else
+	    }
+	    catch (NumberFormatException e){
+		//Keep the defaults for anything that can not be read
+	    }
+	    //End try/catch
+	}
+	//End for
+    }
+    //End restore
+
+    /**
+     * Derives the wanted AT ST value from the slowest measured command.
+     */
+    private void retune(){
+	double worst = 0;
+	for(int i = 0; i < mSmoothed.length; i++){
+	    if(mSamples[i] > 0){
+		worst = Math.max(worst, mSmoothed[i] + 4 * mDeviation[i]);
+	    }
+	}
+	//End for
+	if(worst <= 0){
+	    return;
+	}
+	//End if
+
+	int st = (int) Math.ceil(worst * MARGIN / ST_UNIT_MILLIS);
+	st = Math.max(MIN_ST, Math.min(MAX_ST, st));
+
+	//Avoid chatting with the adapter over small changes
+	if(Math.abs(st - mWantedSt) >= 2){
+	    mWantedSt = st;
+	}
+	//End if
+    }
+    //End retune
+
+    private static String toHex(int value){
+	String hex = Integer.toHexString(value).toUpperCase();
+	return hex.length() < 2 ? "0" + hex : hex;
+    }
+    //End toHex
+}
+//End LatencyTuner
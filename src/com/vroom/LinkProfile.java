@@ -0,0 +1,161 @@
+package com.vroom;
+
+/**
+ * LinkProfile is a set of the ELM327 formatting settings that decide how many bytes every answer costs on the link:
+ * command echo (ATE), line feeds (ATL), spaces between bytes (ATS) and headers (ATH).
+ * <p>
+ * {@link #LEAN} turns all four off, which is the least the parser can work with: no echo line before every answer,
+ * a bare carriage return after every line and two hex digits per byte. {@link #STANDARD} is the set up used before,
+ * with echo on, and {@link #VERBOSE} is the factory setting, the easiest to read in the adapter traffic view. Headers
+ * stay off in every profile, since the batcher and the decoders read answers without them. The bus monitor turns them
+ * on for itself.
+ * <p>
+ * A profile also measures the answers received while it is in use: the bytes and the time from request to prompt.
+ * The measurements are kept for as long as the process runs, so profiles can be compared one after another.
+ * <p>
+ * A profile is only used from one session thread at a time. Its measurements may be read from any thread.
+ *
+ * @version 1
+ *
+ * @see ObdSession
+ */
+public class LinkProfile {
+
+    public static final LinkProfile LEAN = new LinkProfile("lean", false, false, false);
+    public static final LinkProfile STANDARD = new LinkProfile("standard", true, false, false);
+    public static final LinkProfile VERBOSE = new LinkProfile("verbose", true, true, true);
+
+    private static final LinkProfile PROFILES[] = {LEAN, STANDARD, VERBOSE};
+
+    private final String mName;
+    private final boolean mEcho;
+    private final boolean mLinefeeds;
+    private final boolean mSpaces;
+    private final String mCommands[];
+
+    //Measurements of the answers received with this profile
+    private long mAnswers;
+    private long mBytes;
+    private long mNanos;
+
+    private LinkProfile(String name, boolean echo, boolean linefeeds, boolean spaces){
+	mName = name;
+	mEcho = echo;
+	mLinefeeds = linefeeds;
+	mSpaces = spaces;
+	mCommands = new String[] {echo ? "ATE1" : "ATE0", linefeeds ? "ATL1" : "ATL0", spaces ? "ATS1" : "ATS0", "ATH0"};
+    }
+    //End LinkProfile
+
+    /**
+     * Returns the profile with the given name, or LEAN if there is none.
+     */
+    public static LinkProfile forName(String name){
+	for(int i = 0; i < PROFILES.length; i++){
+	    if(PROFILES[i].mName.equals(name)){
+		return PROFILES[i];
+	    }
+	    //End if
+	}
+	//End for
+	return LEAN;
+    }
+    //End forName
+
+    /**
+     * Returns the name of the profile.
+     */
+    public String getName(){
+	return mName;
+    }
+    //End getName
+
+    /**
+     * Returns the AT commands that apply the profile, without carriage returns.
+     */
+    public String[] getCommands(){
+	return mCommands.clone();
+    }
+    //End getCommands
+
+    /**
+     * Returns true if the adapter repeats every command before its answer.
+     */
+    public boolean hasEcho(){
+	return mEcho;
+    }
+    //End hasEcho
+
+    /**
+     * Returns true if every line ends with a line feed as well as a carriage return.
+     */
+    public boolean hasLinefeeds(){
+	return mLinefeeds;
+    }
+    //End hasLinefeeds
+
+    /**
+     * Returns true if the bytes of an answer are separated by spaces.
+     */
+    public boolean hasSpaces(){
+	return mSpaces;
+    }
+    //End hasSpaces
+
+    /**
+     * Records an answer received with this profile.
+     *
+     * @param bytes The number of bytes received for the answer, the echo and the prompt included.
+     * @param nanos The time from writing the request to the prompt.
+     */
+    public synchronized void onAnswer(int bytes, long nanos){
+	mAnswers++;
+	mBytes += bytes;
+	mNanos += nanos;
+    }
+    //End onAnswer
+
+    /**
+     * Returns the average number of bytes per answer, or 0 before the first one.
+     */
+    public synchronized double getBytesPerAnswer(){
+	return mAnswers > 0 ? (double) mBytes / mAnswers : 0;
+    }
+    //End getBytesPerAnswer
+
+    /**
+     * Returns the average time per answer in milliseconds, or 0 before the first one.
+     */
+    public synchronized double getMillisPerAnswer(){
+	return mAnswers > 0 ? mNanos / 1000000.0 / mAnswers : 0;
+    }
+    //End getMillisPerAnswer
+
+    /**
+     * Returns the measurements of every profile that has been used, such as "lean 14.0 bytes 31.2 ms (812)".
+     */
+    public static String report(){
+	StringBuilder report = new StringBuilder();
+	for(int i = 0; i < PROFILES.length; i++){
+	    LinkProfile profile = PROFILES[i];
+	    synchronized(profile){
+		if(profile.mAnswers == 0){
+		    continue;
+		}
+		//End if
+		if(report.length() > 0){
+		    report.append(", ");
+		}
+		//End if
+		report.append(profile.mName).append(' ');
+		report.append(Math.round(profile.getBytesPerAnswer() * 10) / 10.0).append(" bytes ");
+		report.append(Math.round(profile.getMillisPerAnswer() * 10) / 10.0).append(" ms (");
+		report.append(profile.mAnswers).append(')');
+	    }
+	}
+	//End for
+	return report.toString();
+    }
+    //End report
+}
+//End LinkProfile
\ No newline at end of file
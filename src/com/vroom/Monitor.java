@@ -1,765 +1,1004 @@
-package com.vroom;
-
-import static android.provider.BaseColumns._ID;
-import static com.vroom.Constants.TABLE_USERHISTORY;
-import static com.vroom.Constants.historyId;
-import static com.vroom.Constants.rpm;
-import static com.vroom.Constants.temperature;
-import static com.vroom.Constants.troubleCode;
-import static com.vroom.Constants.voltage;
-import static com.vroom.Constants.timestamp;
-import static com.vroom.Constants.DEVICE_LIST_ACTIVITY_ID;
-import static com.vroom.DeviceSettings.OPT_MAC_DEF;
-
-import com.vroom.BluetoothHelper;
-import com.vroom.BluetoothHandler;
-import com.vroom.BluetoothHelper.State;
-import com.vroom.DeviceSettings;
-
-import com.vroom.DatabaseHelper;
-import android.app.Activity;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.content.ContentValues;
-import android.content.Intent;
-import android.content.SharedPreferences;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.os.Bundle;
-import android.os.Message;
-import android.util.Log;
-import android.view.Menu;
-import android.view.MenuInflater;
-import android.view.MenuItem;
-import android.widget.ArrayAdapter;
-import android.widget.ListView;
-
-
-public class Monitor extends Activity {
-
-    //Debug information
-    private final String TAG = "Monitor";
-    
-    /**
-     * The database helper controls the connection between monitor and the database.
-     */
-    private DatabaseHelper history;
-    /**
-     * Bluetooth helper controls the Bluetooth communication
-     */
-    private BluetoothHelper device;
-    
-    /**
-     * A string used to store output buffer.
-     */
-    private String outPutString;
-    
-    /**
-     * Array adapter to push the outPutString
-     */
-    private ArrayAdapter<String> mConversationArrayAdapter;
-    
-    /**
-     * View associated with he output
-     */
-    private ListView mConversationView;
-    
-    /**
-     * List of control commands to send to the device.
-     */
-    private String controlCommands[] = {"E1","S0","@2"};
-    
-    /** 
-     * List of OBD commands to send to the device.
-     * <p>
-     * Paired with obdTitles for easier processing. The order of the commands must match.
-     */
-    private String obdCommands[] = {"0105", "010C", "03" };
-    
-    /**
-     * List of OBD titles for commands.
-     * <p>
-     * Paired with obdCommands for easier processing. The order of the commands must match.
-     */
-    private enum obdTitles {
-	TEMPERATURE, 
-	RPM, 
-	TROUBLECODE;
-    }
-    
-    private int oControlNumber = -1;
-    private int runNumber;
-    private String vehicleSerial;
-    private static final String OPT_VEHILCEID = "vehicle_id";
-
-    
-    /**
-     * onCreate is called when the class is first created.
-     * It sets the content view, prepares the database, builds the bluetooth helper, and sets up graphing. 
-     * 
-     * @author Neale Petrillo
-     * @version 2, 3/3/2011
-     * 
-     * @see DatabaseHelper
-     * @see Monitor
-     * @see BluetoothHelper
-     * 
-     * @throws none
-     */
-	@Override
-	protected void onCreate(Bundle savedInstanceState) {
-	    
-	    	//Setup the views
-		super.onCreate(savedInstanceState);
-		setContentView(R.layout.monitor);
-		
-		final Object savedData = getLastNonConfigurationInstance();
-		
-	        // Initialize the array adapter for the conversation thread
-	        mConversationArrayAdapter = new ArrayAdapter<String>(this, R.layout.message);
-	        
-	        //If there's saved conversation from a previous state load it
-	        if(savedData != null){
-	            String tmpArray[] = (String[])savedData;
-	            
-	            for(int i=0; i<tmpArray.length; i++)
-	            {
-	        	mConversationArrayAdapter.add(tmpArray[i]);
-	            }//End for
-	        }//End if
-	        
-	        mConversationView = (ListView) findViewById(R.id.monitor_update);
-	        mConversationView.setAdapter(mConversationArrayAdapter);
-		
-		//Setup local variables
-		history = new DatabaseHelper(this);
-		device = new BluetoothHelper(this, handler);
-		outPutString = "";
-		runNumber = 0;
-		vehicleSerial="";
-		
-		updateCode("123450", "123450");
-		vehicleSerial="123450";
-		
-	}
-	//End onCreate
-	    
-	    private void updateRPM(String vehicleId, int revs){
-		//Get the writable database
-		Log.v(TAG, "Getting writeable database");
-		SQLiteDatabase db = history.getWritableDatabase();
-		
-		try{
-		    ContentValues values = new ContentValues();
-		    values.put(historyId, vehicleId);
-		    values.put(rpm, revs);
-		    db.insertOrThrow(TABLE_USERHISTORY, null, values);
-		    db.close();			    
-		}
-		catch (Exception e){
-		    Log.e(TAG, "Unable to update history via updateRPM. "+e.getMessage(), e.getCause());
-		}
-		finally {
-		    db.close();
-		}
-	    }//End updateRPM
-	    
-	    private void updateTEMP(String vehicleId, int tempe){
-		//Get the writable database
-		Log.v(TAG, "Getting writeable database");
-		SQLiteDatabase db = history.getWritableDatabase();
-		
-		try {
-		    ContentValues values = new ContentValues();
-		    values.put(historyId, vehicleId);
-		    values.put(temperature, tempe);
-		    db.insertOrThrow(TABLE_USERHISTORY, null, values);
-		    db.close();			    
-		}
-		catch (Exception e) {
-		    Log.e(TAG, "Unable to update history via updateTEMP. "+e.getMessage(), e.getCause());
-		    
-		}
-		finally {
-		    db.close();
-		}
-	    }//End updateTEMP
-	    
-	    private void updateCode(String vehicleId, String code){
-		//Get the writable database
-		Log.v(TAG, "Getting writeable database");
-		SQLiteDatabase db = history.getWritableDatabase();
-		
-		try{
-		    ContentValues values = new ContentValues();
-		    values.put(historyId, vehicleId);
-		    values.put(troubleCode, code);
-		    db.insertOrThrow(TABLE_USERHISTORY, null, values);
-		    db.close();	
-		}
-		catch(Exception e){
-		    Log.e(TAG, "Unable to update history via updateVOLT. "+e.toString(), e.getCause());
-		}
-		finally {
-		    db.close();
-		}
-	    }
-	    
-	    /**
-	     * getHistory retrieves the entire history stored in memory.
-	     * 
-	     * The returned cursor is ordered according to the recorded timestamp (most recent items first).
-	     * <p>
-	     * This function was depreciated in favor of at time processing for performance purposes. 
-	     * Future releases may use it to display vehicle performance histories. 
-	     * 
-	     * @author Neale Petrillo
-	     * @version 1, 2/23/2011
-	     * 
-	     * @param vehicleId The id of the vehicle to be looked up
-	     * @return A cursor with the database query results. There is no limit on the returned size.
-	     * @deprecated
-	     */
-	    @SuppressWarnings("unused")
-	    private Cursor getHistory(String vehicleId){
-		
-		final String[] FROM = {_ID, historyId, rpm, temperature, troubleCode, voltage,timestamp,};
-		final String ORDER_BY = timestamp + " DESC";
-		
-		
-		SQLiteDatabase db = history.getReadableDatabase();
-		Cursor cursor = db.query(TABLE_USERHISTORY, FROM, historyId + "=" + vehicleId, null, null, null, ORDER_BY);
-		startManagingCursor(cursor);
-		return cursor;
-
-	    }
-	    //End getHistory
-	    
-	    /**
-	     * Method called when a child activity returns. 
-	     * <p>
-	     * Most notably this function is called when the DeviceListActivity pairs a device.
-	     * 
-	     * @author Neale Petrillo
-	     * @version 1, 3/6/2011
-	     * 
-	     * @param requestCode The code with which the child activity finished.
-	     * @param resultCode
-	     * @param data The data from the child.
-	     * 
-	     * @see DeviceListActivity
-	     */
-	     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-		 Log.v(TAG, "Recieved child activity result. Starting to parse results.");
-		 
-	         switch (requestCode) {
-	         case DEVICE_LIST_ACTIVITY_ID:
-	            Log.v(TAG, "Results orriginated form DeviceListActivity. Processing results.");
-	            if(resultCode == RESULT_OK){
-	        	Log.v(TAG, "The results are ok. Continuing processing.");
-	        	//Try to build the device to connect with
-	                // Get the device MAC address
-	                String address = data.getExtras().getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
-	                
-	                //Store the address in the settings
-	                getPreferences(MODE_PRIVATE).edit().putString(OPT_MAC_DEF, address).commit();
-	                
-	                // Get the BluetoothDevice object
-	                BluetoothDevice foreignDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-	                Log.v(TAG, "Trying to connect to the newly built device.");
-	                //Pass the new device to the connect function
-	                device.connect(foreignDevice);
-	            }
-	            else {
-	        	Log.e(TAG, "There was an error when returning the result set. There should probably be some kind of error management here.");
-	            }
-	            //End if/else
-	            break;
-	            
-	         default:
-	             Log.e(TAG, "Unable to find correstponding child activity. Killing process.");
-	             break;
-	         }
-	         //End switch
-	     }
-	     //End onActivityResult
-	      
-	    
-	    /**
-	     * The handler that gets information back from the BluetoothHandler.
-	     * <p>
-	     * Determines message type then processes the results either through publishing a message or calling the process results function.
-	     * 
-	     * @author Neale Petrillo
-	     * @version 4, 3/20/2011
-	     */
-	    private final BluetoothHandler handler = new BluetoothHandler() {
-	        @Override
-	        public void handleMessage(Message msg) {
-	            
-	            try{
-	        	//Get the message type
-	        	int messageType = msg.what;
-	        	
-	        	//Find the type of message it is
-	        	if(messageType == BluetoothHandler.MessageType.STATE.ordinal()){   
-	        	    try{
-	        		String txt = msg.obj.toString();	
-		        	mConversationArrayAdapter.add("Changing state to: "+txt + "\n");
-	        	    }
-	        	    catch(Exception e){
-	        		Log.e(TAG, "Error notifying monitor UI. "+e.getMessage(), e.getCause());
-	        		mConversationArrayAdapter.add("Error running the state routine.");
-	        	    }
-	        	    
-	        	}else if (messageType == BluetoothHandler.MessageType.DEVICE.ordinal()){
-	        	  
-	        	    try{
-	        		String txt = msg.obj.toString();
-	        		mConversationArrayAdapter.add("Connected to "+txt + "\n");
-	        		//Write something to get the process started
-	        		device.write("\r".getBytes());
-	        	    }
-	        	    catch(Exception e){
-	        		Log.e(TAG, "Exception running the device output. "+e.toString(), e.getCause());
-	        		mConversationArrayAdapter.add("Error running the device routine.");
-	        	    }
-	        	    //End try/catch
-	        	    
-	        	}else if (messageType == BluetoothHandler.MessageType.NOTIFY.ordinal()){
-	        	    try{
-	        		String txt = msg.obj.toString();
-		        	mConversationArrayAdapter.add(txt + "\n");
-	        	    }
-	        	    catch(Exception e){
-	        		Log.e(TAG, "Exception while sending notify command. "+e.toString());
-	        		mConversationArrayAdapter.add("Error running the notify routine.");
-	        	    }
-	        	    //End try/catch
-	        	    
-	        	}else if (messageType == BluetoothHandler.MessageType.READ.ordinal()){
-	        	    //-------------------------------------------------------------------------------------------------------------------- Read Message
-	        	    try{
-		                    byte[] readBuf = (byte[]) msg.obj;
-			               
-		                    // Construct a string from the valid bytes in the buffer
-		                    String readMessage = new String(readBuf, 0, msg.arg1);
-		                    
-		                    mConversationArrayAdapter.add("Recieved: "+readMessage);
-		                    
-		                    /*
-		                     * They message will come in who knows what form with each part separated by \r
-		                     * The standby character (>) comes in an irregular form with the \r first (\r>). This may not be true for all devices.
-		                     * If the message does not end with a \r> or a >\r then we need to keep building the response. 
-		                     * After we receive the character then we know the that we've found the end of the response and the device is waiting. 
-		                     */
-		                    outPutString  = outPutString + readMessage;
-		                    
-		                    if(readMessage.endsWith(">\r")||readMessage.endsWith("\r>")){
-			                
-		                	//Split the string into individual messages
-			               String readMessages[] = outPutString.split("\\r");
-			                   
-			              //Call the handling function on each message.
-			              for(int i = 0; i<readMessages.length; i++){
-			        	  
-			        	  //If the current message is not null or blank then we can handle it.
-			        	  if(readMessages[i].length() > 0 && readMessages[i] != " "){
-			        	      mConversationArrayAdapter.add("Handeling: "+readMessages[i]);
-			        	      handleResponse(readMessages[i]);
-			        	  }
-			        	  //End if
-			              }		
-			              //End for
-			              
-			              //Reset the buffer
-			              outPutString = "";
-		                    }
-		                    //End if
-	        	    }
-	        	    catch (Exception e){
-	        		Log.e(TAG, "Error running the send/recieve routine. "+e.toString(),e.getCause());
-	        		mConversationArrayAdapter.add("Error running the read routine.");
-	        	    }
-	        	    //End try/catch
-	        	    
-	        	}else if (messageType == BluetoothHandler.MessageType.WRITE.ordinal()){
-	        	  //-------------------------------------------------------------------------------------------------------------------- Write Message
-	        	    try{
-	        		mConversationArrayAdapter.add("Writing: " + msg.obj.toString());
-	        	    }
-	        	    catch (Exception e){
-	        		Log.e(TAG, "Error running the output routine. "+e.toString(),e.getCause());
-	        		mConversationArrayAdapter.add("Error running the write routine.");
-	        	    }
-	        	    //End try/catch
-	        	}else {
-	        	    Log.e(TAG, "Unknown message type recieved.");
-	        	}//End if/else
-	            }
-	            catch (Exception e){
-	        	Log.e(TAG, "Error managing returned message in handleMessage. "+e.toString(), e.getCause());
-	            }//End try/catch
-	            
-	        }//End handleMessage
-	    };//End BluetoothHandler
-	    
-	    /**
-	     * Sends the at command corresponding with ordinal value i.
-	     * 
-	     * @author Neale Petrillo
-	     * @version 1, 3/10/2011
-	     * 
-	     * @param elmDevice The device to send the message to.
-	     * @param i The AT command to send
-	     */
-	    private void sendAtCommand(BluetoothHelper elmDevice, int i){
-		if(i < controlCommands.length && i >-1){
-		    try{
-			mConversationArrayAdapter.add("Sending AT command.");
-			elmDevice.write(("AT"+controlCommands[i]+(char)0x000D).getBytes());
-		    }
-		    catch (Exception e){
-			Log.e(TAG, "Unable to setup adapter.");
-			mConversationArrayAdapter.add("Error sending AT command.");
-		    }
-		    //End try/catch
-		}
-		//End if		
-	    }
-	    //End sendAtCommand
-	    
-	    /**
-	     * Sends the OBDII command corresponding to the ordinal value i.
-	     * 
-	     * @author Neale Petrillo
-	     * @version 1, 3/10/2011
-	     * 
-	     * @param device The device to send the command to
-	     * @param i The ordinal value of the command to send
-	     */
-	    private void sendOBDCommand(BluetoothHelper elmDevice, int i){
-		try {
-			if(i < obdCommands.length){
-			    mConversationArrayAdapter.add("Sending OBD command.");
-			    elmDevice.write((obdCommands[i] + (char)0x000D).getBytes());
-			}
-		}
-		catch (Exception e){
-		    Log.e(TAG, "Error sending OBD command. "+e.toString(), e.getCause());
-		    mConversationArrayAdapter.add("Error sending OBD command.");
-		}
-
-	    }//End sendOBDCommand
-	    
-	    /**
-	     * Handles a response from the device. 
-	     * <p>
-	     * Called by the handleMessage function whenever a newline character is detected (end of ELM device response). 
-	     * Checks response for completeness and updates the history. 
-	     * 
-	     * @author Neale Petrillo
-	     * @version 1, 3/13/2011
-	     * 
-	     * @param response Series of bytes received as an ELM response. 
-	     */
-	    private void handleResponse(String response){
-		try {
-		    Log.d(TAG, "Trying to handle ELM response");
-		    
-		    //Convert the response to a string of characters
-		    String stringedResponse = response.trim();
-		    
-		    /** 
-		     * The ELM chip will send a '>' when it is ready to receive. If this is the case then we can send the next OBD command or setup the device.
-		     * 
-		     * If we're just receiving a response then we need to process it. 
-		     * 
-		     * ELM OBD responses start with a 4. The next three bits identify the request that asked for the data. The rest of the bits are the requested data.
-		     */
-		    
-		    //Check to see if the first character is a control character. If it does then it's ok to send the next code.
-		    if(stringedResponse.equals(">")){
-			
-			//If it's the first run or all the ELM commands haven't been gone through we need to run them.
-			if(runNumber < controlCommands.length){
-			    sendAtCommand(device, runNumber);
-			    runNumber = runNumber + 1;
-			}
-			else if(runNumber == controlCommands.length){
-			    //Get the vehicle serial number
-			    device.write("09025\r".getBytes());
-			    runNumber = runNumber + 1;
-			}
-			else {
-			    //Send the next code
-			    oControlNumber = (oControlNumber + 1) % obdCommands.length;
-			    sendOBDCommand(device, oControlNumber);			    
-			}//End if/else
-		    }
-		    else if(stringedResponse.startsWith("4")){
-			
-			String resultCode = new String(stringedResponse.substring(1, 4));
-			resultCode = "0"+resultCode;
-			String resultData = stringedResponse.substring(4);
-			
-			//Determine the returned result
-			if (resultCode.equals("0902")){
-			    Log.d(TAG, "ELM response determined to be vehilce id. Converting and storing.");
-			    vehicleSerial = resultData;
-			    //Store the vehicle serial number in the device settings
-				//Get preferences
-				SharedPreferences prefs = getSharedPreferences("device_settings", 0);
-				prefs.edit().putString(OPT_VEHILCEID, vehicleSerial).commit();
-			    
-			    mConversationArrayAdapter.add("Vehicle ID: "+resultData);
-			}
-			else if(resultCode.equals(obdCommands[obdTitles.RPM.ordinal()])){
-			    Log.d(TAG, "ELM response determined to be RPM. Converting and storing.");
-			    
-			    int rpm = Integer.parseInt(resultData, 16);
-			    rpm = rpm / 4;
-			    updateRPM(vehicleSerial, rpm);
-			    mConversationArrayAdapter.add("RPM: "+rpm);
-			}
-			else if(resultCode.equals(obdCommands[obdTitles.TEMPERATURE.ordinal()])){
-			    Log.d(TAG, "ELM response determined to be temerpature. Converting and storing.");
-			    
-			    int tempe = Integer.parseInt(resultData, 16);
-			    tempe = tempe - 40;
-			    updateTEMP(vehicleSerial, tempe);
-			    mConversationArrayAdapter.add("TEMPERATURE: "+tempe);
-			    
-			}
-			else if(resultCode.equals(obdCommands[obdTitles.TROUBLECODE.ordinal()])){
-			    Log.d(TAG, "ELM response determined to be trouble code lookup. Converting and storing.");
-			    
-			    //Split the returned code into the three parts
-			    String codes[] = {"","",""};
-			    resultData = resultCode.substring(2) + resultData;
-			    codes[0] = resultData.substring(0, 4);
-			    codes[1] = resultData.substring(4, 8);
-			    codes[2] = resultData.substring(8);
-			    
-			    for(int i = 0; i<3; i++){
-				if(!codes[i].equals("0000")){
-				    //Decode code
-				    
-				    
-				}//End if
-			    }//End for
-			    updateCode(vehicleSerial, "0000");
-			    mConversationArrayAdapter.add("CODE");
-			    
-			}
-			//End if/else
-		    }
-		    else if(stringedResponse.equals("OK")){
-			mConversationArrayAdapter.add("AT Command Sent Succesfully");
-			
-		    }
-		    else if(stringedResponse.equals("0 DATA")){
-			mConversationArrayAdapter.add("No Data For Command. Trying the next one.");
-		    }
-		    else if(stringedResponse.equals("UNABLE TO CONNECT")){
-			mConversationArrayAdapter.add("Unable To Connect With ECU. Check Adapter And Reconnect.");
-		    }
-		    else if(stringedResponse.equals("?")){
-			mConversationArrayAdapter.add("Unable to interpret last command. ");
-		    }
-		    else if(stringedResponse.equals("SEARCHING...")){
-			mConversationArrayAdapter.add("Searching for data...");
-		    }
-		    else{
-			mConversationArrayAdapter.add("Unknown Response recieved.");
-		    }//End if/else
-		}
-		catch (Exception e){
-		    Log.e(TAG, "Error while handling elm response. "+e.toString(), e.getCause());
-		    
-		}//End try/catch
-	    }//End handleResponse
-	    
-	    /**
-	     * Called when the monitor class is paused. Saves the current data displayed and stops the Bluetooth listeners.
-	     * 
-	     * @author Neale Petrillo
-	     * @version 1, 3/21/2011
-	     */
-	    @Override
-	    protected void onPause(){
-		Log.d(TAG, "Pausing monitor.");
-		super.onPause();
-		
-		//Stop the device to save battery power.
-		device.stop();
-
-		
-		//Save the current data
-		
-	    }//End onPause
-	    
-	    /**
-	     * Called when the monitor class is stopped. Stops the device.
-	     * 
-	     * @author Neale Petrillo
-	     * @version 1, 3/21/2011
-	     */
-	    @Override
-	    protected void onStop(){
-		Log.d(TAG, "Stopping monitor.");
-		super.onStop();
-		
-		//Stop the device to save battery power.
-		device.stop();
-	    }//End onStop
-	    
-	    /**
-	     * Method called to save the current state of things during a runtime shift.
-	     * 
-	     * @author Neale Petrillo
-	     * @version 1, 3/21/2011
-	     */
-	    @SuppressWarnings("null")
-	    @Override
-	    public Object onRetainNonConfigurationInstance(){
-		String mConversationArray[] = null;
-		
-		
-		//Get all the string objects in the conversation adapter
-		for(int i = 0; i<mConversationArrayAdapter.getCount(); i++){
-		    mConversationArray[i] = mConversationArrayAdapter.getItem(i);
-		}//End for
-	
-		return mConversationArray;
-	    }
-		/**
-		 * Method called to create the options menu
-		 * <p>
-		 * onCreateOptionsMenu when the user presses the menu button. It inflates the menu/settings.xml file. 
-		 * 
-		 *  @author Neale Petrillo
-		 *  @version 1
-		 * 	@see Vroom
-		 * 	@see menu/settings.xml
-		 * 
-		 * 	@param menu The menu to inflate, type Menu
-		 * 	@return true if menu is inflated otherwise returns false on error
-		 * 	@throws none
-		 * 
-		 **/
-	    @Override
-	    public boolean onCreateOptionsMenu(Menu menu) {
-	    	//Start try/catch
-	    	try {
-	        	super.onCreateOptionsMenu(menu);
-	        	MenuInflater inflater = getMenuInflater();
-	        	inflater.inflate(R.menu.menu, menu);
-	        	
-	        	if(device.getState() == State.CONNECTED || device.getState() == State.CONNECTING){
-	        	    //Set the connect button invisible and the disconnect button visible
-		    		menu.findItem(R.id.connect_device).setVisible(false);
-		    		menu.findItem(R.id.disconnect_device).setVisible(true);
-	        	}
-	        	else{
-		    		//Hide the disconnect button and show the connect button
-		    		menu.findItem(R.id.connect_device).setVisible(true);
-		    		menu.findItem(R.id.disconnect_device).setVisible(false);
-	        	}
-	        	//End if/else
-	        	return true;
-	    	}
-	    	catch (Exception e){
-	    		Log.e(TAG, "Error occured when creating options menu: " + e.getMessage(), e.getCause());
-	    		return false;
-	    	}
-	    	//End try/catch
-	    }
-	    //End onCreateOptionsMenu
-	    
-	    /**
-	     * Method called after the menu is first created. 
-	     * <p>
-	     * Updates the menu according to the state of the device. If a device is connected a disconnect button is displayed. 
-	     * If a device isn't connected a connect button is displayed.
-	     * 
-	     * @author Neale Petrillo
-	     * @version 1, 3/9/2011
-	     */
-	    @Override
-	    public boolean onPrepareOptionsMenu(Menu menu){
-	    	try {
-	    	    
-	    	    if(device.getState() == State.CONNECTED || device.getState() == State.CONNECTING){
-	    		//Hide the connect button and show the disconnect button
-	    		menu.findItem(R.id.connect_device).setVisible(false);
-	    		menu.findItem(R.id.disconnect_device).setVisible(true);
-	    		return true;
-	    	    }
-	    	    else{
-	    		//Hide the disconnect button and show the connect button
-	    		menu.findItem(R.id.connect_device).setVisible(true);
-	    		menu.findItem(R.id.disconnect_device).setVisible(false);
-	    		return true;
-	    	    }
-	    	    //End if/else
-	    	    
-	    	}
-	    	catch (Exception e){
-	    		Log.e(TAG, "Error occured when creating options menu: " + e.getMessage(), e.getCause());
-	    		return false;
-	    	}
-	    	//End try/catch		
-	    }//End onPrepareOptionsMenu
-	    
-		/**
-		 * Method called when options menu item is selected
-		 * <p>
-		 * onOptionsItemSelected takes a menu item and does the appropriate action based on the selection. Selections
-		 * are based on the items listed in menu/settings.xml 
-		 * 
-		 *  @author Neale Petrillo
-		 *  @version 1
-		 * 	@see Vroom
-		 * 	@see menu/settings.xml
-		 * 
-		 * 	@param item The item selected, type MenuItem
-		 * 	@return true if activity is in the list otherwise returns false
-		 * 	@throws none
-		 * 
-		 **/
-	    //Start onOptionsItemSelected
-	    @Override
-	    public boolean onOptionsItemSelected(MenuItem item) {
-	    	try {
-	    	  	switch (item.getItemId()) {
-	        	case R.id.personal_settings:
-	        		startActivity(new Intent(this, PersonalSettings.class));
-	        		return true;
-	        		
-	        	case R.id.device_settings:
-	    			startActivity(new Intent(this, DeviceSettings.class));
-	    			return true;
-	        	
-	        	case R.id.connect_device:
-	        		Log.v(TAG,"Connect Button pressed. Calling DeviceListActivity.java");
-	        		Intent i = new Intent(this, DeviceListActivity.class);
-	        		startActivityForResult(i, DEVICE_LIST_ACTIVITY_ID);
-	        		return true;
-	        		
-	        	case R.id.disconnect_device:
-	        	    	device.stop();
-	        	    	return true;
-	        	default:
-	        		Log.v(TAG, "Menu item selected was not found in the onOptionsItemsSelected method. Returning false");
-	        		return false;
-	        	}//End switch
-	    	}
-	    	catch (Exception e){
-	    		Log.e(TAG,"Error when selecting menu item: " + e.getMessage(), e.getCause());
-	    		return false;
-	    	}//End try/catch
-	  
-	    }
-	    //End onOptionsItemSelected
-}//End Monitor
+package com.vroom;
+
+import static com.vroom.Constants.DEVICE_LIST_ACTIVITY_ID;
+
+import com.vroom.BluetoothHelper;
+import com.vroom.BluetoothHandler;
+import com.vroom.BluetoothHelper.State;
+import com.vroom.DeviceSettings;
+
+import com.vroom.DatabaseHelper;
+import android.app.Activity;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.ListView;
+
+
+public class Monitor extends Activity {
+
+    //Debug information
+    private final String TAG = "Monitor";
+    
+    /**
+     * The database helper controls the connection between monitor and the database.
+     */
+    private DatabaseHelper history;
+    
+    /**
+     * Writes the decoded values to the history in groups, off the UI and session threads.
+     */
+    private SampleWriter writer;
+    
+    /**
+     * The longest time in milliseconds to wait for queued values to be written on pause or disconnect.
+     */
+    private static final long FLUSH_TIMEOUT = 2000;
+    /**
+     * Bluetooth helper controls the Bluetooth communication
+     */
+    private BluetoothHelper device;
+    
+    /**
+     * Runs the conversation with the adapter off the UI thread. Decoded values come back through sessionListener.
+     */
+    private ObdSession session;
+    
+    /**
+     * Streams raw bus frames while bus monitoring is on. Takes the device over from the session until it is stopped.
+     */
+    private CanMonitor busMonitor;
+    
+    /**
+     * Time in milliseconds between two bus rate reports in the conversation view.
+     */
+    private static final long BUS_REPORT_PERIOD = 1000;
+    
+    /**
+     * Hands decoded values from the session thread to the render loop.
+     */
+    private final SampleRing samples = new SampleRing(SampleRing.DEFAULT_CAPACITY);
+    
+    /**
+     * Time in milliseconds between two frames of the render loop, about the display rate.
+     */
+    private static final long FRAME_PERIOD = 16;
+    
+    /**
+     * The gauges and charts drawn by the render loop.
+     */
+    private GaugeView gauges[];
+    private ChartView charts[];
+    
+    /**
+     * Bounded log behind the conversation view
+     */
+    private ConversationLog mConversationLog;
+    
+    /**
+     * View associated with he output
+     */
+    private ListView mConversationView;
+    
+    private volatile String vehicleSerial;
+    private static final String OPT_VEHILCEID = "vehicle_id";
+    
+    /**
+     * The session's latency tuner. Learned timings are kept per adapter MAC under OPT_LATENCY.
+     */
+    private LatencyTuner tuner;
+    private String deviceAddress;
+    private static final String OPT_LATENCY = "latency_";
+    
+    /**
+     * The way of opening the socket that last connected to each adapter, kept per adapter MAC under OPT_RFCOMM.
+     */
+    private static final String OPT_RFCOMM = "rfcomm_";
+    
+    /**
+     * What never or rarely changes about a vehicle, kept per adapter MAC: the vehicle last seen through it, and that vehicle's protocol,
+     * calibration and supported PIDs. Passed to the session on connect so it is not asked for again.
+     */
+    private VehicleInfoCache vehicleInfo;
+    
+    /**
+     * The engine and vehicle speed recorded by the last fast capture, for drag and track runs. The values also reach the gauges and the
+     * history as usual.
+     */
+    private final CaptureBuffer capture = new CaptureBuffer(CaptureBuffer.DEFAULT_CAPACITY);
+    private static final int CAPTURE_PIDS[] = {ObdSession.PID_RPM, ObdSession.PID_SPEED};
+    
+    /**
+     * The adapter kept connected, or null once disconnect is chosen. After a failed connect or a dropped link it is
+     * connected again, waiting twice as long each time from RECONNECT_MIN up to RECONNECT_MAX.
+     */
+    private String autoAddress;
+    private boolean autoConnectChecked;
+    private boolean resumed;
+    private volatile long reconnectDelay = RECONNECT_MIN;
+    private static final long RECONNECT_MIN = 1000;
+    private static final long RECONNECT_MAX = 60000;
+    
+    /**
+     * When the last connect was started and whether its first sample is still to come, for measuring the time to first sample.
+     */
+    private volatile long connectStartTime;
+    private volatile boolean firstSamplePending;
+
+    
+    /**
+     * onCreate is called when the class is first created.
+     * It sets the content view, prepares the database, builds the bluetooth helper, and sets up graphing. 
+     * 
+     * @author Neale Petrillo
+     * @version 2, 3/3/2011
+     * 
+     * @see DatabaseHelper
+     * @see Monitor
+     * @see BluetoothHelper
+     * 
+     * @throws none
+     */
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+	    
+	    	//Setup the views
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.monitor);
+		
+		final Object savedData = getLastNonConfigurationInstance();
+		
+	        // Initialize the log for the conversation thread
+	        mConversationLog = new ConversationLog(this, R.layout.message, ConversationLog.DEFAULT_CAPACITY);
+	        
+	        //If there's saved conversation from a previous state load it
+	        if(savedData != null){
+	            String tmpArray[] = (String[])savedData;
+	            
+	            for(int i=0; i<tmpArray.length; i++)
+	            {
+	        	mConversationLog.add(tmpArray[i]);
+	            }//End for
+	        }//End if
+	        
+	        mConversationView = (ListView) findViewById(R.id.monitor_update);
+	        mConversationView.setAdapter(mConversationLog);
+	        
+	        //Setup the gauges and charts
+	        gauges = new GaugeView[] {(GaugeView) findViewById(R.id.rpm_gauge), (GaugeView) findViewById(R.id.coolant_gauge)};
+	        gauges[0].setPid(0x0C, "RPM", 0, 8000);
+	        gauges[1].setPid(0x05, "Coolant", -40, 130);
+	        charts = new ChartView[] {(ChartView) findViewById(R.id.rpm_chart)};
+	        charts[0].setPid(0x0C, 0, 8000, ChartView.DEFAULT_WINDOW);
+		
+		//Setup local variables
+		history = new DatabaseHelper(this);
+		writer = new SampleWriter(history);
+		writer.start();
+		device = new BluetoothHelper(this, handler);
+		vehicleInfo = new VehicleInfoCache(this, VehicleInfoCache.DEFAULT_TTL);
+		session = new ObdSession(sessionLink, sessionListener);
+		tuner = session.getTuner();
+		busMonitor = new CanMonitor(sessionLink, CanMonitor.Policy.COALESCE);
+		device.setReceiver(sessionReceiver);
+		
+	}
+	//End onCreate
+	    
+	    /**
+	     * Method called when a child activity returns. 
+	     * <p>
+	     * Most notably this function is called when the DeviceListActivity pairs a device.
+	     * 
+	     * @author Neale Petrillo
+	     * @version 1, 3/6/2011
+	     * 
+	     * @param requestCode The code with which the child activity finished.
+	     * @param resultCode
+	     * @param data The data from the child.
+	     * 
+	     * @see DeviceListActivity
+	     */
+	     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+		 Log.v(TAG, "Recieved child activity result. Starting to parse results.");
+		 
+	         switch (requestCode) {
+	         case DEVICE_LIST_ACTIVITY_ID:
+	            Log.v(TAG, "Results orriginated form DeviceListActivity. Processing results.");
+	            if(resultCode == RESULT_OK){
+	        	Log.v(TAG, "The results are ok. Continuing processing.");
+	        	//Try to build the device to connect with
+	                // Get the device MAC address
+	                String address = data.getExtras().getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
+	                
+	                //Store the address in the settings, where auto connect finds it on the next launch
+	                DeviceSettings.setDeviceMac(this, address);
+	                
+	                reconnectDelay = RECONNECT_MIN;
+	                connectTo(address);
+	            }
+	            else {
+	        	Log.e(TAG, "There was an error when returning the result set. There should probably be some kind of error management here.");
+	            }
+	            //End if/else
+	            break;
+	            
+	         default:
+	             Log.e(TAG, "Unable to find correstponding child activity. Killing process.");
+	             break;
+	         }
+	         //End switch
+	     }
+	     
+	    /**
+	     * Connects straight to the adapter with the given MAC address, without discovery, and keeps it as the adapter to reconnect to.
+	     * 
+	     * @version 1
+	     * 
+	     * @param address The MAC address of the adapter.
+	     */
+	    private void connectTo(String address){
+		try {
+		    autoAddress = address;
+		    
+		    //Load the timings learned for this adapter
+		    SharedPreferences prefs = getSharedPreferences("device_settings", 0);
+		    deviceAddress = address;
+		    //The vehicle is not known until the session reports its serial number
+		    vehicleSerial = null;
+		    tuner.onConnect();
+		    tuner.restore(prefs.getString(OPT_LATENCY + address, null));
+		    device.getConnector().setWinner(address, prefs.getInt(OPT_RFCOMM + address, -1));
+		    
+		    //Skip the protocol search and the vehicle information requests for the vehicle last seen through this adapter
+		    restoreVehicle(address);
+		    session.setLinkProfile(LinkProfile.forName(DeviceSettings.getLinkProfile(this)));
+		    
+		    // Get the BluetoothDevice object
+		    BluetoothDevice foreignDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+		    Log.v(TAG, "Trying to connect to "+address+".");
+		    
+		    //Pass the new device to the connect function
+		    connectStartTime = SystemClock.elapsedRealtime();
+		    firstSamplePending = true;
+		    device.connect(foreignDevice);
+		}
+		catch (Exception e){
+		    Log.e(TAG, "Error connecting to the stored device. "+e.getMessage(), e.getCause());
+		    mConversationLog.add("Unable to connect to "+address+".");
+		}
+		//End try/catch
+	    }
+	    //End connectTo
+	    
+	    /**
+	     * Passes what is kept about the vehicle last seen through an adapter to the session. Everything is null if no vehicle is known.
+	     * 
+	     * @version 1
+	     * 
+	     * @param address The MAC address of the adapter.
+	     */
+	    private void restoreVehicle(String address){
+		String vehicle = vehicleInfo.get(address, "", VehicleInfoCache.VEHICLE_ID);
+		String known = vehicle != null ? vehicle : "";
+		
+		session.setProtocol(vehicleInfo.get(address, known, VehicleInfoCache.PROTOCOL));
+		session.setVehicleInfo(VehicleInfoDecoder.VEHICLE_ID, vehicle);
+		session.setVehicleInfo(VehicleInfoDecoder.CALIBRATION_ID, vehicleInfo.get(address, known, VehicleInfoCache.CALIBRATION_ID));
+		session.setVehicleInfo(VehicleInfoDecoder.CALIBRATION_CVN, vehicleInfo.get(address, known, VehicleInfoCache.CALIBRATION_CVN));
+		for(int i = 0; i < ObdSession.SUPPORTED_RANGES; i++){
+		    String supported = vehicleInfo.get(address, known, VehicleInfoCache.supportedItem(i * 0x20));
+		    session.setSupported(i * 0x20, supported != null ? Long.parseLong(supported, 16) : -1);
+		}
+		//End for
+	    }
+	    //End restoreVehicle
+	    
+	    /**
+	     * Connects to the kept adapter again after the current wait, then doubles the wait for the next time. Does nothing once disconnect is
+	     * chosen or while the monitor is not shown.
+	     * 
+	     * @version 1
+	     */
+	    private void scheduleReconnect(){
+		if(autoAddress == null || !resumed){
+		    return;
+		}
+		//End if
+		long delay = reconnectDelay;
+		reconnectDelay = Math.min(delay * 2, RECONNECT_MAX);
+		mConversationLog.add("Reconnecting in "+(delay / 1000)+" s.");
+		handler.removeCallbacks(reconnect);
+		handler.postDelayed(reconnect, delay);
+	    }
+	    //End scheduleReconnect
+	    
+	    private final Runnable reconnect = new Runnable() {
+		public void run(){
+		    State state = device.getState();
+		    if(autoAddress != null && state != State.CONNECTED && state != State.CONNECTING){
+			connectTo(autoAddress);
+		    }
+		    //End if
+		}
+		//End run
+	    };//End reconnect
+	     //End onActivityResult
+	      
+	    
+	    /**
+	     * The handler that gets information back from the BluetoothHandler.
+	     * <p>
+	     * Determines message type then processes the results either through publishing a message or calling the process results function.
+	     * 
+	     * @author Neale Petrillo
+	     * @version 4, 3/20/2011
+	     */
+	    private final BluetoothHandler handler = new BluetoothHandler() {
+	        @Override
+	        public void handleMessage(Message msg) {
+	            
+	            try{
+	        	//Get the message type
+	        	int messageType = msg.what;
+	        	
+	        	//Find the type of message it is
+	        	if(messageType == BluetoothHandler.MessageType.STATE.ordinal()){   
+	        	    try{
+	        		String txt = msg.obj.toString();	
+		        	mConversationLog.add("Changing state to: "+txt + "\n");
+		        	
+		        	//Back to listening means the connect failed or the link dropped
+		        	if(msg.obj == State.LISTEN){
+		        	    session.stop();
+		        	    cancelBusMonitor();
+		        	    scheduleReconnect();
+		        	}
+		        	//End if
+	        	    }
+	        	    catch(Exception e){
+	        		Log.e(TAG, "Error notifying monitor UI. "+e.getMessage(), e.getCause());
+	        		mConversationLog.add("Error running the state routine.");
+	        	    }
+	        	    
+	        	}else if (messageType == BluetoothHandler.MessageType.DEVICE.ordinal()){
+	        	  
+	        	    try{
+	        		String txt = msg.obj.toString();
+	        		mConversationLog.add("Connected to "+txt + " in "+(SystemClock.elapsedRealtime() - connectStartTime)+" ms.\n");
+	        		//Start the session. It writes something to get the process started.
+	        		session.start();
+	        	    }
+	        	    catch(Exception e){
+	        		Log.e(TAG, "Exception running the device output. "+e.toString(), e.getCause());
+	        		mConversationLog.add("Error running the device routine.");
+	        	    }
+	        	    //End try/catch
+	        	    
+	        	}else if (messageType == BluetoothHandler.MessageType.NOTIFY.ordinal()){
+	        	    try{
+	        		String txt = msg.obj.toString();
+		        	mConversationLog.add(txt + "\n");
+	        	    }
+	        	    catch(Exception e){
+	        		Log.e(TAG, "Exception while sending notify command. "+e.toString());
+	        		mConversationLog.add("Error running the notify routine.");
+	        	    }
+	        	    //End try/catch
+	        	    
+	        	}else if (messageType == BluetoothHandler.MessageType.READ.ordinal()){
+	        	    //-------------------------------------------------------------------------------------------------------------------- Read Message
+	        	    try{
+		                    byte[] readBuf = (byte[]) msg.obj;
+			               
+		                    // Construct a string from the valid bytes in the buffer, only if it will be shown
+		                    if(mConversationLog.isLogging(ConversationLog.Level.TRAFFIC)){
+		                	mConversationLog.add(ConversationLog.Level.TRAFFIC, "Recieved: "+new String(readBuf, 0, msg.arg1));
+		                    }
+		                    //End if
+		                    
+		                    //Reads only get here while no session receiver is set, so there is nothing to decode
+		                    device.recycle(readBuf);
+	        	    }
+	        	    catch (Exception e){
+	        		Log.e(TAG, "Error running the send/recieve routine. "+e.toString(),e.getCause());
+	        		mConversationLog.add("Error running the read routine.");
+	        	    }
+	        	    //End try/catch
+	        	    
+	        	}else if (messageType == BluetoothHandler.MessageType.WRITE.ordinal()){
+	        	  //-------------------------------------------------------------------------------------------------------------------- Write Message
+	        	    try{
+	        		if(mConversationLog.isLogging(ConversationLog.Level.TRAFFIC)){
+	        		    mConversationLog.add(ConversationLog.Level.TRAFFIC, "Writing: " + new String((byte[]) msg.obj));
+	        		}
+	        		//End if
+	        	    }
+	        	    catch (Exception e){
+	        		Log.e(TAG, "Error running the output routine. "+e.toString(),e.getCause());
+	        		mConversationLog.add("Error running the write routine.");
+	        	    }
+	        	    //End try/catch
+	        	}else {
+	        	    Log.e(TAG, "Unknown message type recieved.");
+	        	}//End if/else
+	            }
+	            catch (Exception e){
+	        	Log.e(TAG, "Error managing returned message in handleMessage. "+e.toString(), e.getCause());
+	            }//End try/catch
+	            
+	        }//End handleMessage
+	    };//End BluetoothHandler
+	    
+	    /**
+	     * Tells the session and the device whether the conversation log keeps traffic lines, so they are only built when they will be shown.
+	     * 
+	     * @version 1
+	     */
+	    private void updateTraffic(){
+		boolean traffic = mConversationLog.isLogging(ConversationLog.Level.TRAFFIC);
+		session.setTraffic(traffic);
+		device.setEchoWrites(traffic);
+	    }
+	    //End updateTraffic
+	    
+	    /**
+	     * Passes the values taken out of the sample ring to the gauges and charts showing their PID.
+	     * 
+	     * @version 1
+	     */
+	    private final SampleRing.Listener renderSamples = new SampleRing.Listener() {
+		public void onSample(int pid, float value, long timeMillis){
+		    for(int i = 0; i < gauges.length; i++){
+			if(gauges[i].getPid() == pid){
+			    gauges[i].setValue(value);
+			}
+		    }
+		    //End for
+		    for(int i = 0; i < charts.length; i++){
+			if(charts[i].getPid() == pid){
+			    charts[i].addPoint(value, timeMillis);
+			}
+		    }
+		    //End for
+		}
+		//End onSample
+	    };//End renderSamples
+	    
+	    /**
+	     * The render loop. Once per FRAME_PERIOD while the monitor is shown it drains the sample ring and redraws the gauges and charts that changed, so the
+	     * views are invalidated at most once a frame however fast the values come in.
+	     * 
+	     * @version 1
+	     */
+	    private final Runnable renderFrame = new Runnable() {
+		public void run(){
+		    samples.drain(renderSamples);
+		    for(int i = 0; i < gauges.length; i++){
+			gauges[i].refresh();
+		    }
+		    //End for
+		    for(int i = 0; i < charts.length; i++){
+			charts[i].refresh();
+		    }
+		    //End for
+		    handler.postDelayed(this, FRAME_PERIOD);
+		}
+		//End run
+	    };//End renderFrame
+	    
+	    /**
+	     * Passes the bytes read from the device straight to the session, on the reading thread.
+	     * 
+	     * @version 1
+	     */
+	    private final BluetoothHelper.Receiver sessionReceiver = new BluetoothHelper.Receiver() {
+		public void onRead(byte[] buffer, int length){
+		    session.receive(buffer, length);
+		}
+		//End onRead
+	    };//End sessionReceiver
+	    
+	    /**
+	     * Passes the bytes read from the device to the bus monitor while it runs, on the reading thread.
+	     * 
+	     * @version 1
+	     */
+	    private final BluetoothHelper.Receiver busReceiver = new BluetoothHelper.Receiver() {
+		public void onRead(byte[] buffer, int length){
+		    busMonitor.receive(buffer, length);
+		}
+		//End onRead
+	    };//End busReceiver
+	    
+	    /**
+	     * Takes the monitored frames out of the bus monitor queue. Nothing keeps raw frames yet, draining makes room for the next ones.
+	     * 
+	     * @version 1
+	     */
+	    private final CanMonitor.Listener busFrames = new CanMonitor.Listener() {
+		public void onFrame(int id, byte[] data, int offset, int length, long timeNanos){
+		}
+		//End onFrame
+	    };//End busFrames
+	    
+	    /**
+	     * Drains the bus monitor and shows the per id frame rates, once every BUS_REPORT_PERIOD while the monitor runs.
+	     * 
+	     * @version 1
+	     */
+	    private final Runnable busReport = new Runnable() {
+		public void run(){
+		    if(busMonitor.isRunning()){
+			busMonitor.drain(busFrames, Integer.MAX_VALUE);
+			mConversationLog.add("Bus: " + busMonitor.report());
+			handler.postDelayed(this, BUS_REPORT_PERIOD);
+		    }
+		    //End if
+		}
+		//End run
+	    };//End busReport
+	    
+	    /**
+	     * Switches the device between the session and the bus monitor.
+	     * 
+	     * @version 1
+	     */
+	    private void toggleBusMonitor(){
+		if(busMonitor.isRunning()){
+		    //The session takes over once the adapter is out of monitor mode
+		    busMonitor.stop(new Runnable() {
+			public void run(){
+			    device.setReceiver(sessionReceiver);
+			    session.start();
+			}
+		    });
+		}
+		else {
+		    session.stop();
+		    busMonitor.resetStatistics();
+		    device.setReceiver(busReceiver);
+		    busMonitor.start();
+		    handler.postDelayed(busReport, BUS_REPORT_PERIOD);
+		}
+		//End if/else
+	    }
+	    //End toggleBusMonitor
+	    
+	    /**
+	     * Starts a fast capture of the engine and vehicle speed, or stops the one running and reports how fast it went.
+	     * 
+	     * @version 1
+	     */
+	    private void toggleCapture(){
+		if(session.isCapturing()){
+		    session.stopCapture();
+		    mConversationLog.add("Captured "+capture.size()+" values. Engine speed read "+Math.round(capture.getRate(ObdSession.PID_RPM))
+			    +" times a second.");
+		}
+		else {
+		    //Nothing adds to the buffer between captures
+		    capture.clear();
+		    session.startCapture(CAPTURE_PIDS, capture);
+		}
+		//End if/else
+	    }
+	    //End toggleCapture
+	    
+	    /**
+	     * Drops the bus monitor without talking to the device and gives the device back to the session. Used when the device goes away.
+	     * 
+	     * @version 1
+	     */
+	    private void cancelBusMonitor(){
+		busMonitor.cancel();
+		handler.removeCallbacks(busReport);
+		device.setReceiver(sessionReceiver);
+	    }
+	    //End cancelBusMonitor
+	    
+	    /**
+	     * Lets the session write to the device and give read buffers back.
+	     * 
+	     * @version 1
+	     */
+	    private final ObdSession.Link sessionLink = new ObdSession.Link() {
+		public void write(byte[] data){
+		    device.write(data);
+		}
+		//End write
+		
+		public void recycle(byte[] buffer){
+		    device.recycle(buffer);
+		}
+		//End recycle
+	    };//End sessionLink
+	    
+	    /**
+	     * Receives what the session decodes. 
+	     * <p>
+	     * Called on the session thread, so values are stored and put in the sample ring for the gauges right away, and messages go straight to the conversation log.
+	     * 
+	     * @version 1
+	     */
+	    private final ObdSession.Listener sessionListener = new ObdSession.Listener() {
+		public void onSample(int pid, float value, long timeMillis){
+		    writer.put(vehicleSerial, pid, value, timeMillis);
+		    samples.offer(pid, value, timeMillis);
+		    
+		    if(firstSamplePending){
+			firstSamplePending = false;
+			reconnectDelay = RECONNECT_MIN;
+			long elapsed = SystemClock.elapsedRealtime() - connectStartTime;
+			Log.i(TAG, "Time to first sample: "+elapsed+" ms.");
+			mConversationLog.add("First sample "+elapsed+" ms after connecting.");
+		    }
+		    //End if
+		}
+		//End onSample
+		
+		public void onVehicleId(String vehicleId){
+		    Log.d(TAG, "ELM response determined to be vehilce id. Storing.");
+		    String previous = vehicleSerial;
+		    vehicleSerial = vehicleId;
+		    
+		    //Keep it as the vehicle last seen through this adapter
+		    String address = deviceAddress;
+		    if(address != null){
+			vehicleInfo.put(address, "", VehicleInfoCache.VEHICLE_ID, vehicleId);
+		    }
+		    //End if
+		    
+		    //Store the vehicle serial number in the device settings, only when it changes
+		    if(!vehicleId.equals(previous)){
+			SharedPreferences prefs = getSharedPreferences("device_settings", 0);
+			prefs.edit().putString(OPT_VEHILCEID, vehicleSerial).commit();
+		    }
+		    //End if
+		}
+		//End onVehicleId
+		
+		public void onVehicleInfo(int infoType, String value){
+		    //Nothing is kept while the vehicle is unknown, so it can not be filed under another vehicle
+		    String address = deviceAddress;
+		    String vehicle = vehicleSerial;
+		    if(address != null && vehicle != null){
+			vehicleInfo.put(address, vehicle, infoType == VehicleInfoDecoder.CALIBRATION_ID ? VehicleInfoCache.CALIBRATION_ID
+				: VehicleInfoCache.CALIBRATION_CVN, value);
+		    }
+		    //End if
+		}
+		//End onVehicleInfo
+		
+		public void onSupported(int base, long bitmap){
+		    String address = deviceAddress;
+		    String vehicle = vehicleSerial;
+		    if(address != null && vehicle != null){
+			vehicleInfo.put(address, vehicle, VehicleInfoCache.supportedItem(base), Long.toHexString(bitmap));
+		    }
+		    //End if
+		}
+		//End onSupported
+		
+		public void onProtocol(String protocol){
+		    //Keep the protocol for this adapter and vehicle, so the next connect does not search for it
+		    String address = deviceAddress;
+		    String vehicle = vehicleSerial;
+		    if(address != null && vehicle != null){
+			vehicleInfo.put(address, vehicle, VehicleInfoCache.PROTOCOL, protocol);
+		    }
+		    //End if
+		}
+		//End onProtocol
+		
+		public void onTroubleCode(int mode, String code){
+		    //Pending and permanent codes are only shown, the repair list holds the stored ones
+		    if(mode == TroubleCodeDecoder.MODE_STORED){
+			Log.d(TAG, "ELM response determined to be trouble code lookup. Storing.");
+			writer.putCode(vehicleSerial, code, System.currentTimeMillis());
+		    }
+		    //End if
+		}
+		//End onTroubleCode
+		
+		public void onMessage(String message){
+		    //The log can be added to from the session thread and refreshes the view itself
+		    mConversationLog.add(message);
+		}
+		//End onMessage
+	    };//End sessionListener
+	    
+	    /**
+	     * Called when the monitor class is shown. Starts the render loop, lets the conversation log refresh and, if asked for, log the adapter traffic.
+	     * 
+	     * @version 1
+	     */
+	    @Override
+	    protected void onResume(){
+		super.onResume();
+		
+		mConversationLog.setVisible(true);
+		updateTraffic();
+		
+		//Start drawing the gauges and charts
+		handler.removeCallbacks(renderFrame);
+		handler.post(renderFrame);
+		
+		//On launch pick up the last adapter if asked to, without going through the device list
+		resumed = true;
+		if(!autoConnectChecked){
+		    autoConnectChecked = true;
+		    //The address can be typed into the device settings, where it may be lower case
+		    String mac = DeviceSettings.getDeviceMac(this).trim().toUpperCase();
+		    if(DeviceSettings.getConnect(this) && BluetoothAdapter.checkBluetoothAddress(mac)){
+			autoAddress = mac;
+		    }
+		    //End if
+		}
+		//End if
+		
+		//The device is stopped while paused, so connect again
+		State state = device.getState();
+		if(autoAddress != null && state != State.CONNECTED && state != State.CONNECTING){
+		    reconnectDelay = RECONNECT_MIN;
+		    connectTo(autoAddress);
+		}
+		//End if
+	    }//End onResume
+	    
+	    /**
+	     * Called when the monitor class is paused. Saves the current data displayed and stops the Bluetooth listeners.
+	     * 
+	     * @author Neale Petrillo
+	     * @version 1, 3/21/2011
+	     */
+	    @Override
+	    protected void onPause(){
+		Log.d(TAG, "Pausing monitor.");
+		super.onPause();
+		
+		//Nobody is looking, so stop formatting the adapter traffic
+		mConversationLog.setVisible(false);
+		updateTraffic();
+		handler.removeCallbacks(renderFrame);
+		resumed = false;
+		handler.removeCallbacks(reconnect);
+		
+		//Stop the session and the device to save battery power.
+		session.stop();
+		cancelBusMonitor();
+		device.stop();
+		
+		//Make sure everything read so far is stored
+		writer.flush(FLUSH_TIMEOUT);
+		Log.i(TAG, "Sample writer: "+writer.report());
+		
+		//Keep the timings and the way of connecting learned for this adapter
+		if(deviceAddress != null){
+		    getSharedPreferences("device_settings", 0).edit().putString(OPT_LATENCY + deviceAddress, tuner.save())
+		    	.putInt(OPT_RFCOMM + deviceAddress, device.getConnector().getWinner(deviceAddress)).commit();
+		}
+		//End if
+		
+		//Save the current data
+		
+	    }//End onPause
+	    
+	    /**
+	     * Called when the monitor class is stopped. Stops the device.
+	     * 
+	     * @author Neale Petrillo
+	     * @version 1, 3/21/2011
+	     */
+	    @Override
+	    protected void onStop(){
+		Log.d(TAG, "Stopping monitor.");
+		super.onStop();
+		
+		//Stop the session and the device to save battery power.
+		session.stop();
+		cancelBusMonitor();
+		device.stop();
+	    }//End onStop
+	    
+	    /**
+	     * Called when the monitor class is destroyed. Writes what is left and stops the sample writer.
+	     * 
+	     * @version 1
+	     */
+	    @Override
+	    protected void onDestroy(){
+		Log.d(TAG, "Destroying monitor.");
+		super.onDestroy();
+		
+		writer.stop(FLUSH_TIMEOUT);
+		vehicleInfo.close();
+	    }//End onDestroy
+	    
+	    /**
+	     * Method called to save the current state of things during a runtime shift.
+	     * 
+	     * @author Neale Petrillo
+	     * @version 1, 3/21/2011
+	     */
+	    @Override
+	    public Object onRetainNonConfigurationInstance(){
+		//Get all the lines kept in the conversation log
+		return mConversationLog.getLines();
+	    }
+		/**
+		 * Method called to create the options menu
+		 * <p>
+		 * onCreateOptionsMenu when the user presses the menu button. It inflates the menu/settings.xml file. 
+		 * 
+		 *  @author Neale Petrillo
+		 *  @version 1
+		 * 	@see Vroom
+		 * 	@see menu/settings.xml
+		 * 
+		 * 	@param menu The menu to inflate, type Menu
+		 * 	@return true if menu is inflated otherwise returns false on error
+		 * 	@throws none
+		 * 
+		 **/
+	    @Override
+	    public boolean onCreateOptionsMenu(Menu menu) {
+	    	//Start try/catch
+	    	try {
+	        	super.onCreateOptionsMenu(menu);
+	        	MenuInflater inflater = getMenuInflater();
+	        	inflater.inflate(R.menu.menu, menu);
+	        	
+	        	if(device.getState() == State.CONNECTED || device.getState() == State.CONNECTING){
+	        	    //Set the connect button invisible and the disconnect button visible
+		    		menu.findItem(R.id.connect_device).setVisible(false);
+		    		menu.findItem(R.id.disconnect_device).setVisible(true);
+		    		menu.findItem(R.id.bus_monitor).setVisible(true);
+	        	}
+	        	else{
+		    		//Hide the disconnect button and show the connect button
+		    		menu.findItem(R.id.connect_device).setVisible(true);
+		    		menu.findItem(R.id.disconnect_device).setVisible(false);
+		    		menu.findItem(R.id.bus_monitor).setVisible(false);
+	        	}
+	        	//End if/else
+	        	return true;
+	    	}
+	    	catch (Exception e){
+	    		Log.e(TAG, "Error occured when creating options menu: " + e.getMessage(), e.getCause());
+	    		return false;
+	    	}
+	    	//End try/catch
+	    }
+	    //End onCreateOptionsMenu
+	    
+	    /**
+	     * Method called after the menu is first created. 
+	     * <p>
+	     * Updates the menu according to the state of the device. If a device is connected a disconnect button is displayed. 
+	     * If a device isn't connected a connect button is displayed.
+	     * 
+	     * @author Neale Petrillo
+	     * @version 1, 3/9/2011
+	     */
+	    @Override
+	    public boolean onPrepareOptionsMenu(Menu menu){
+	    	try {
+	    	    menu.findItem(R.id.adapter_traffic).setChecked(mConversationLog.getLevel() == ConversationLog.Level.TRAFFIC);
+	    	    
+	    	    if(device.getState() == State.CONNECTED || device.getState() == State.CONNECTING){
+	    		//Hide the connect button and show the disconnect button
+	    		menu.findItem(R.id.connect_device).setVisible(false);
+	    		menu.findItem(R.id.disconnect_device).setVisible(true);
+	    		menu.findItem(R.id.bus_monitor).setVisible(true);
+	    		menu.findItem(R.id.fast_capture).setVisible(true).setChecked(session.isCapturing());
+	    		return true;
+	    	    }
+	    	    else{
+	    		//Hide the disconnect button and show the connect button
+	    		menu.findItem(R.id.connect_device).setVisible(true);
+	    		menu.findItem(R.id.disconnect_device).setVisible(false);
+	    		menu.findItem(R.id.bus_monitor).setVisible(false);
+	    		menu.findItem(R.id.fast_capture).setVisible(false);
+	    		return true;
+	    	    }
+	    	    //End if/else
+	    	    
+	    	}
+	    	catch (Exception e){
+	    		Log.e(TAG, "Error occured when creating options menu: " + e.getMessage(), e.getCause());
+	    		return false;
+	    	}
+	    	//End try/catch		
+	    }//End onPrepareOptionsMenu
+	    
+		/**
+		 * Method called when options menu item is selected
+		 * <p>
+		 * onOptionsItemSelected takes a menu item and does the appropriate action based on the selection. Selections
+		 * are based on the items listed in menu/settings.xml 
+		 * 
+		 *  @author Neale Petrillo
+		 *  @version 1
+		 * 	@see Vroom
+		 * 	@see menu/settings.xml
+		 * 
+		 * 	@param item The item selected, type MenuItem
+		 * 	@return true if activity is in the list otherwise returns false
+		 * 	@throws none
+		 * 
+		 **/
+	    //Start onOptionsItemSelected
+	    @Override
+	    public boolean onOptionsItemSelected(MenuItem item) {
+	    	try {
+	    	  	switch (item.getItemId()) {
+	        	case R.id.personal_settings:
+	        		startActivity(new Intent(this, PersonalSettings.class));
+	        		return true;
+	        		
+	        	case R.id.device_settings:
+	    			startActivity(new Intent(this, DeviceSettings.class));
+	    			return true;
+	        	
+	        	case R.id.connect_device:
+	        		Log.v(TAG,"Connect Button pressed. Calling DeviceListActivity.java");
+	        		Intent i = new Intent(this, DeviceListActivity.class);
+	        		startActivityForResult(i, DEVICE_LIST_ACTIVITY_ID);
+	        		return true;
+	        		
+	        	case R.id.disconnect_device:
+	        	    	//Stay disconnected until a device is picked again
+	        	    	autoAddress = null;
+	        	    	handler.removeCallbacks(reconnect);
+	        	    	session.stop();
+	        	    	cancelBusMonitor();
+	        	    	device.stop();
+	        	    	writer.flush(FLUSH_TIMEOUT);
+	        	    	return true;
+	        	    	
+	        	case R.id.bus_monitor:
+	        	    	toggleBusMonitor();
+	        	    	return true;
+	        	    	
+	        	case R.id.fast_capture:
+	        	    	toggleCapture();
+	        	    	return true;
+	        	    	
+	        	case R.id.adapter_traffic:
+	        	    	mConversationLog.setLevel(item.isChecked() ? ConversationLog.Level.NORMAL : ConversationLog.Level.TRAFFIC);
+	        	    	updateTraffic();
+	        	    	return true;
+	        	    	
+	        	case R.id.forget_vehicle:
+	        	    	//Read everything about the vehicle again on the next connect
+	        	    	if(deviceAddress != null){
+	        	    	    if(vehicleSerial != null){
+	        	    		vehicleInfo.invalidate(deviceAddress, vehicleSerial);
+	        	    	    }
+	        	    	    //End if
+	        	    	    vehicleInfo.invalidate(deviceAddress, "", VehicleInfoCache.VEHICLE_ID);
+	        	    	}
+	        	    	//End if
+	        	    	return true;
+	        	default:
+	        		Log.v(TAG, "Menu item selected was not found in the onOptionsItemsSelected method. Returning false");
+	        		return false;
+	        	}//End switch
+	    	}
+	    	catch (Exception e){
+	    		Log.e(TAG,"Error when selecting menu item: " + e.getMessage(), e.getCause());
+	    		return false;
+	    	}//End try/catch
+	  
+	    }
+	    //End onOptionsItemSelected
+}//End Monitor
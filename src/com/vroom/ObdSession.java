@@ -0,0 +1,1356 @@
+package com.vroom;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ObdSession runs the whole ELM327 conversation on its own thread: adapter setup, poll scheduling, response
+ * assembly and decoding.
+ * <p>
+ * The session has no Android dependencies. Bytes from the adapter are handed to {@link #receive(byte[], int)} by
+ * whatever thread reads the link and commands go out through a {@link Link}. Decoded values, the vehicle id,
+ * trouble codes and conversation messages are reported to a {@link Listener} on the session thread, so the
+ * listener must hand anything meant for the UI over to the UI thread itself.
+ * <p>
+ * The adapter formats its answers as the {@link LinkProfile} asks, the lean one unless another is set. The echo of a
+ * command is skipped wherever it comes, so the decoders read the same lines under every profile, and the answers to
+ * the polling requests are measured for the profile.
+ * <p>
+ * For a drag or track run the polling can give way to a fast capture of one request, which the adapter is asked to
+ * repeat with a bare carriage return as soon as it answers. See {@link #startCapture(int[], CaptureBuffer)}.
+ * <p>
+ * Because the engine only needs a Link, it can be run and measured under a plain JVM.
+ *
+ * @version 1
+ *
+ * @see Monitor
+ */
+public class ObdSession implements Runnable {
+
+    /**
+     * The connection to the adapter.
+     */
+    public interface Link {
+	/**
+	 * Writes bytes to the adapter.
+	 *
+	 * @param data The bytes to write.
+	 * @throws IOException if the link is gone.
+	 */
+	void write(byte[] data) throws IOException;
+
+	/**
+	 * Gives a buffer passed to receive back to the link once the session is done with it.
+	 *
+	 * @param buffer The buffer.
+	 */
+	void recycle(byte[] buffer);
+    }
+    //End Link
+
+    /**
+     * Receives what the session decodes. Called on the session thread.
+     */
+    public interface Listener {
+	/**
+	 * Called for every decoded mode 01 value.
+	 *
+	 * @param pid The PID of the value.
+	 * @param value The value in the PID's unit.
+	 * @param timeMillis The time the value was received.
+	 */
+	void onSample(int pid, float value, long timeMillis);
+
+	/**
+	 * Called when the vehicle id has been read.
+	 */
+	void onVehicleId(String vehicleId);
+
+	/**
+	 * Called when a calibration id or calibration verification number has been read.
+	 *
+	 * @param infoType The mode 09 info type, VehicleInfoDecoder.CALIBRATION_ID or CALIBRATION_CVN.
+	 * @param value The value as decoded by the VehicleInfoDecoder.
+	 */
+	void onVehicleInfo(int infoType, String value);
+
+	/**
+	 * Called once the set up is done with each supported PID bitmap read, so it can be passed to setSupported on the
+	 * next connect.
+	 *
+	 * @param base The PID the bitmap was read with, such as 0x00 for PIDs 01 to 20.
+	 * @param bitmap The 32 bit bitmap, the highest bit standing for PID base + 1.
+	 */
+	void onSupported(int base, long bitmap);
+
+	/**
+	 * Called for every trouble code read.
+	 *
+	 * @param mode The request the code answers, one of the TroubleCodeDecoder.MODE_ constants.
+	 * @param code The code, such as P0133.
+	 */
+	void onTroubleCode(int mode, String code);
+
+	/**
+	 * Called once the set up is done with the protocol the adapter uses, so it can be passed to setProtocol on the next
+	 * connect. The vehicle id has been reported by then.
+	 *
+	 * @param protocol The ELM327 protocol number, 1 to C.
+	 */
+	void onProtocol(String protocol);
+
+	/**
+	 * Called with a line of conversation to show to the user.
+	 */
+	void onMessage(String message);
+    }
+    //End Listener
+
+    /**
+     * PIDs of the mode 01 commands the session decodes.
+     */
+    public static final int PID_TEMPERATURE = 0x05;
+    public static final int PID_RPM = 0x0C;
+    public static final int PID_SPEED = 0x0D;
+
+    /**
+     * The number of supported PID bitmaps that can be read, for PIDs 01-20 up to 61-80.
+     */
+    public static final int SUPPORTED_RANGES = 4;
+
+    /**
+     * Sent first when the protocol is known. An adapter that is still powered and set up answers it at once and
+     * without spaces, in which case the rest of the set up is skipped. Also the first request of the set up, which
+     * connects to the bus. Either way the answer holds the first supported PID bitmap, which tells whether the
+     * vehicle is the one known from an earlier connect.
+     */
+    private static final String PROBE = "0100";
+
+    /**
+     * Reads the number of the protocol the adapter is using.
+     */
+    private static final String DETECT = "ATDPN";
+
+    /**
+     * The vehicle information read once per vehicle, unless it is known from an earlier connect.
+     * <p>
+     * Paired with VEHICLE_INFO_REQUESTS. The order must match.
+     */
+    private static final int VEHICLE_INFO[] = {VehicleInfoDecoder.VEHICLE_ID, VehicleInfoDecoder.CALIBRATION_ID,
+	    VehicleInfoDecoder.CALIBRATION_CVN};
+    private static final String VEHICLE_INFO_REQUESTS[] = {"0902", "0904", "0906"};
+
+    /**
+     * Time without a prompt after which the adapter is nudged with a bare carriage return.
+     */
+    private static final long PROMPT_TIMEOUT = 5000;
+
+    /**
+     * Time between two poll rate reports.
+     */
+    private static final long RATE_REPORT_PERIOD = 10000;
+
+    /**
+     * Longest time to wait for a stopped session thread to end. It only takes longer if a write to the link blocks,
+     * which means the link is going away anyway.
+     */
+    private static final long STOP_TIMEOUT = 2000;
+
+    /**
+     * Number of capture answers in a row without a value after which the capture is given up.
+     */
+    private static final int CAPTURE_MAX_MISSES = 3;
+
+    /**
+     * Number of read chunks that can wait for the session thread.
+     */
+    private static final int QUEUE_SIZE = 64;
+
+    /**
+     * List of OBD commands to send to the device.
+     * <p>
+     * Paired with obdTitles for easier processing. The order of the commands must match.
+     */
+    private String obdCommands[] = {"0105", "010C", "03", "07", "0A" };
+
+    /**
+     * Target time in milliseconds between two polls of each OBD command.
+     * <p>
+     * Paired with obdCommands. The order of the periods must match.
+     */
+    private long obdPeriods[] = {5000, 100, 60000, 60000, 300000};
+
+    /**
+     * Priority of each OBD command. Spare send slots go to the highest priority.
+     * <p>
+     * Paired with obdCommands. The order of the priorities must match.
+     */
+    private int obdPriorities[] = {1, 3, 0, 0, 0};
+
+    /**
+     * List of OBD titles for commands.
+     * <p>
+     * Paired with obdCommands for easier processing. The order of the commands must match.
+     */
+    private enum obdTitles {
+	TEMPERATURE,
+	RPM,
+	TROUBLECODE,
+	PENDINGCODE,
+	PERMANENTCODE;
+    }
+
+    /**
+     * A chunk of bytes waiting for the session thread.
+     */
+    private static final class Chunk {
+	byte buffer[];
+	int length;
+	long time;
+    }
+
+    private final Link mLink;
+    private final Listener mListener;
+
+    //Read chunks waiting to be handled and the holders free for reuse
+    private final ArrayBlockingQueue<Chunk> mQueue = new ArrayBlockingQueue<Chunk>(QUEUE_SIZE);
+    private final ArrayBlockingQueue<Chunk> mFreeChunks = new ArrayBlockingQueue<Chunk>(QUEUE_SIZE);
+
+    private final ElmFrameAssembler mAssembler = new ElmFrameAssembler();
+    private final PidBatcher mBatcher = new PidBatcher();
+    private final TroubleCodeDecoder mCodes = new TroubleCodeDecoder();
+    private final VehicleInfoDecoder mInfo = new VehicleInfoDecoder();
+    private final PollScheduler mScheduler;
+    private final LatencyTuner mTuner;
+
+    private int mSlot[] = new int[PidBatcher.MAX_PIDS];
+    private int mSlotPids[] = new int[PidBatcher.MAX_PIDS];
+    private int mOutstandingCommand = -1;
+    private long mLastRateReport;
+    private long mLastWrite;
+
+    //The commands sent before polling starts and the next one to send
+    private final String mInit[] = new String[24];
+    private int mInitCount;
+    private int mRunNumber;
+
+    //What the outstanding set up command is answered with
+    private boolean mCheckingSetUp;
+    private boolean mProbing;
+    private boolean mProbeAnswered;
+    private boolean mProbeFailed;
+    private boolean mDetecting;
+    private String mPlannedProtocol;
+    private boolean mProtocolChanged;
+    private boolean mSetUpReported;
+
+    //How the adapter formatted its answer to the probe
+    private boolean mProbeSpaces;
+    private boolean mProbeHeaders;
+    private long mProbeLinefeeds;
+    private int mProbeResponders;
+
+    //How the adapter is asked to format its answers
+    private volatile LinkProfile mProfile = LinkProfile.LEAN;
+
+    //The last command written while its echo may still come, and whether it came
+    private String mEchoCommand;
+    private boolean mEchoed;
+
+    //When the outstanding polling request was written and the bytes received by then, 0 if none is measured
+    private long mAnswerNanos;
+    private long mAnswerBytes;
+
+    //When the chunk being handled was read, and the one holding the first line of the outstanding mode 01 answer
+    private long mChunkNanos;
+    private long mAnswerReadNanos;
+
+    //The fast capture asked for. Taken up by the session thread at the next polling prompt.
+    private volatile CaptureBuffer mCaptureTarget;
+    private volatile int mCapturePids[];
+
+    //The fast capture running on the session thread, when it started, its answers and its misses in a row
+    private CaptureBuffer mCapture;
+    private long mCaptureStart;
+    private long mCaptureAnswers;
+    private int mCaptureMisses;
+
+    //The protocol found on an earlier connect, or null to let the adapter search
+    private volatile String mProtocol;
+    private String mVehicleSerial = "";
+
+    //What is known about the vehicle from an earlier connect, paired with VEHICLE_INFO, and the bitmap read this run
+    private final String mKnownInfo[] = new String[VEHICLE_INFO.length];
+    private final long mKnownSupported[] = new long[SUPPORTED_RANGES];
+
+    //The supported PID bitmaps read this run, -1 until read, and the ranges whose bitmap request is planned
+    private final long mSupported[] = new long[SUPPORTED_RANGES];
+    private int mSupportedPlanned;
+    private int mSentCount;
+
+    //Whether the outstanding request is a mode 01 poll built by the batcher
+    private boolean mBatchSent;
+
+    //The session thread. A thread that is no longer mThread has been told to stop.
+    private volatile Thread mThread;
+
+    //The last session thread started, which a new one waits for since they share the assembler and the decoders
+    private Thread mLastThread;
+
+    //Whether the listener wants a message for every response, request and value
+    private volatile boolean mTraffic;
+
+    //Counters for measuring the session
+    private volatile long mPrompts;
+    private volatile long mSamples;
+
+    /**
+     * Constructor.
+     *
+     * @param link The connection to the adapter.
+     * @param listener The listener receiving decoded data.
+     */
+    public ObdSession(Link link, Listener listener){
+	mLink = link;
+	mListener = listener;
+	mTuner = new LatencyTuner(obdCommands.length);
+	mScheduler = new PollScheduler(obdCommands.length);
+	for(int i = 0; i < obdCommands.length; i++){
+	    mScheduler.add(obdCommands[i], obdPeriods[i], obdPriorities[i]);
+	}
+	//End for
+	for(int i = 0; i < QUEUE_SIZE; i++){
+	    mFreeChunks.offer(new Chunk());
+	}
+	//End for
+	Arrays.fill(mKnownSupported, -1);
+	Arrays.fill(mSupported, -1);
+    }
+    //End ObdSession
+
+    /**
+     * Returns the latency tuner, so its learned timings can be restored before start and saved after stop.
+     */
+    public LatencyTuner getTuner(){
+	return mTuner;
+    }
+    //End getTuner
+
+    /**
+     * Sets how the adapter is asked to format its answers. Takes effect on the next start.
+     */
+    public void setLinkProfile(LinkProfile profile){
+	mProfile = profile;
+    }
+    //End setLinkProfile
+
+    /**
+     * Returns how the adapter is asked to format its answers.
+     */
+    public LinkProfile getLinkProfile(){
+	return mProfile;
+    }
+    //End getLinkProfile
+
+    /**
+     * Starts a fast capture, for a drag or track run. Once the request in flight is answered the session stops polling
+     * and tuning and sends one request for the given PIDs, then asks the adapter to repeat it with a bare carriage
+     * return every time it answers, so the PIDs are read as fast as the link and the vehicle allow. The values still go
+     * to the listener and are also added to the buffer, with the time their answer was read from the link.
+     * <p>
+     * The capture runs until it is stopped, the buffer is full or the vehicle stops answering the request. A new
+     * capture replaces the one running.
+     *
+     * @param pids The mode 01 PIDs to capture. Only as many as fit in one request are used.
+     * @param buffer The buffer the values are added to, on the session thread.
+     */
+    public synchronized void startCapture(int pids[], CaptureBuffer buffer){
+	mCapturePids = pids.clone();
+	mCaptureTarget = buffer;
+    }
+    //End startCapture
+
+    /**
+     * Stops the fast capture once its request in flight is answered. Polling picks up where it left off.
+     */
+    public synchronized void stopCapture(){
+	mCaptureTarget = null;
+    }
+    //End stopCapture
+
+    /**
+     * Returns true while a fast capture is asked for.
+     */
+    public boolean isCapturing(){
+	return mCaptureTarget != null;
+    }
+    //End isCapturing
+
+    /**
+     * Sets the protocol found on an earlier connect to the same adapter and vehicle. The next run probes whether the
+     * adapter kept its set up and otherwise sets it up for this protocol straight away, so it does not search.
+     *
+     * @param protocol The ELM327 protocol number, or null if it is not known.
+     */
+    public void setProtocol(String protocol){
+	mProtocol = protocol;
+    }
+    //End setProtocol
+
+    /**
+     * Sets a mode 09 value known from an earlier connect to the same adapter and vehicle, so it is not asked for
+     * again. Known values are only trusted when the first supported PID bitmap read on connecting matches the one set
+     * with setSupported. Must be called before start.
+     *
+     * @param infoType The mode 09 info type, one of the VehicleInfoDecoder type constants.
+     * @param value The value, or null if it is not known.
+     */
+    public void setVehicleInfo(int infoType, String value){
+	for(int i = 0; i < VEHICLE_INFO.length; i++){
+	    if(VEHICLE_INFO[i] == infoType){
+		mKnownInfo[i] = value;
+	    }
+	    //End if
+	}
+	//End for
+    }
+    //End setVehicleInfo
+
+    /**
+     * Sets a supported PID bitmap read on an earlier connect to the same adapter and vehicle. The first bitmap tells
+     * whether the vehicle is the known one, and the others are then used without reading them again. Must be called
+     * before start.
+     *
+     * @param base The PID the bitmap was read with: 0x00, 0x20, 0x40 or 0x60.
+     * @param bitmap The bitmap, or -1 if it is not known.
+     */
+    public void setSupported(int base, long bitmap){
+	int range = base / 0x20;
+	if(base % 0x20 == 0 && range >= 0 && range < SUPPORTED_RANGES){
+	    mKnownSupported[range] = bitmap;
+	}
+	//End if
+    }
+    //End setSupported
+
+    /**
+     * Returns the protocol the adapter last reported, or the one set with setProtocol.
+     */
+    public String getProtocol(){
+	return mProtocol;
+    }
+    //End getProtocol
+
+    /**
+     * Sets whether a message is sent to the listener for every response handled, request sent and value decoded. Off
+     * by default, so none of them are formatted while nobody reads them.
+     */
+    public void setTraffic(boolean traffic){
+	mTraffic = traffic;
+    }
+    //End setTraffic
+
+    /**
+     * Starts the session thread, which nudges the adapter so it sends its first prompt. Does nothing if the session is
+     * already running. If a stopped session thread is still finishing, waits for it first.
+     */
+    public void start(){
+	Thread previous;
+	synchronized(this){
+	    if(mThread != null){
+		return;
+	    }
+	    //End if
+	    previous = mLastThread;
+	}
+	//End synchronized
+
+	//Outside the lock, since the old thread may need it to finish
+	awaitEnd(previous);
+
+	synchronized(this){
+	    if(mThread != null){
+		return;
+	    }
+	    //End if
+	    mThread = new Thread(this, "ObdSession");
+	    mLastThread = mThread;
+	    mThread.start();
+	}
+	//End synchronized
+    }
+    //End start
+
+    /**
+     * Stops the session thread and waits for it to end, so a start right after it cannot share the session state with
+     * the old thread. Chunks still queued are given back to the link.
+     */
+    public void stop(){
+	Thread thread;
+	synchronized(this){
+	    thread = mThread;
+	    mThread = null;
+	}
+	//End synchronized
+	if(thread != null){
+	    thread.interrupt();
+	    awaitEnd(thread);
+	}
+	//End if
+    }
+    //End stop
+
+    /**
+     * Waits up to STOP_TIMEOUT for a session thread to end, unless it is the calling thread.
+     */
+    private static void awaitEnd(Thread thread){
+	if(thread == null || thread == Thread.currentThread()){
+	    return;
+	}
+	//End if
+	try {
+	    thread.join(STOP_TIMEOUT);
+	}
+	catch (InterruptedException e){
+	    Thread.currentThread().interrupt();
+	}
+	//End try/catch
+    }
+    //End awaitEnd
+
+    /**
+     * Hands bytes read from the adapter to the session. Called from the link's reader thread.
+     * <p>
+     * The session owns the buffer until it gives it back through Link.recycle.
+     *
+     * @param buffer The buffer holding the bytes.
+     * @param length The number of valid bytes.
+     */
+    public void receive(byte[] buffer, int length){
+	//Stamped here rather than when handled, so the capture times do not include the wait for the session thread
+	Chunk chunk = mThread != null ? mFreeChunks.poll() : null;
+	if(chunk == null){
+	    //The session is stopped or hopelessly behind. Drop the bytes rather than block the reader.
+	    mLink.recycle(buffer);
+	    return;
+	}
+	//End if
+	chunk.buffer = buffer;
+	chunk.length = length;
+	chunk.time = System.nanoTime();
+	if(!mQueue.offer(chunk)){
+	    chunk.buffer = null;
+	    mFreeChunks.offer(chunk);
+	    mLink.recycle(buffer);
+	}
+	//End if
+    }
+    //End receive
+
+    /**
+     * Returns the number of prompts handled since the session was built.
+     */
+    public long getPromptCount(){
+	return mPrompts;
+    }
+    //End getPromptCount
+
+    /**
+     * Returns the number of values decoded since the session was built.
+     */
+    public long getSampleCount(){
+	return mSamples;
+    }
+    //End getSampleCount
+
+    /**
+     * The session loop. Handles queued chunks and nudges the adapter when its prompt is overdue.
+     */
+    public void run(){
+	//Every run starts a new conversation with an adapter that has just been connected. Whatever was queued before
+	//the first write belongs to the last one.
+	recycleQueued();
+	mAssembler.reset();
+	planInit();
+	mOutstandingCommand = -1;
+	mCapture = null;
+	mTuner.onConnect();
+	write("\r");
+
+	Thread self = Thread.currentThread();
+	while(mThread == self){
+	    Chunk chunk;
+	    try {
+		chunk = mQueue.poll(PROMPT_TIMEOUT, TimeUnit.MILLISECONDS);
+	    }
+	    catch (InterruptedException e){
+		break;
+	    }
+	    //End try/catch
+
+	    if(chunk == null){
+		if(System.currentTimeMillis() - mLastWrite >= PROMPT_TIMEOUT){
+		    mListener.onMessage("No prompt from the adapter. Nudging it.");
+		    mAssembler.reset();
+		    mAnswerNanos = 0;
+		    write("\r");
+		}
+		//End if
+		continue;
+	    }
+	    //End if
+
+	    try {
+		mChunkNanos = chunk.time;
+		mAssembler.feed(chunk.buffer, 0, chunk.length, mFrameListener);
+	    }
+	    catch (Exception e){
+		mListener.onMessage("Error running the read routine. " + e.toString());
+	    }
+	    finally {
+		mLink.recycle(chunk.buffer);
+		chunk.buffer = null;
+		mFreeChunks.offer(chunk);
+	    }
+	    //End try/catch/finally
+	}
+	//End while
+
+	//Give back whatever is still queued
+	recycleQueued();
+    }
+    //End run
+
+    /**
+     * Gives every queued chunk back to the link.
+     */
+    private void recycleQueued(){
+	Chunk chunk;
+	while((chunk = mQueue.poll()) != null){
+	    mLink.recycle(chunk.buffer);
+	    chunk.buffer = null;
+	    mFreeChunks.offer(chunk);
+	}
+	//End while
+    }
+    //End recycleQueued
+
+    /**
+     * Receives the lines and prompts found by the assembler.
+     */
+    private final ElmFrameAssembler.Listener mFrameListener = new ElmFrameAssembler.Listener() {
+	public void onLine(ElmFrameAssembler.Line line){
+	    //With echo on the adapter repeats the command before answering it
+	    if(mEchoCommand != null){
+		boolean echo = isEcho(line, mEchoCommand);
+		mEchoCommand = null;
+		if(echo){
+		    mEchoed = true;
+		    return;
+		}
+		//End if
+	    }
+	    //End if
+
+	    //Answers to the set up commands that decide what is sent next
+	    if(mProbing && onProbeLine(line.toString())){
+		return;
+	    }
+	    else if(mDetecting && onDetectLine(line.toString())){
+		return;
+	    }
+	    //End if/else
+
+	    //Lines answering a batched mode 01 request are read in place and split by the batcher when the prompt arrives
+	    if(mBatcher.onLine(line)){
+		if(mAnswerReadNanos == 0){
+		    mAnswerReadNanos = mChunkNanos;
+		}
+		//End if
+		mTuner.onFirstAnswer(System.nanoTime());
+		return;
+	    }
+	    else if(mCodes.onLine(line) || mInfo.onLine(line)){
+		mTuner.onFirstAnswer(System.nanoTime());
+		return;
+	    }
+	    //End if
+
+	    String response = line.toString();
+	    if(mTraffic){
+		mListener.onMessage("Handeling: "+response);
+	    }
+	    //End if
+	    handleResponse(response);
+	}
+	//End onLine
+
+	public void onPrompt(){
+	    mPrompts++;
+	    handlePrompt();
+	}
+	//End onPrompt
+    };//End mFrameListener
+
+    /**
+     * Receives the values split out of the answers to batched mode 01 requests.
+     */
+    private final PidBatcher.Listener mPidListener = new PidBatcher.Listener() {
+	public void onPidValue(int pid, byte[] data, int offset, int length){
+	    long now = System.currentTimeMillis();
+	    mScheduler.onAnswered(mScheduler.indexOfPid(pid), now);
+
+	    if(pid % 0x20 == 0 && length == 4){
+		onSupportedBitmap(pid, ((long) (data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+			| ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF));
+	    }
+	    else if(PidRegistry.isMeasurement(pid)){
+		float value = PidRegistry.decode(pid, data, offset);
+		mSamples++;
+		if(mCapture != null){
+		    mCapture.add(pid, value, mAnswerReadNanos);
+		}
+		//End if
+		mListener.onSample(pid, value, now);
+		if(mTraffic){
+		    mListener.onMessage(PidRegistry.getName(pid)+": "+value+" "+PidRegistry.getUnit(pid));
+		}
+		//End if
+	    }
+	    //End if
+	}
+	//End onPidValue
+    };//End mPidListener
+
+    /**
+     * Receives the codes found in the answers to trouble code requests.
+     */
+    private final TroubleCodeDecoder.Listener mCodeListener = new TroubleCodeDecoder.Listener() {
+	public void onTroubleCode(int mode, int code){
+	    String text = TroubleCodeDecoder.format(code);
+	    mListener.onTroubleCode(mode, text);
+	    mListener.onMessage("Trouble code: "+text);
+	}
+	//End onTroubleCode
+    };//End mCodeListener
+
+    /**
+     * Receives the answers to the vehicle information requests.
+     */
+    private final VehicleInfoDecoder.Listener mInfoListener = new VehicleInfoDecoder.Listener() {
+	public void onVehicleInfo(int infoType, String value){
+	    if(infoType == VehicleInfoDecoder.VEHICLE_ID){
+		mVehicleSerial = value;
+		mListener.onVehicleId(value);
+		mListener.onMessage("Vehicle ID: "+value);
+	    }
+	    else {
+		mListener.onVehicleInfo(infoType, value);
+		mListener.onMessage((infoType == VehicleInfoDecoder.CALIBRATION_ID ? "Calibration ID: " : "Calibration verification number: ")+value);
+	    }
+	    //End if/else
+	}
+	//End onVehicleInfo
+    };//End mInfoListener
+
+    /**
+     * Writes a command to the adapter.
+     */
+    private void write(String command){
+	try {
+	    mLastWrite = System.currentTimeMillis();
+	    mEchoCommand = command;
+	    mEchoed = false;
+	    mLink.write(command.getBytes());
+	}
+	catch (IOException e){
+	    mListener.onMessage("Error writing to the adapter. " + e.getMessage());
+	}
+	//End try/catch
+    }
+    //End write
+
+    /**
+     * Returns true if the line is the echo of a command written with its carriage return.
+     */
+    private static boolean isEcho(ElmFrameAssembler.Line line, String command){
+	int length = command.length() - 1;
+	if(line.length() != length){
+	    return false;
+	}
+	//End if
+	for(int i = 0; i < length; i++){
+	    if(line.charAt(i) != command.charAt(i)){
+		return false;
+	    }
+	    //End if
+	}
+	//End for
+	return true;
+    }
+    //End isEcho
+
+    /**
+     * Handles the prompt character from the device.
+     * <p>
+     * The ELM chip will send a '>' when it is ready to receive. If this is the case then we can send the next OBD command or setup the device.
+     */
+    private void handlePrompt(){
+	try {
+	    //Measure the answer to the last polling request for the link profile
+	    if(mAnswerNanos != 0){
+		mProfile.onAnswer((int) (mAssembler.getByteCount() - mAnswerBytes), System.nanoTime() - mAnswerNanos);
+		mAnswerNanos = 0;
+	    }
+	    //End if
+
+	    //The probe decides whether the adapter needs setting up again
+	    if(mProbing){
+		mProbing = false;
+
+		//The probe goes without a response count, so every ECU that answers it is seen
+		mTuner.onResponders(mProbeResponders);
+		boolean linefeeds = mAssembler.getLinefeedCount() > mProbeLinefeeds;
+		if(!mCheckingSetUp){
+		    //Sent right after the link profile was applied
+		    checkProfile(linefeeds);
+		}
+		else {
+		    mCheckingSetUp = false;
+		    if(mProbeAnswered && !mProbeFailed && matchesProfile(linefeeds)){
+			mListener.onMessage("Adapter kept its set up. Skipping it.");
+			planVehicle();
+		    }
+		    else {
+			mListener.onMessage("Setting the adapter up for protocol "+mProtocol+".");
+			planSetup(mProtocol);
+		    }
+		    //End if/else
+		}
+		//End if
+	    }
+	    //End if
+
+	    //Once the protocol is read, the vehicle information still needed is planned
+	    if(mDetecting){
+		mDetecting = false;
+		planVehicle();
+	    }
+	    //End if
+	    mInfo.onPrompt(mInfoListener);
+
+	    //Split the answer to the last mode 01 request into its values
+	    int found = mBatcher.onPrompt(mPidListener);
+	    mAnswerReadNanos = 0;
+
+	    //If it's the first run or all the ELM commands haven't been gone through we need to run them.
+	    if(mRunNumber < mInitCount){
+		String command = mInit[mRunNumber];
+		mRunNumber = mRunNumber + 1;
+		mProbing = command.equals(PROBE);
+		mProbeAnswered = false;
+		mProbeFailed = false;
+		mProbeSpaces = false;
+		mProbeHeaders = false;
+		mProbeLinefeeds = mAssembler.getLinefeedCount();
+		mProbeResponders = 0;
+		mDetecting = command.equals(DETECT);
+		if(command.startsWith("09")){
+		    mInfo.begin(Integer.parseInt(command.substring(2), 16));
+		}
+		//End if
+		mListener.onMessage("Sending set up command "+command+".");
+		if(!mProbing && command.startsWith("01")){
+		    //Supported PID bitmaps are split by the batcher like any mode 01 answer
+		    mSlotPids[0] = Integer.parseInt(command.substring(2), 16);
+		    write(mBatcher.request(mSlotPids, 1, false));
+		}
+		else {
+		    write(command+'\r');
+		}
+		//End if/else
+	    }
+	    else {
+		long now = System.currentTimeMillis();
+
+		//The set up is done and the vehicle known. Report what was found for the next connect.
+		if(!mSetUpReported){
+		    mSetUpReported = true;
+		    if(mProtocol != null){
+			mListener.onProtocol(mProtocol);
+		    }
+		    //End if
+		    for(int i = 0; i < SUPPORTED_RANGES; i++){
+			if(mSupported[i] >= 0){
+			    mListener.onSupported(i * 0x20, mSupported[i]);
+			}
+			//End if
+		    }
+		    //End for
+		}
+		//End if
+
+		mCodes.onPrompt(mCodeListener);
+		//An adapter that does not take the response count answers the poll carrying it with a question mark
+		if(mBatchSent && mBatcher.hasResponseCount() && mBatcher.wasRejected()){
+		    mTuner.onResponseCountRejected();
+		}
+		//End if
+		mBatchSent = false;
+
+		//If nothing answered the last request let the tuner know
+		mTuner.onNoAnswer();
+
+		//A command sent on its own has been answered once the prompt comes back
+		if(mOutstandingCommand >= 0){
+		    mScheduler.onAnswered(mOutstandingCommand, now);
+		    mOutstandingCommand = -1;
+		}
+		//End if
+
+		//PIDs left out of the answer count as misses, unless a batch was not understood at all
+		mScheduler.onRequestDone(now, mSentCount == 1 || found > 0);
+
+		//A fast capture takes every prompt while it runs
+		if(onCapturePrompt(found)){
+		    return;
+		}
+		//End if
+
+		//Bring the adapter timeout in line with the measured response times before polling again
+		String tuning = mTuner.nextCommand();
+		if(tuning != null){
+		    mListener.onMessage("Tuning adapter timing.");
+		    write(tuning);
+		    return;
+		}
+		//End if
+
+		//Send the next code picked by the scheduler
+		int count = mScheduler.next(now, mBatcher.getBatchLimit(), mSlot);
+		mSentCount = count;
+		if(count == 0){
+		    //Everything is unsupported or paused. The prompt timeout nudges the adapter again.
+		    mListener.onMessage("Nothing to poll.");
+		    return;
+		}
+		//End if
+		mAnswerNanos = System.nanoTime();
+		mAnswerBytes = mAssembler.getByteCount();
+		mTuner.onSent(mSlot, count, mAnswerNanos);
+		if(mTraffic){
+		    mListener.onMessage("Sending OBD command.");
+		}
+		//End if
+		if(mScheduler.getPid(mSlot[0]) >= 0){
+		    for(int i = 0; i < count; i++){
+			mSlotPids[i] = mScheduler.getPid(mSlot[i]);
+		    }
+		    //End for
+		    write(mBatcher.request(mSlotPids, count, mTuner.useResponseCount()));
+		    mBatchSent = true;
+		}
+		else {
+		    mOutstandingCommand = mSlot[0];
+		    mCodes.begin(Integer.parseInt(obdCommands[mSlot[0]], 16));
+		    write(obdCommands[mSlot[0]] + '\r');
+		}
+		//End if/else
+
+		//Report how close each command gets to its target rate
+		if(now - mLastRateReport > RATE_REPORT_PERIOD){
+		    mLastRateReport = now;
+		    mListener.onMessage("Poll rates: "+mScheduler.report());
+		    mListener.onMessage("Link: "+LinkProfile.report());
+		}
+		//End if
+	    }//End if/else
+	}
+	catch (Exception e){
+	    mListener.onMessage("Error while handling elm prompt. "+e.toString());
+	}//End try/catch
+    }//End handlePrompt
+
+    /**
+     * Runs the fast capture at a polling prompt: ends the running one if it is over and otherwise repeats its request,
+     * or starts the one asked for.
+     *
+     * @param found The number of values in the answer just split.
+     * @return true if a capture request was written.
+     */
+    private boolean onCapturePrompt(int found){
+	CaptureBuffer target = mCaptureTarget;
+	if(mCapture != null){
+	    if(found > 0){
+		mCaptureAnswers++;
+		mCaptureMisses = 0;
+	    }
+	    else {
+		mCaptureMisses++;
+	    }
+	    //End if/else
+
+	    if(target == mCapture && mCapture.size() == mCapture.capacity()){
+		mListener.onMessage("Capture buffer full.");
+		target = null;
+	    }
+	    else if(target == mCapture && mCaptureMisses >= CAPTURE_MAX_MISSES){
+		mListener.onMessage("The vehicle stopped answering the capture request.");
+		target = null;
+	    }
+	    //End if/else
+
+	    if(target == mCapture){
+		//A bare carriage return repeats the last request, which saves sending and echoing it
+		mBatcher.repeat();
+		mAnswerNanos = System.nanoTime();
+		mAnswerBytes = mAssembler.getByteCount();
+		write("\r");
+		return true;
+	    }
+	    //End if
+
+	    //Stopped, given up or replaced
+	    double seconds = (System.nanoTime() - mCaptureStart) / 1e9;
+	    mListener.onMessage("Capture stopped. "+mCaptureAnswers+" answers in "+Math.round(seconds * 10) / 10.0+" s, "
+		    +Math.round(mCaptureAnswers / seconds * 10) / 10.0+" per second.");
+	    CaptureBuffer ended = mCapture;
+	    mCapture = null;
+	    if(target == null){
+		synchronized(this){
+		    //Unless another capture was asked for meanwhile
+		    if(mCaptureTarget == ended){
+			mCaptureTarget = null;
+		    }
+		    //End if
+		}
+		return false;
+	    }
+	    //End if
+	}
+	else if(target == null){
+	    return false;
+	}
+	//End if/else
+
+	int pids[] = mCapturePids;
+	int count = Math.min(pids.length, mBatcher.getBatchLimit());
+	StringBuilder names = new StringBuilder();
+	for(int i = 0; i < count; i++){
+	    names.append(i > 0 ? ", " : "").append(PidRegistry.getName(pids[i]));
+	}
+	//End for
+	mListener.onMessage("Capturing "+names+(count < pids.length ? ", the vehicle takes no more in one request." : "."));
+
+	mCapture = target;
+	mCaptureStart = System.nanoTime();
+	mCaptureAnswers = 0;
+	mCaptureMisses = 0;
+	mAnswerNanos = mCaptureStart;
+	mAnswerBytes = mAssembler.getByteCount();
+	write(mBatcher.request(pids, count, mTuner.useResponseCount()));
+	return true;
+    }
+    //End onCapturePrompt
+
+    /**
+     * Plans the commands sent before polling: only the probe if the protocol is known, the whole set up otherwise.
+     */
+    private void planInit(){
+	mRunNumber = 0;
+	mInitCount = 0;
+	mProbing = false;
+	mDetecting = false;
+	mPlannedProtocol = null;
+	mProtocolChanged = false;
+	mSetUpReported = false;
+	Arrays.fill(mSupported, -1);
+	mSupportedPlanned = 0;
+	mSentCount = 0;
+	mScheduler.reset();
+	mCheckingSetUp = mProtocol != null;
+	if(mCheckingSetUp){
+	    mInit[mInitCount++] = PROBE;
+	}
+	else {
+	    planSetup(null);
+	}
+	//End if/else
+    }
+    //End planInit
+
+    /**
+     * Adds the set up commands, the first request and the protocol read to the plan. The vehicle information is
+     * planned once the protocol is read.
+     *
+     * @param protocol The protocol to try before searching, or null to search right away.
+     */
+    private void planSetup(String protocol){
+	//Defaults first, then the link profile, which the probe shows took effect
+	mInit[mInitCount++] = "ATD";
+	String profile[] = mProfile.getCommands();
+	for(int i = 0; i < profile.length; i++){
+	    mInit[mInitCount++] = profile[i];
+	}
+	//End for
+	if(protocol != null){
+	    //SP A tries the protocol first and only searches if it fails, say with another vehicle
+	    mInit[mInitCount++] = "ATSPA"+protocol;
+	    mPlannedProtocol = protocol;
+	}
+	//End if
+	//The first request connects to the bus, searching for the protocol if need be
+	mInit[mInitCount++] = PROBE;
+	mInit[mInitCount++] = DETECT;
+    }
+    //End planSetup
+
+    /**
+     * Adds the supported PID bitmap and vehicle information requests to the plan, leaving out what is known from an
+     * earlier connect. Known values are only trusted if the protocol did not change and the first supported PID
+     * bitmap matches.
+     */
+    private void planVehicle(){
+	boolean known = !mProtocolChanged && mSupported[0] >= 0 && mSupported[0] == mKnownSupported[0];
+	if(known){
+	    for(int i = 1; i < SUPPORTED_RANGES; i++){
+		mSupported[i] = mKnownSupported[i];
+	    }
+	    //End for
+	}
+	//End if
+	applySupported();
+	planNextSupported();
+
+	for(int i = 0; i < VEHICLE_INFO.length; i++){
+	    if(!known || mKnownInfo[i] == null){
+		mInit[mInitCount++] = VEHICLE_INFO_REQUESTS[i];
+	    }
+	    //End if
+	}
+	//End for
+
+	//The vehicle id comes first in VEHICLE_INFO
+	if(known && mKnownInfo[0] != null){
+	    mVehicleSerial = mKnownInfo[0];
+	    mListener.onVehicleId(mVehicleSerial);
+	    mListener.onMessage("Vehicle "+mVehicleSerial+" is known. Not asking for what is kept about it.");
+	}
+	//End if
+    }
+    //End planVehicle
+
+    /**
+     * Plans the request for the next supported PID bitmap not read yet, if the last one read says the range is there.
+     * The lowest bit of every bitmap stands for the PID that reads the next one.
+     */
+    private void planNextSupported(){
+	for(int i = 1; i < SUPPORTED_RANGES; i++){
+	    if(mSupported[i - 1] < 0 || (mSupported[i - 1] & 1) == 0){
+		return;
+	    }
+	    //End if
+	    if(mSupported[i] < 0){
+		if((mSupportedPlanned & (1 << i)) == 0){
+		    mSupportedPlanned |= 1 << i;
+		    mInit[mInitCount++] = "01" + Integer.toHexString(0x100 + i * 0x20).substring(1).toUpperCase();
+		}
+		//End if
+		return;
+	    }
+	    //End if
+	}
+	//End for
+    }
+    //End planNextSupported
+
+    /**
+     * Keeps a supported PID bitmap read from the vehicle, drops what it does not support from the poll set and plans
+     * the next bitmap. Several ECUs may answer, their bitmaps are combined.
+     */
+    private void onSupportedBitmap(int base, long bitmap){
+	int range = base / 0x20;
+	if(range >= SUPPORTED_RANGES){
+	    return;
+	}
+	//End if
+	mSupported[range] = (mSupported[range] < 0 ? 0 : mSupported[range]) | bitmap;
+	applySupported();
+	planNextSupported();
+    }
+    //End onSupportedBitmap
+
+    /**
+     * Marks every mode 01 command whose PID a bitmap read says is missing as unsupported. PIDs in ranges not read are
+     * left alone.
+     */
+    private void applySupported(){
+	for(int i = 0; i < mScheduler.size(); i++){
+	    int pid = mScheduler.getPid(i);
+	    if(pid <= 0){
+		continue;
+	    }
+	    //End if
+	    int range = (pid - 1) / 0x20;
+	    if(range >= SUPPORTED_RANGES || mSupported[range] < 0){
+		continue;
+	    }
+	    //End if
+	    boolean supported = ((mSupported[range] >> (0x20 - (pid - range * 0x20))) & 1) != 0;
+	    if(mScheduler.isSupported(i) && !supported){
+		mListener.onMessage(PidRegistry.getName(pid)+" is not supported by the vehicle. Not polling it.");
+	    }
+	    //End if
+	    mScheduler.setSupported(i, supported);
+	}
+	//End for
+    }
+    //End applySupported
+
+    /**
+     * Checks a line answering the probe, notes how it is formatted and keeps the supported PID bitmap in it. Only an
+     * answer without a search, formatted as the link profile asks, shows the adapter kept its set up. Several ECUs may
+     * answer, their bitmaps are combined.
+     *
+     * @return true if the line was the answer.
+     */
+    private boolean onProbeLine(String line){
+	String compact = line.replace(" ", "");
+	int start = compact.indexOf("4100");
+	if(start < 0 || compact.length() < start + 12 || !PidBatcher.isHex(compact, 0, compact.length())){
+	    mProbeFailed = true;
+	    return false;
+	}
+	//End if
+	mSupported[0] = (mSupported[0] < 0 ? 0 : mSupported[0]) | Long.parseLong(compact.substring(start + 4, start + 12), 16);
+	mProbeAnswered = true;
+	mProbeResponders++;
+	mProbeSpaces |= compact.length() != line.length();
+
+	//Headers put the address and length bytes in front and a checksum behind on the older protocols
+	mProbeHeaders |= start > 0 || compact.length() > start + 12;
+	return true;
+    }
+    //End onProbeLine
+
+    /**
+     * Returns true if the answer to the probe was formatted as the link profile asks.
+     *
+     * @param linefeeds Whether the answer came with line feeds.
+     */
+    private boolean matchesProfile(boolean linefeeds){
+	LinkProfile profile = mProfile;
+	return mEchoed == profile.hasEcho() && linefeeds == profile.hasLinefeeds() && mProbeSpaces == profile.hasSpaces()
+		&& !mProbeHeaders;
+    }
+    //End matchesProfile
+
+    /**
+     * Tells the listener whether every setting of the link profile took effect, judged by the answer to the probe.
+     * Spaces and headers only show in an answer, so they are not checked if the vehicle did not answer.
+     *
+     * @param linefeeds Whether the answer came with line feeds.
+     */
+    private void checkProfile(boolean linefeeds){
+	LinkProfile profile = mProfile;
+	boolean confirmed = checkSetting("echo", mEchoed, profile.hasEcho());
+	confirmed &= checkSetting("line feeds", linefeeds, profile.hasLinefeeds());
+	if(mProbeAnswered){
+	    confirmed &= checkSetting("spaces", mProbeSpaces, profile.hasSpaces());
+	    confirmed &= checkSetting("headers", mProbeHeaders, false);
+	}
+	//End if
+	if(confirmed){
+	    mListener.onMessage("Link profile "+profile.getName()+" confirmed"+(mProbeAnswered ? "." : ", apart from spaces and headers."));
+	}
+	//End if
+    }
+    //End checkProfile
+
+    /**
+     * Tells the listener if an adapter setting is not what the link profile asks for.
+     *
+     * @return true if it is.
+     */
+    private boolean checkSetting(String setting, boolean seen, boolean wanted){
+	if(seen != wanted){
+	    mListener.onMessage("The adapter has "+setting+(seen ? " on" : " off")+" though the link profile asks for"+(wanted ? " on." : " off."));
+	}
+	//End if
+	return seen == wanted;
+    }
+    //End checkSetting
+
+    /**
+     * Reads the protocol number from the answer to ATDPN, such as A6 for a protocol found by searching.
+     *
+     * @return true if the line was the answer.
+     */
+    private boolean onDetectLine(String line){
+	String protocol = line.startsWith("A") ? line.substring(1) : line;
+	if(protocol.length() != 1 || PidBatcher.hexValue(protocol.charAt(0)) <= 0){
+	    //Not a protocol, or none found yet
+	    return false;
+	}
+	//End if
+	//A known protocol that did not work means another vehicle
+	mProtocolChanged = mPlannedProtocol != null && !protocol.equals(mPlannedProtocol);
+	mProtocol = protocol;
+	if(!protocol.equals(mPlannedProtocol)){
+	    //Store what the search found in the adapter, so it does not search again after a power cycle
+	    mInit[mInitCount++] = "ATSPA"+protocol;
+	    mPlannedProtocol = protocol;
+	}
+	//End if
+	mListener.onMessage("Protocol: "+protocol);
+	return true;
+    }
+    //End onDetectLine
+
+    /**
+     * Handles a response from the device.
+     * <p>
+     * Called by the frame listener whenever a full line is assembled (end of ELM device response).
+     *
+     * @param response Series of bytes received as an ELM response.
+     */
+    private void handleResponse(String response){
+	try {
+	    //Convert the response to a string of characters
+	    String stringedResponse = response.trim();
+
+	    /**
+	     * ELM OBD responses start with a 4. Those the decoders read never get here, the rest only count as an answer.
+	     */
+
+	    if(stringedResponse.startsWith("4")){
+		mTuner.onFirstAnswer(System.nanoTime());
+	    }
+	    else if(stringedResponse.equals("OK")){
+		mListener.onMessage("AT Command Sent Succesfully");
+
+	    }
+	    else if(stringedResponse.equals("NO DATA") || stringedResponse.equals("NODATA")){
+		mListener.onMessage("No Data For Command. Trying the next one.");
+	    }
+	    else if(stringedResponse.equals("UNABLE TO CONNECT")){
+		mListener.onMessage("Unable To Connect With ECU. Check Adapter And Reconnect.");
+	    }
+	    else if(stringedResponse.equals("?")){
+		mListener.onMessage("Unable to interpret last command. ");
+	    }
+	    else if(stringedResponse.equals("SEARCHING...")){
+		mListener.onMessage("Searching for data...");
+	    }
+	    else{
+		mListener.onMessage("Unknown Response recieved.");
+	    }//End if/else
+	}
+	catch (Exception e){
+	    mListener.onMessage("Error while handling elm response. "+e.toString());
+	}//End try/catch
+    }//End handleResponse
+}
+//End ObdSession
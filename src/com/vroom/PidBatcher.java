@@ -0,0 +1,366 @@
+package com.vroom;
+
+/**
+ * PidBatcher builds multi-PID mode 01 requests and splits the combined answers back into per-PID values.
+ * <p>
+ * CAN ECUs accept up to six PIDs in one mode 01 request (01 05 0C 0D ...) and answer them in a single response,
+ * so every value no longer pays a full round trip. Longer answers come back as ISO 15765 multi-frame responses
+ * (a byte count line followed by "0:", "1:" ... lines), which are reassembled before they are split. When several ECUs
+ * answer, each answer is kept and split on its own, since every one starts with its own mode byte.
+ * <p>
+ * ECUs that do not understand batched requests answer with ? or NO DATA. After {@link #MAX_REJECTIONS} batched
+ * requests in a row without a single value the batch limit drops to one PID per request for the rest of the session.
+ * A batch that returns at least one value is never counted, so PIDs that are briefly silent do not end batching.
+ * <p>
+ * The batcher is not thread safe. It is driven by whatever thread handles the adapter's responses.
+ *
+ * @version 1
+ *
+ * @see Monitor
+ * @see PollScheduler
+ */
+public class PidBatcher {
+
+    /**
+     * The largest number of PIDs the OBD standard allows in one mode 01 request.
+     */
+    public static final int MAX_PIDS = 6;
+
+    /**
+     * The number of rejected batched requests in a row after which batching is turned off.
+     */
+    public static final int MAX_REJECTIONS = 2;
+
+    /**
+     * The largest number of ECUs whose answers are kept for one request. CAN allows eight.
+     */
+    public static final int MAX_RESPONDERS = 8;
+
+    /**
+     * The value of each ASCII hex digit, indexed by character. -1 for characters that are not hex digits.
+     */
+    private static final byte HEX_VALUES[] = new byte[128];
+    static {
+	for(int i = 0; i < HEX_VALUES.length; i++){
+	    HEX_VALUES[i] = (byte) Character.digit((char) i, 16);
+	}
+	//End for
+    }
+
+    /**
+     * Callback for the values split out of a response.
+     */
+    public interface Listener {
+	/**
+	 * Called once for every PID found in a response.
+	 *
+	 * @param pid The PID the value belongs to.
+	 * @param data A buffer holding the data bytes. Only valid for the duration of the call.
+	 * @param offset The offset of the first data byte.
+	 * @param length The number of data bytes.
+	 */
+	void onPidValue(int pid, byte[] data, int offset, int length);
+    }
+    //End Listener
+
+    private boolean mBatching = true;
+    private int mRejections;
+    private final StringBuilder mRequest = new StringBuilder();
+
+    //The number of PIDs in the request waiting for its answer, or -1 if there is none, and in the last request built
+    private int mOutstandingCount = -1;
+    private int mRequestCount;
+    private boolean mResponseCount;
+
+    //The data bytes of the answer being received, one run of bytes per responding ECU
+    private final byte mPayload[] = new byte[256];
+    private int mPayloadLength;
+    private final int mAnswerStart[] = new int[MAX_RESPONDERS];
+    private final int mAnswerLength[] = new int[MAX_RESPONDERS];
+    private boolean mRejected;
+    private int mResponders;
+
+    /**
+     * Returns true while multi-PID requests are in use.
+     */
+    public boolean isBatching(){
+	return mBatching;
+    }
+    //End isBatching
+
+    /**
+     * Returns the largest number of PIDs the next request may carry.
+     */
+    public int getBatchLimit(){
+	return mBatching ? MAX_PIDS : 1;
+    }
+    //End getBatchLimit
+
+    /**
+     * Builds a mode 01 request for the given PIDs and marks it as outstanding.
+     * <p>
+     * When responseCount is set and the answer fits in a single CAN frame, the request ends with the expected number of
+     * responses (010C1) so the adapter returns as soon as the answer arrives instead of waiting for its timeout.
+     *
+     * @param pids The PIDs to request.
+     * @param count The number of PIDs to use from the array. Capped at getBatchLimit().
+     * @param responseCount true to append the response count where it is safe.
+     * @return The request text terminated with a carriage return.
+     */
+    public String request(int pids[], int count, boolean responseCount){
+	count = Math.min(count, getBatchLimit());
+	mRequest.setLength(0);
+	mRequest.append("01");
+	int answerLength = 1;
+	for(int i = 0; i < count; i++){
+	    appendHexByte(mRequest, pids[i]);
+	    answerLength += 1 + PidRegistry.dataLength(pids[i]);
+	}
+	//End for
+
+	//A single CAN frame carries up to seven bytes of answer
+	mResponseCount = responseCount && answerLength <= 7;
+	if(mResponseCount){
+	    mRequest.append('1');
+	}
+	//End if
+	mRequest.append('\r');
+
+	mRequestCount = count;
+	repeat();
+	return mRequest.toString();
+    }
+    //End request
+
+    /**
+     * Marks the last request built as outstanding again, for when the adapter is asked to repeat it with a bare
+     * carriage return.
+     */
+    public void repeat(){
+	mOutstandingCount = mRequestCount;
+	mPayloadLength = 0;
+	mRejected = false;
+	mResponders = 0;
+    }
+    //End repeat
+
+    /**
+     * Offers a response line to the batcher.
+     *
+     * @param line The trimmed response line. Only read during the call, so a reused line buffer can be passed.
+     * @return true if the line was part of the answer to the outstanding request.
+     */
+    public boolean onLine(CharSequence line){
+	if(mOutstandingCount < 0){
+	    return false;
+	}
+	//End if
+
+	int length = line.length();
+	if(length == 3 && isHex(line, 0, 3)){
+	    //Multi-frame byte count line, which starts the answer of another ECU
+	    startAnswer((hexValue(line.charAt(0)) << 8) | (hexValue(line.charAt(1)) << 4) | hexValue(line.charAt(2)));
+	    return true;
+	}
+	else if(length > 2 && line.charAt(1) == ':' && isHex(line, 0, 1)){
+	    //Frame of the multi-frame answer started last
+	    if(mResponders > 0 && mResponders <= MAX_RESPONDERS){
+		appendHex(line, 2, mAnswerStart[mResponders - 1] + mAnswerLength[mResponders - 1]);
+	    }
+	    //End if
+	    return true;
+	}
+	else if(startsWith(line, "41")){
+	    //Single frame answer. Every ECU answers on its own line.
+	    if(startAnswer(-1)){
+		appendHex(line, 0, mPayload.length);
+	    }
+	    //End if
+	    return true;
+	}
+	else if(length == 1 && line.charAt(0) == '?'){
+	    mRejected = true;
+	}
+	//End if/else
+	return false;
+    }
+    //End onLine
+
+    /**
+     * Finishes the outstanding request when the adapter sends its prompt and passes every value to the listener.
+     *
+     * @param listener The listener receiving the values.
+     * @return The number of values found.
+     */
+    public int onPrompt(Listener listener){
+	if(mOutstandingCount < 0){
+	    return 0;
+	}
+	//End if
+
+	int found = 0;
+	int answers = Math.min(mResponders, MAX_RESPONDERS);
+	for(int a = 0; a < answers; a++){
+	    int start = mAnswerStart[a];
+	    int end = a + 1 < answers ? mAnswerStart[a + 1] : mPayloadLength;
+	    found += split(start, end, listener);
+	}
+	//End for
+
+	//A batched request that returned no value at all was not understood
+	if(mBatching && mOutstandingCount > 1){
+	    if(found == 0){
+		mRejections++;
+		if(mRejections >= MAX_REJECTIONS){
+		    mBatching = false;
+		}
+		//End if
+	    }
+	    else {
+		mRejections = 0;
+	    }
+	    //End if/else
+	}
+	//End if
+
+	mOutstandingCount = -1;
+	return found;
+    }
+    //End onPrompt
+
+    /**
+     * Starts the answer of another ECU at the end of the payload.
+     *
+     * @param expectedLength The number of bytes announced by the byte count line, or -1 for a single frame answer.
+     * @return false if the answers of more than MAX_RESPONDERS ECUs have been seen and this one is not kept.
+     */
+    private boolean startAnswer(int expectedLength){
+	mResponders++;
+	if(mResponders > MAX_RESPONDERS){
+	    return false;
+	}
+	//End if
+	mAnswerStart[mResponders - 1] = mPayloadLength;
+	mAnswerLength[mResponders - 1] = expectedLength >= 0 ? expectedLength : mPayload.length;
+	return true;
+    }
+    //End startAnswer
+
+    /**
+     * Skips the mode byte of one ECU's answer, then splits the rest into PID, data pairs and passes them on.
+     *
+     * @return The number of values found.
+     */
+    private int split(int start, int end, Listener listener){
+	if(end <= start || (mPayload[start] & 0xFF) != 0x41){
+	    return 0;
+	}
+	//End if
+	int found = 0;
+	int i = start + 1;
+	while(i < end){
+	    int pid = mPayload[i] & 0xFF;
+	    int size = PidRegistry.dataLength(pid);
+	    if(size == 0 || i + 1 + size > end){
+		break;
+	    }
+	    //End if
+	    listener.onPidValue(pid, mPayload, i + 1, size);
+	    found++;
+	    i += 1 + size;
+	}
+	//End while
+	return found;
+    }
+    //End split
+
+    /**
+     * Returns the number of ECUs that answered the last request.
+     */
+    public int getResponderCount(){
+	return mResponders;
+    }
+    //End getResponderCount
+
+    /**
+     * Returns true if the last request built ends with the expected number of responses.
+     */
+    public boolean hasResponseCount(){
+	return mResponseCount;
+    }
+    //End hasResponseCount
+
+    /**
+     * Returns true if the adapter did not understand the last request.
+     */
+    public boolean wasRejected(){
+	return mRejected;
+    }
+    //End wasRejected
+
+    /**
+     * Parses the hex digit pairs of a line into the payload buffer, skipping spaces. Bytes past limit, such as the
+     * padding of the last frame of a multi-frame answer, are dropped.
+     */
+    private void appendHex(CharSequence line, int start, int limit){
+	limit = Math.min(limit, mPayload.length);
+	int high = -1;
+	for(int i = start; i < line.length(); i++){
+	    int digit = hexValue(line.charAt(i));
+	    if(digit < 0){
+		continue;
+	    }
+	    //End if
+	    if(high < 0){
+		high = digit;
+	    }
+	    else {
+		if(mPayloadLength < limit){
+		    mPayload[mPayloadLength++] = (byte) ((high << 4) | digit);
+		}
+		//End if
+		high = -1;
+	    }
+	    //End if/else
+	}
+	//End for
+    }
+    //End appendHex
+
+    static boolean isHex(CharSequence text, int start, int end){
+	for(int i = start; i < end; i++){
+	    if(hexValue(text.charAt(i)) < 0){
+		return false;
+	    }
+	}
+	return true;
+    }
+    //End isHex
+
+    static int hexValue(char c){
+	return c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+    }
+    //End hexValue
+
+    private static boolean startsWith(CharSequence text, String prefix){
+	if(prefix.length() > text.length()){
+	    return false;
+	}
+	//End if
+	for(int i = 0; i < prefix.length(); i++){
+	    if(text.charAt(i) != prefix.charAt(i)){
+		return false;
+	    }
+	}
+	//End for
+	return true;
+    }
+    //End startsWith
+
+    private static void appendHexByte(StringBuilder builder, int value){
+	builder.append(Character.toUpperCase(Character.forDigit((value >> 4) & 0xF, 16)));
+	builder.append(Character.toUpperCase(Character.forDigit(value & 0xF, 16)));
+    }
+    //End appendHexByte
+}
+//End PidBatcher
@@ -0,0 +1,218 @@
+package com.vroom;
+
+/**
+ * PidRegistry describes the standard SAE J1979 mode 01 PIDs and turns their data bytes into values.
+ * <p>
+ * Everything is held in parallel arrays indexed by PID number, so decoding a value is a few array reads and one
+ * multiply-add on the response bytes: no lookup by name, no String and no boxing. Most PIDs scale one byte (A) or
+ * one big endian word (AB) linearly. PIDs that carry several values report the first one, and PIDs that hold bit
+ * fields or enumerations rather than measurements are known by length and name only.
+ *
+ * @version 1
+ *
+ * @see PidBatcher
+ * @see ObdSession
+ */
+public final class PidRegistry {
+
+    /**
+     * How the value of a PID is read from its data bytes.
+     */
+    private static final byte STATUS = 0;
+    private static final byte BYTE = 1;
+    private static final byte WORD = 2;
+    private static final byte SIGNED_WORD = 3;
+
+    private static final int SIZE = 256;
+
+    //Parallel arrays indexed by PID
+    private static final byte LENGTHS[] = new byte[SIZE];
+    private static final byte KINDS[] = new byte[SIZE];
+    private static final float SCALES[] = new float[SIZE];
+    private static final float OFFSETS[] = new float[SIZE];
+    private static final String NAMES[] = new String[SIZE];
+    private static final String UNITS[] = new String[SIZE];
+
+    private static final float PERCENT = 100f / 255f;
+    private static final float TRIM = 100f / 128f;
+    private static final float RATIO = 2f / 65536f;
+    private static final String DEGREES = "\u00B0";
+    private static final String CELSIUS = "\u00B0C";
+
+    static {
+	define(0x00, 4, STATUS, 0, 0, "PIDs supported 01-20", "");
+	define(0x01, 4, STATUS, 0, 0, "Monitor status since codes cleared", "");
+	define(0x02, 2, STATUS, 0, 0, "Freeze frame trouble code", "");
+	define(0x03, 2, STATUS, 0, 0, "Fuel system status", "");
+	define(0x04, 1, BYTE, PERCENT, 0, "Calculated engine load", "%");
+	define(0x05, 1, BYTE, 1, -40, "Engine coolant temperature", CELSIUS);
+	define(0x06, 1, BYTE, TRIM, -100, "Short term fuel trim bank 1", "%");
+	define(0x07, 1, BYTE, TRIM, -100, "Long term fuel trim bank 1", "%");
+	define(0x08, 1, BYTE, TRIM, -100, "Short term fuel trim bank 2", "%");
+	define(0x09, 1, BYTE, TRIM, -100, "Long term fuel trim bank 2", "%");
+	define(0x0A, 1, BYTE, 3, 0, "Fuel pressure", "kPa");
+	define(0x0B, 1, BYTE, 1, 0, "Intake manifold absolute pressure", "kPa");
+	define(0x0C, 2, WORD, 0.25f, 0, "Engine speed", "rpm");
+	define(0x0D, 1, BYTE, 1, 0, "Vehicle speed", "km/h");
+	define(0x0E, 1, BYTE, 0.5f, -64, "Timing advance", DEGREES);
+	define(0x0F, 1, BYTE, 1, -40, "Intake air temperature", CELSIUS);
+	define(0x10, 2, WORD, 0.01f, 0, "Mass air flow rate", "g/s");
+	define(0x11, 1, BYTE, PERCENT, 0, "Throttle position", "%");
+	define(0x12, 1, STATUS, 0, 0, "Commanded secondary air status", "");
+	define(0x13, 1, STATUS, 0, 0, "Oxygen sensors present", "");
+	for(int i = 0; i < 8; i++){
+	    //The second byte is the short term fuel trim of the same sensor
+	    define(0x14 + i, 2, BYTE, 0.005f, 0, "Oxygen sensor " + (i + 1) + " voltage", "V");
+	}
+	//End for
+	define(0x1C, 1, STATUS, 0, 0, "OBD standard", "");
+	define(0x1D, 1, STATUS, 0, 0, "Oxygen sensors present", "");
+	define(0x1E, 1, STATUS, 0, 0, "Auxiliary input status", "");
+	define(0x1F, 2, WORD, 1, 0, "Run time since engine start", "s");
+
+	define(0x20, 4, STATUS, 0, 0, "PIDs supported 21-40", "");
+	define(0x21, 2, WORD, 1, 0, "Distance traveled with MIL on", "km");
+	define(0x22, 2, WORD, 0.079f, 0, "Fuel rail pressure", "kPa");
+	define(0x23, 2, WORD, 10, 0, "Fuel rail gauge pressure", "kPa");
+	for(int i = 0; i < 8; i++){
+	    //The last two bytes are the sensor voltage
+	    define(0x24 + i, 4, WORD, RATIO, 0, "Oxygen sensor " + (i + 1) + " equivalence ratio", "");
+	}
+	//End for
+	define(0x2C, 1, BYTE, PERCENT, 0, "Commanded EGR", "%");
+	define(0x2D, 1, BYTE, TRIM, -100, "EGR error", "%");
+	define(0x2E, 1, BYTE, PERCENT, 0, "Commanded evaporative purge", "%");
+	define(0x2F, 1, BYTE, PERCENT, 0, "Fuel tank level", "%");
+	define(0x30, 1, BYTE, 1, 0, "Warm-ups since codes cleared", "");
+	define(0x31, 2, WORD, 1, 0, "Distance traveled since codes cleared", "km");
+	define(0x32, 2, SIGNED_WORD, 0.25f, 0, "Evap system vapor pressure", "Pa");
+	define(0x33, 1, BYTE, 1, 0, "Absolute barometric pressure", "kPa");
+	for(int i = 0; i < 8; i++){
+	    //The last two bytes are the sensor current
+	    define(0x34 + i, 4, WORD, RATIO, 0, "Oxygen sensor " + (i + 1) + " equivalence ratio", "");
+	}
+	//End for
+	define(0x3C, 2, WORD, 0.1f, -40, "Catalyst temperature bank 1 sensor 1", CELSIUS);
+	define(0x3D, 2, WORD, 0.1f, -40, "Catalyst temperature bank 2 sensor 1", CELSIUS);
+	define(0x3E, 2, WORD, 0.1f, -40, "Catalyst temperature bank 1 sensor 2", CELSIUS);
+	define(0x3F, 2, WORD, 0.1f, -40, "Catalyst temperature bank 2 sensor 2", CELSIUS);
+
+	define(0x40, 4, STATUS, 0, 0, "PIDs supported 41-60", "");
+	define(0x41, 4, STATUS, 0, 0, "Monitor status this drive cycle", "");
+	define(0x42, 2, WORD, 0.001f, 0, "Control module voltage", "V");
+	define(0x43, 2, WORD, PERCENT, 0, "Absolute load value", "%");
+	define(0x44, 2, WORD, RATIO, 0, "Commanded equivalence ratio", "");
+	define(0x45, 1, BYTE, PERCENT, 0, "Relative throttle position", "%");
+	define(0x46, 1, BYTE, 1, -40, "Ambient air temperature", CELSIUS);
+	define(0x47, 1, BYTE, PERCENT, 0, "Absolute throttle position B", "%");
+	define(0x48, 1, BYTE, PERCENT, 0, "Absolute throttle position C", "%");
+	define(0x49, 1, BYTE, PERCENT, 0, "Accelerator pedal position D", "%");
+	define(0x4A, 1, BYTE, PERCENT, 0, "Accelerator pedal position E", "%");
+	define(0x4B, 1, BYTE, PERCENT, 0, "Accelerator pedal position F", "%");
+	define(0x4C, 1, BYTE, PERCENT, 0, "Commanded throttle actuator", "%");
+	define(0x4D, 2, WORD, 1, 0, "Time run with MIL on", "min");
+	define(0x4E, 2, WORD, 1, 0, "Time since codes cleared", "min");
+	define(0x4F, 4, STATUS, 0, 0, "Maximum values of ratio, voltage, current and pressure", "");
+
+	//The last three bytes are reserved
+	define(0x50, 4, BYTE, 10, 0, "Maximum mass air flow rate", "g/s");
+	define(0x51, 1, STATUS, 0, 0, "Fuel type", "");
+	define(0x52, 1, BYTE, PERCENT, 0, "Ethanol fuel", "%");
+	define(0x53, 2, WORD, 0.005f, 0, "Absolute evap system vapor pressure", "kPa");
+	define(0x54, 2, WORD, 1, -32767, "Evap system vapor pressure", "Pa");
+	//The second byte is the trim of bank 3 or 4
+	define(0x55, 2, BYTE, TRIM, -100, "Short term secondary oxygen sensor trim bank 1", "%");
+	define(0x56, 2, BYTE, TRIM, -100, "Long term secondary oxygen sensor trim bank 1", "%");
+	define(0x57, 2, BYTE, TRIM, -100, "Short term secondary oxygen sensor trim bank 2", "%");
+	define(0x58, 2, BYTE, TRIM, -100, "Long term secondary oxygen sensor trim bank 2", "%");
+	define(0x59, 2, WORD, 10, 0, "Fuel rail absolute pressure", "kPa");
+	define(0x5A, 1, BYTE, PERCENT, 0, "Relative accelerator pedal position", "%");
+	define(0x5B, 1, BYTE, PERCENT, 0, "Hybrid battery pack remaining life", "%");
+	define(0x5C, 1, BYTE, 1, -40, "Engine oil temperature", CELSIUS);
+	define(0x5D, 2, WORD, 1f / 128f, -210, "Fuel injection timing", DEGREES);
+	define(0x5E, 2, WORD, 0.05f, 0, "Engine fuel rate", "L/h");
+	define(0x5F, 1, STATUS, 0, 0, "Emission requirements", "");
+
+	define(0x60, 4, STATUS, 0, 0, "PIDs supported 61-80", "");
+	define(0x61, 1, BYTE, 1, -125, "Driver's demand engine torque", "%");
+	define(0x62, 1, BYTE, 1, -125, "Actual engine torque", "%");
+	define(0x63, 2, WORD, 1, 0, "Engine reference torque", "Nm");
+	define(0x64, 5, STATUS, 0, 0, "Engine percent torque data", "");
+    }
+
+    private PidRegistry(){
+    }
+
+    private static void define(int pid, int length, byte kind, float scale, float offset, String name, String unit){
+	LENGTHS[pid] = (byte) length;
+	KINDS[pid] = kind;
+	SCALES[pid] = scale;
+	OFFSETS[pid] = offset;
+	NAMES[pid] = name;
+	UNITS[pid] = unit;
+    }
+    //End define
+
+    /**
+     * Returns the number of data bytes a mode 01 PID answers with, or 0 if the PID is not known.
+     */
+    public static int dataLength(int pid){
+	return LENGTHS[pid & 0xFF];
+    }
+    //End dataLength
+
+    /**
+     * Returns true if the PID holds a measurement that decode can turn into a value.
+     */
+    public static boolean isMeasurement(int pid){
+	return KINDS[pid & 0xFF] != STATUS;
+    }
+    //End isMeasurement
+
+    /**
+     * Decodes the value of a PID from its data bytes.
+     *
+     * @param pid The PID.
+     * @param data The buffer holding the data bytes, without the mode and PID bytes.
+     * @param offset The offset of the first data byte.
+     * @return The value in the PID's unit, or NaN if the PID is not a measurement.
+     */
+    public static float decode(int pid, byte data[], int offset){
+	pid = pid & 0xFF;
+	int raw;
+	switch(KINDS[pid]){
+	case BYTE:
+	    raw = data[offset] & 0xFF;
+	    break;
+	case WORD:
+	    raw = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	    break;
+	case SIGNED_WORD:
+	    raw = (short) (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+	    break;
+	default:
+	    return Float.NaN;
+	}
+	//End switch
+	return raw * SCALES[pid] + OFFSETS[pid];
+    }
+    //End decode
+
+    /**
+     * Returns the name of a PID, or null if the PID is not known.
+     */
+    public static String getName(int pid){
+	return NAMES[pid & 0xFF];
+    }
+    //End getName
+
+    /**
+     * Returns the unit of a PID's value. Empty for ratios, counts and PIDs that are not measurements.
+     */
+    public static String getUnit(int pid){
+	String unit = UNITS[pid & 0xFF];
+	return unit != null ? unit : "";
+    }
+    //End getUnit
+}
+//End PidRegistry
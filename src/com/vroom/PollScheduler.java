@@ -0,0 +1,399 @@
+package com.vroom;
+
+/**
+ * PollScheduler decides which command goes out each time the adapter sends its prompt.
+ * <p>
+ * Every command declares a target period and a priority. The send slot goes to the command with the earliest
+ * deadline (last send plus period) among those that are due, with ties broken by priority. When nothing is due the
+ * spare slot goes to the highest priority command, so fast signals such as RPM and speed soak up the link bandwidth
+ * while slow ones such as coolant temperature or the trouble code read are sent only once per period.
+ * <p>
+ * Mode 01 commands are batched: once a mode 01 command wins the slot, other mode 01 commands that are due within
+ * an eighth of their period ride along in the same request.
+ * <p>
+ * Commands the vehicle does not support are left out. A mode 01 command that goes unanswered
+ * {@link #BREAKER_FAILURES} times in a row is paused, first for {@link #BREAKER_MIN} and twice as long after every
+ * further miss up to {@link #BREAKER_MAX}, so a PID that stops answering mid drive does not cost an adapter timeout
+ * on every cycle. Once the pause is over the command is tried again, and one answer resumes it fully.
+ * <p>
+ * The scheduler measures the rate at which each command is actually answered so it can be compared with the target.
+ * It is not thread safe and allocates nothing once the commands are added.
+ *
+ * @version 1
+ *
+ * @see PidBatcher
+ */
+public class PollScheduler {
+
+    /**
+     * Weight of the newest interval in the moving average of the answer rate.
+     */
+    private static final double RATE_SMOOTHING = 0.2;
+
+    /**
+     * The number of unanswered requests in a row after which a command is paused.
+     */
+    public static final int BREAKER_FAILURES = 3;
+
+    /**
+     * The first and the longest pause of a command that stopped answering, in milliseconds.
+     */
+    public static final long BREAKER_MIN = 5000;
+    public static final long BREAKER_MAX = 300000;
+
+    private String mCommands[];
+    private int mPids[];
+    private long mPeriods[];
+    private int mPriorities[];
+    private long mLastSent[];
+    private long mLastAnswered[];
+    private double mIntervals[];
+    private long mAnswers[];
+    private int mCount;
+
+    //Whether each command is supported, and the circuit breaker of each
+    private boolean mSupported[];
+    private boolean mPending[];
+    private int mFailures[];
+    private long mPauses[];
+    private long mRetryAt[];
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of commands the scheduler will hold.
+     */
+    public PollScheduler(int capacity){
+	mCommands = new String[capacity];
+	mPids = new int[capacity];
+	mPeriods = new long[capacity];
+	mPriorities = new int[capacity];
+	mLastSent = new long[capacity];
+	mLastAnswered = new long[capacity];
+	mIntervals = new double[capacity];
+	mAnswers = new long[capacity];
+	mSupported = new boolean[capacity];
+	mPending = new boolean[capacity];
+	mFailures = new int[capacity];
+	mPauses = new long[capacity];
+	mRetryAt = new long[capacity];
+    }
+    //End PollScheduler
+
+    /**
+     * Adds a command to the schedule.
+     *
+     * @param command The command text, without the carriage return.
+     * @param periodMillis The target time between two sends of the command.
+     * @param priority The priority of the command. Higher values win ties and spare slots.
+     * @return The index of the command.
+     */
+    public int add(String command, long periodMillis, int priority){
+	int i = mCount++;
+	mCommands[i] = command;
+	mPids[i] = (command.length() == 4 && command.startsWith("01")) ? Integer.parseInt(command.substring(2), 16) : -1;
+	mPeriods[i] = Math.max(1, periodMillis);
+	mPriorities[i] = priority;
+	mLastSent[i] = Long.MIN_VALUE / 2;
+	mLastAnswered[i] = -1;
+	mSupported[i] = true;
+	mPauses[i] = BREAKER_MIN;
+	return i;
+    }
+    //End add
+
+    /**
+     * Returns the number of commands in the schedule.
+     */
+    public int size(){
+	return mCount;
+    }
+    //End size
+
+    /**
+     * Returns the command text of command i.
+     */
+    public String getCommand(int i){
+	return mCommands[i];
+    }
+    //End getCommand
+
+    /**
+     * Returns the mode 01 PID of command i or -1 if it is not a mode 01 command.
+     */
+    public int getPid(int i){
+	return mPids[i];
+    }
+    //End getPid
+
+    /**
+     * Returns the index of the mode 01 command for the given PID or -1 if there is none.
+     */
+    public int indexOfPid(int pid){
+	for(int i = 0; i < mCount; i++){
+	    if(mPids[i] == pid){
+		return i;
+	    }
+	}
+	return -1;
+    }
+    //End indexOfPid
+
+    /**
+     * Sets whether command i is supported by the vehicle. Unsupported commands are never picked.
+     */
+    public void setSupported(int i, boolean supported){
+	mSupported[i] = supported;
+    }
+    //End setSupported
+
+    /**
+     * Returns true unless command i is known to be unsupported.
+     */
+    public boolean isSupported(int i){
+	return mSupported[i];
+    }
+    //End isSupported
+
+    /**
+     * Returns true while command i is paused for not answering.
+     */
+    public boolean isPaused(int i, long now){
+	return now < mRetryAt[i];
+    }
+    //End isPaused
+
+    /**
+     * Marks every command supported and closes every circuit breaker. Called when a new vehicle may be connected.
+     */
+    public void reset(){
+	for(int i = 0; i < mCount; i++){
+	    mSupported[i] = true;
+	    mPending[i] = false;
+	    mFailures[i] = 0;
+	    mPauses[i] = BREAKER_MIN;
+	    mRetryAt[i] = 0;
+	}
+	//End for
+    }
+    //End reset
+
+    /**
+     * Picks the commands for the next send slot and marks them as sent.
+     *
+     * @param now The current time in milliseconds.
+     * @param limit The largest number of mode 01 commands allowed in one request.
+     * @param out Receives the indexes of the chosen commands. Must hold at least limit entries.
+     * @return The number of commands chosen. More than one only for batched mode 01 commands. Zero if every command
+     * is unsupported or paused.
+     */
+    public int next(long now, int limit, int out[]){
+	//Earliest deadline among the due commands, or the highest priority command if none is due
+	int best = -1;
+	boolean bestDue = false;
+	for(int i = 0; i < mCount; i++){
+	    if(!isEligible(i, now)){
+		continue;
+	    }
+	    //End if
+	    long deadline = mLastSent[i] + mPeriods[i];
+	    boolean due = deadline <= now;
+	    if(best < 0){
+		best = i;
+		bestDue = due;
+		continue;
+	    }
+	    //End if
+
+	    long bestDeadline = mLastSent[best] + mPeriods[best];
+	    if(due != bestDue){
+		if(due){
+		    best = i;
+		    bestDue = true;
+		}
+		//End if
+	    }
+	    else if(due){
+		if(deadline < bestDeadline || (deadline == bestDeadline && mPriorities[i] > mPriorities[best])){
+		    best = i;
+		}
+		//End if
+	    }
+	    else if(mPriorities[i] > mPriorities[best] || (mPriorities[i] == mPriorities[best] && deadline < bestDeadline)){
+		best = i;
+	    }
+	    //End if/else
+	}
+	//End for
+	if(best < 0){
+	    return 0;
+	}
+	//End if
+
+	int count = 0;
+	out[count++] = best;
+
+	//Let the other mode 01 commands that are nearly due share the request
+	if(mPids[best] >= 0){
+	    while(count < limit){
+		int ride = -1;
+		long rideDeadline = 0;
+		for(int i = 0; i < mCount; i++){
+		    if(mPids[i] < 0 || !isEligible(i, now) || contains(out, count, i)){
+			continue;
+		    }
+		    //End if
+		    long deadline = mLastSent[i] + mPeriods[i];
+		    if(deadline - mPeriods[i] / 8 <= now && (ride < 0 || deadline < rideDeadline)){
+			ride = i;
+			rideDeadline = deadline;
+		    }
+		    //End if
+		}
+		//End for
+		if(ride < 0){
+		    break;
+		}
+		//End if
+		out[count++] = ride;
+	    }
+	    //End while
+	}
+	//End if
+
+	for(int i = 0; i < count; i++){
+	    mLastSent[out[i]] = now;
+	    mPending[out[i]] = true;
+	}
+	//End for
+	return count;
+    }
+    //End next
+
+    /**
+     * Records that command i was answered.
+     *
+     * @param i The index of the command.
+     * @param now The current time in milliseconds.
+     */
+    public void onAnswered(int i, long now){
+	if(i < 0 || i >= mCount){
+	    return;
+	}
+	//End if
+	if(mLastAnswered[i] >= 0){
+	    double interval = now - mLastAnswered[i];
+	    mIntervals[i] = mAnswers[i] > 1 ? mIntervals[i] + RATE_SMOOTHING * (interval - mIntervals[i]) : interval;
+	}
+	//End if
+	mLastAnswered[i] = now;
+	mAnswers[i]++;
+
+	//Close the circuit breaker
+	mPending[i] = false;
+	mFailures[i] = 0;
+	mPauses[i] = BREAKER_MIN;
+	mRetryAt[i] = 0;
+    }
+    //End onAnswered
+
+    /**
+     * Finishes the request picked by the last call to next. Called once its answers have been recorded with onAnswered.
+     * <p>
+     * Every command of the request that was not answered counts as a miss, unless the request as a whole was not
+     * understood, such as a batch the ECU rejects. Misses are only counted for mode 01 commands.
+     *
+     * @param now The current time in milliseconds.
+     * @param countMisses false if the request was rejected as a whole.
+     */
+    public void onRequestDone(long now, boolean countMisses){
+	for(int i = 0; i < mCount; i++){
+	    if(!mPending[i]){
+		continue;
+	    }
+	    //End if
+	    mPending[i] = false;
+	    if(!countMisses || mPids[i] < 0){
+		continue;
+	    }
+	    //End if
+
+	    //Open the circuit breaker, for longer on every miss after that
+	    mFailures[i]++;
+	    if(mFailures[i] >= BREAKER_FAILURES){
+		mRetryAt[i] = now + mPauses[i];
+		mPauses[i] = Math.min(mPauses[i] * 2, BREAKER_MAX);
+	    }
+	    //End if
+	}
+	//End for
+    }
+    //End onRequestDone
+
+    /**
+     * Returns the target rate of command i in Hz.
+     */
+    public double getTargetRate(int i){
+	return 1000.0 / mPeriods[i];
+    }
+    //End getTargetRate
+
+    /**
+     * Returns the measured answer rate of command i in Hz, or 0 before it has been answered twice.
+     */
+    public double getAchievedRate(int i){
+	return mIntervals[i] > 0 ? 1000.0 / mIntervals[i] : 0;
+    }
+    //End getAchievedRate
+
+    /**
+     * Returns the number of answers recorded for command i.
+     */
+    public long getAnswerCount(int i){
+	return mAnswers[i];
+    }
+    //End getAnswerCount
+
+    /**
+     * Builds a one line summary of the achieved and target rate of every command.
+     */
+    public String report(){
+	StringBuilder builder = new StringBuilder();
+	for(int i = 0; i < mCount; i++){
+	    if(i > 0){
+		builder.append(", ");
+	    }
+	    builder.append(mCommands[i]).append(' ');
+	    if(!mSupported[i]){
+		builder.append("unsupported");
+		continue;
+	    }
+	    //End if
+	    builder.append(Math.round(getAchievedRate(i) * 100) / 100.0).append('/');
+	    builder.append(Math.round(getTargetRate(i) * 100) / 100.0).append(" Hz");
+	    if(mFailures[i] >= BREAKER_FAILURES){
+		builder.append(" paused");
+	    }
+	    //End if
+	}
+	//End for
+	return builder.toString();
+    }
+    //End report
+
+    private boolean isEligible(int i, long now){
+	return mSupported[i] && !isPaused(i, now);
+    }
+    //End isEligible
+
+    private static boolean contains(int values[], int count, int value){
+	for(int i = 0; i < count; i++){
+	    if(values[i] == value){
+		return true;
+	    }
+	}
+	return false;
+    }
+    //End contains
+}
+//End PollScheduler
@@ -0,0 +1,114 @@
+package com.vroom;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * ReadBufferPool hands out byte arrays for the Bluetooth read loop and takes them back once the reader's
+ * consumer is done with them.
+ * <p>
+ * Every buffer posted in a read message is owned by the receiver until it is returned with {@link #release(byte[])},
+ * so the next read can never overwrite bytes that have not been handled yet. Buffers are only allocated when the
+ * pool runs dry, which after warm up means a consumer is falling behind.
+ *
+ * @version 1
+ *
+ * @see BluetoothHelper
+ */
+public class ReadBufferPool {
+
+    /**
+     * The default size of each buffer in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**
+     * The default number of buffers kept in the pool.
+     */
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    private final ArrayBlockingQueue<byte[]> mFree;
+    private final int mBufferSize;
+
+    //Number of buffers created since the pool was built
+    private volatile int mAllocations;
+
+    /**
+     * Constructor. Builds a pool with the default sizes.
+     */
+    public ReadBufferPool(){
+	this(DEFAULT_POOL_SIZE, DEFAULT_BUFFER_SIZE);
+    }
+    //End ReadBufferPool
+
+    /**
+     * Constructor. The pool is filled up front so the read loop does not allocate while it warms up.
+     *
+     * @param poolSize The maximum number of idle buffers kept.
+     * @param bufferSize The size of each buffer in bytes.
+     */
+    public ReadBufferPool(int poolSize, int bufferSize){
+	mFree = new ArrayBlockingQueue<byte[]>(poolSize);
+	mBufferSize = bufferSize;
+	for(int i = 0; i < poolSize; i++){
+	    mFree.offer(new byte[bufferSize]);
+	}
+	//End for
+	mAllocations = poolSize;
+    }
+    //End ReadBufferPool
+
+    /**
+     * Leases a buffer. The caller owns the buffer until it hands it back with release.
+     *
+     * @return A buffer of getBufferSize() bytes. Its contents are undefined.
+     */
+    public byte[] lease(){
+	byte[] buffer = mFree.poll();
+	if(buffer == null){
+	    //The consumer is holding every pooled buffer. Grow rather than stall the reader.
+	    mAllocations++;
+	    buffer = new byte[mBufferSize];
+	}
+	//End if
+	return buffer;
+    }
+    //End lease
+
+    /**
+     * Returns a leased buffer to the pool. Buffers of the wrong size and buffers beyond the pool size are dropped.
+     *
+     * @param buffer The buffer to return. May be null.
+     */
+    public void release(byte[] buffer){
+	if(buffer != null && buffer.length == mBufferSize){
+	    mFree.offer(buffer);
+	}
+	//End if
+    }
+    //End release
+
+    /**
+     * Returns the size of each buffer in bytes.
+     */
+    public int getBufferSize(){
+	return mBufferSize;
+    }
+    //End getBufferSize
+
+    /**
+     * Returns the number of idle buffers.
+     */
+    public int getIdleCount(){
+	return mFree.size();
+    }
+    //End getIdleCount
+
+    /**
+     * Returns the number of buffers allocated since the pool was built, including the initial fill.
+     */
+    public int getAllocationCount(){
+	return mAllocations;
+    }
+    //End getAllocationCount
+}
+//End ReadBufferPool
@@ -0,0 +1,332 @@
+package com.vroom;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * RfcommConnector opens the RFCOMM socket to an adapter, trying several ways of making it in turn.
+ * <p>
+ * Adapters differ a lot in which socket connects quickly: the secure SPP socket, the insecure SPP socket or the
+ * hidden channel 1 socket made by reflection. Each is tried under a hard timeout, after which a watchdog closes the
+ * socket to break the blocking connect. The way that worked last for an adapter is tried first next time, and the
+ * connect time of every way is measured.
+ * <p>
+ * The ways are tried one after another rather than in parallel, since most Bluetooth stacks fail or stall when two
+ * connects to the same device overlap. The reflected methods are looked up once.
+ *
+ * @version 1
+ *
+ * @see BluetoothHelper
+ */
+public class RfcommConnector {
+
+    private static final String TAG = "RfcommConnector";
+
+    /**
+     * The Serial Port Profile UUID the adapters listen on.
+     */
+    public static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    /**
+     * The ways of making the socket.
+     */
+    public static final int SECURE = 0;
+    public static final int INSECURE = 1;
+    public static final int CHANNEL_1 = 2;
+    public static final int STRATEGIES = 3;
+
+    private static final String NAMES[] = {"secure", "insecure", "channel 1"};
+
+    /**
+     * The default longest time in milliseconds one way may take to connect.
+     */
+    public static final long DEFAULT_TIMEOUT = 8000;
+
+    //Looked up once. Null when the platform does not have them.
+    private static Method sInsecure;
+    private static Method sChannel;
+    private static boolean sLookedUp;
+
+    private final long mTimeout;
+    private final Timer mWatchdog = new Timer("RfcommWatchdog", true);
+
+    //The way that connected last, by adapter address
+    private final HashMap<String, Integer> mWinners = new HashMap<String, Integer>();
+
+    //Connect measurements per way
+    private final int mAttempts[] = new int[STRATEGIES];
+    private final int mConnects[] = new int[STRATEGIES];
+    private final long mConnectMillis[] = new long[STRATEGIES];
+    private final long mLastMillis[] = new long[STRATEGIES];
+
+    /**
+     * Constructor.
+     *
+     * @param timeout The longest time in milliseconds one way may take to connect.
+     */
+    public RfcommConnector(long timeout){
+	mTimeout = timeout;
+	lookUp();
+    }
+    //End RfcommConnector
+
+    private static synchronized void lookUp(){
+	if(sLookedUp){
+	    return;
+	}
+	//End if
+	sLookedUp = true;
+	try {
+	    sInsecure = BluetoothDevice.class.getMethod("createInsecureRfcommSocketToServiceRecord", new Class[] {UUID.class});
+	}
+	catch (Exception e){
+	    Log.i(TAG, "No insecure sockets on this platform.");
+	}
+	//End try/catch
+	try {
+	    sChannel = BluetoothDevice.class.getMethod("createRfcommSocket", new Class[] {int.class});
+	}
+	catch (Exception e){
+	    Log.i(TAG, "No channel sockets on this platform.");
+	}
+	//End try/catch
+    }
+    //End lookUp
+
+    /**
+     * Returns true if the platform can make the socket the given way.
+     */
+    public static boolean isAvailable(int strategy){
+	switch(strategy){
+	case SECURE:
+	    return true;
+	case INSECURE:
+	    return sInsecure != null;
+	case CHANNEL_1:
+	    return sChannel != null;
+	default:
+	    return false;
+	}
+	//End switch
+    }
+    //End isAvailable
+
+    /**
+     * Returns the way that connected last to an adapter, or -1 if none is known.
+     */
+    public synchronized int getWinner(String address){
+	Integer winner = mWinners.get(address);
+	return winner != null ? winner.intValue() : -1;
+    }
+    //End getWinner
+
+    /**
+     * Sets the way tried first for an adapter, such as one stored from an earlier run. Unknown ways are ignored.
+     */
+    public synchronized void setWinner(String address, int strategy){
+	if(strategy >= 0 && strategy < STRATEGIES){
+	    mWinners.put(address, strategy);
+	}
+	//End if
+    }
+    //End setWinner
+
+    /**
+     * Prepares a connect to an adapter. Run it with {@link Attempt#connect()} on a thread that may block.
+     */
+    public Attempt open(BluetoothDevice device){
+	return new Attempt(device);
+    }
+    //End open
+
+    /**
+     * Returns the connect measurements of every way, such as "secure 3/4 in 412 ms (last 388 ms)".
+     */
+    public synchronized String report(){
+	StringBuilder report = new StringBuilder();
+	for(int i = 0; i < STRATEGIES; i++){
+	    if(i > 0){
+		report.append(", ");
+	    }
+	    //End if
+	    report.append(NAMES[i]).append(' ').append(mConnects[i]).append('/').append(mAttempts[i]);
+	    if(mConnects[i] > 0){
+		report.append(" in ").append(mConnectMillis[i] / mConnects[i]).append(" ms (last ").append(mLastMillis[i]).append(" ms)");
+	    }
+	    //End if
+	}
+	//End for
+	return report.toString();
+    }
+    //End report
+
+    /**
+     * Returns the ways to try for an adapter: the last winner first, then the others available.
+     */
+    private int[] order(String address){
+	int winner = getWinner(address);
+	int order[] = new int[STRATEGIES];
+	int count = 0;
+	if(winner >= 0 && isAvailable(winner)){
+	    order[count++] = winner;
+	}
+	//End if
+	for(int i = 0; i < STRATEGIES; i++){
+	    if(i != winner && isAvailable(i)){
+		order[count++] = i;
+	    }
+	    //End if
+	}
+	//End for
+
+	int result[] = new int[count];
+	System.arraycopy(order, 0, result, 0, count);
+	return result;
+    }
+    //End order
+
+    private static BluetoothSocket create(BluetoothDevice device, int strategy) throws Exception {
+	switch(strategy){
+	case INSECURE:
+	    return (BluetoothSocket) sInsecure.invoke(device, SPP_UUID);
+	case CHANNEL_1:
+	    return (BluetoothSocket) sChannel.invoke(device, 1);
+	default:
+	    return device.createRfcommSocketToServiceRecord(SPP_UUID);
+	}
+	//End switch
+    }
+    //End create
+
+    private synchronized void record(int strategy, boolean connected, long millis){
+	mAttempts[strategy]++;
+	if(connected){
+	    mConnects[strategy]++;
+	    mConnectMillis[strategy] += millis;
+	    mLastMillis[strategy] = millis;
+	}
+	//End if
+    }
+    //End record
+
+    private static void close(BluetoothSocket socket){
+	if(socket == null){
+	    return;
+	}
+	//End if
+	try {
+	    socket.close();
+	}
+	catch (IOException e){
+	    Log.e(TAG, "Unable to close socket. "+e.getMessage(), e.getCause());
+	}
+	//End try/catch
+    }
+    //End close
+
+    /**
+     * One connect to an adapter, which can be cancelled from another thread.
+     */
+    public class Attempt {
+	private final BluetoothDevice mDevice;
+	private volatile BluetoothSocket mSocket;
+	private volatile boolean mCancelled;
+
+	private Attempt(BluetoothDevice device){
+	    mDevice = device;
+	}
+	//End Attempt
+
+	/**
+	 * Tries the ways in order until one connects. Blocks for up to the timeout per way.
+	 *
+	 * @return The connected socket.
+	 * @throws IOException If every way failed or timed out, or the attempt was cancelled.
+	 */
+	public BluetoothSocket connect() throws IOException {
+	    String address = mDevice.getAddress();
+	    int order[] = order(address);
+	    String failure = "No way of connecting is available.";
+
+	    for(int i = 0; i < order.length && !mCancelled; i++){
+		final int strategy = order[i];
+		final BluetoothSocket socket;
+		try {
+		    socket = create(mDevice, strategy);
+		}
+		catch (Exception e){
+		    Log.e(TAG, "Unable to create the "+NAMES[strategy]+" socket. "+e.getMessage(), e.getCause());
+		    failure = e.toString();
+		    continue;
+		}
+		//End try/catch
+
+		//A cancel that came before the socket was published could not close it
+		mSocket = socket;
+		if(mCancelled){
+		    close(socket);
+		    break;
+		}
+		//End if
+
+		//Close the socket if the connect blocks for too long, which makes it throw
+		TimerTask watchdog = new TimerTask() {
+		    public void run(){
+			Log.w(TAG, "Connecting the "+NAMES[strategy]+" socket timed out.");
+			close(socket);
+		    }
+		    //End run
+		};
+		mWatchdog.schedule(watchdog, mTimeout);
+
+		long start = SystemClock.elapsedRealtime();
+		try {
+		    socket.connect();
+
+		    //A watchdog that already ran has closed the socket under us
+		    if(!watchdog.cancel()){
+			throw new IOException("Timed out.");
+		    }
+		    //End if
+		    long millis = SystemClock.elapsedRealtime() - start;
+		    record(strategy, true, millis);
+		    setWinner(address, strategy);
+		    Log.i(TAG, "Connected the "+NAMES[strategy]+" socket in "+millis+" ms.");
+		    return socket;
+		}
+		catch (IOException e){
+		    watchdog.cancel();
+		    record(strategy, false, 0);
+		    close(socket);
+		    Log.w(TAG, "Unable to connect the "+NAMES[strategy]+" socket. "+e.getMessage());
+		    failure = e.getMessage();
+		}
+		//End try/catch
+	    }
+	    //End for
+
+	    throw new IOException(mCancelled ? "Cancelled." : failure);
+	}
+	//End connect
+
+	/**
+	 * Cancels the attempt, closing the socket being connected.
+	 */
+	public void cancel(){
+	    mCancelled = true;
+	    close(mSocket);
+	}
+	//End cancel
+    }
+    //End Attempt
+}
+//End RfcommConnector
\ No newline at end of file
@@ -0,0 +1,126 @@
+package com.vroom;
+
+/**
+ * SampleRing hands decoded samples from one writing thread to one reading thread without locks.
+ * <p>
+ * The samples are held in parallel primitive arrays, so nothing is boxed or allocated per sample. The writer fills the
+ * slot at the head and then moves the head on, the reader takes the slots up to the head and then moves the tail on.
+ * Both positions are volatile, which makes the slot writes visible to the other side before the position that
+ * publishes them. Each position is only ever written by its own side, so no lock or compare-and-set is needed.
+ * <p>
+ * When the reader falls behind and the ring is full, new samples are dropped and counted rather than overwriting
+ * slots the reader may be reading.
+ * <p>
+ * Exactly one thread may call {@link #offer(int, float, long)} and exactly one other thread may call
+ * {@link #drain(Listener)}.
+ *
+ * @version 1
+ *
+ * @see Monitor
+ * @see GaugeView
+ * @see ChartView
+ */
+public final class SampleRing {
+
+    /**
+     * The default number of slots. At 50 samples per second this holds over five seconds.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Callback for the samples taken out of the ring.
+     */
+    public interface Listener {
+	/**
+	 * Called once per sample, oldest first, on the reading thread.
+	 *
+	 * @param pid The PID of the sample.
+	 * @param value The decoded value.
+	 * @param timeMillis When the value was decoded.
+	 */
+	void onSample(int pid, float value, long timeMillis);
+    }
+    //End Listener
+
+    private final int mPids[];
+    private final float mValues[];
+    private final long mTimes[];
+    private final int mMask;
+
+    //The next slot written and the next slot read. Only the writer moves mHead and only the reader moves mTail.
+    private volatile long mHead;
+    private volatile long mTail;
+
+    private volatile long mDropped;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of slots, rounded up to a power of two.
+     */
+    public SampleRing(int capacity){
+	int size = 1;
+	while(size < capacity){
+	    size <<= 1;
+	}
+	//End while
+	mPids = new int[size];
+	mValues = new float[size];
+	mTimes = new long[size];
+	mMask = size - 1;
+    }
+    //End SampleRing
+
+    /**
+     * Adds a sample. Called on the writing thread only.
+     *
+     * @return false if the ring was full and the sample was dropped.
+     */
+    public boolean offer(int pid, float value, long timeMillis){
+	long head = mHead;
+	if(head - mTail > mMask){
+	    mDropped++;
+	    return false;
+	}
+	//End if
+
+	int slot = (int) head & mMask;
+	mPids[slot] = pid;
+	mValues[slot] = value;
+	mTimes[slot] = timeMillis;
+
+	//Publish the slot
+	mHead = head + 1;
+	return true;
+    }
+    //End offer
+
+    /**
+     * Passes every sample written so far to the listener. Called on the reading thread only.
+     *
+     * @return The number of samples passed.
+     */
+    public int drain(Listener listener){
+	long tail = mTail;
+	long head = mHead;
+	for(long i = tail; i < head; i++){
+	    int slot = (int) i & mMask;
+	    listener.onSample(mPids[slot], mValues[slot], mTimes[slot]);
+	}
+	//End for
+
+	//Give the slots back to the writer
+	mTail = head;
+	return (int) (head - tail);
+    }
+    //End drain
+
+    /**
+     * Returns the number of samples dropped because the ring was full.
+     */
+    public long getDroppedCount(){
+	return mDropped;
+    }
+    //End getDroppedCount
+}
+//End SampleRing
\ No newline at end of file
@@ -0,0 +1,694 @@
+package com.vroom;
+
+import static android.provider.BaseColumns._ID;
+import static com.vroom.Constants.TABLE_SAMPLES;
+import static com.vroom.Constants.sampleVehicle;
+import static com.vroom.Constants.sampleSignal;
+import static com.vroom.Constants.sampleValue;
+import static com.vroom.Constants.sampleTime;
+import static com.vroom.Constants.TABLE_USERCODES;
+import static com.vroom.Constants.userCode;
+import static com.vroom.Constants.userVehicle;
+import static com.vroom.Constants.userCodeTime;
+import static com.vroom.Constants.TABLE_USERVEHICLES;
+import static com.vroom.Constants.vehicleId;
+import static com.vroom.Constants.TABLE_ROLLUP_MINUTE;
+import static com.vroom.Constants.TABLE_ROLLUP_HOUR;
+import static com.vroom.Constants.rollupVehicle;
+import static com.vroom.Constants.rollupSignal;
+import static com.vroom.Constants.rollupBucket;
+import static com.vroom.Constants.rollupMin;
+import static com.vroom.Constants.rollupMax;
+import static com.vroom.Constants.rollupTotal;
+import static com.vroom.Constants.rollupCount;
+import static com.vroom.Constants.ROLLUP_MINUTE;
+import static com.vroom.Constants.ROLLUP_HOUR;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * SampleWriter stores decoded values in the samples table, and trouble codes in the userCodes table, from its own thread.
+ * <p>
+ * Values are put in a bounded queue and written in groups: every {@link #COMMIT_PERIOD} milliseconds, or as soon as
+ * {@link #COMMIT_ROWS} rows are waiting, the queue is drained into a single transaction through precompiled
+ * insert statements. Vehicle identifiers are resolved to their userVehicles id on the writer thread. The database
+ * stays open while the writer runs, so a value no longer costs an open, a commit and a close of its own.
+ * <p>
+ * The per minute and per hour rollup tables are kept up to date in the same transaction. Each batch is aggregated in
+ * memory first, so a commit touches one rollup row per signal and period instead of one per value. The queue never blocks the caller. When it is full new values are dropped and counted.
+ * <p>
+ * Call {@link #flush(long)} when the link goes down or the activity pauses so nothing queued is lost.
+ * <p>
+ * If the writer thread dies, say because the database cannot be opened, values are refused and flushes return at once
+ * until {@link #start()} runs a new thread.
+ *
+ * @version 1
+ *
+ * @see Monitor
+ * @see DatabaseHelper
+ */
+public class SampleWriter implements Runnable {
+
+    private static final String TAG = "SampleWriter";
+
+    /**
+     * The longest time in milliseconds a value waits in the queue.
+     */
+    public static final long COMMIT_PERIOD = 1000;
+
+    /**
+     * The number of waiting rows that triggers a commit before the period is up.
+     */
+    public static final int COMMIT_ROWS = 64;
+
+    /**
+     * The number of rows the queue holds.
+     */
+    public static final int QUEUE_SIZE = 1024;
+
+    private static final String INSERT_SAMPLE = "INSERT INTO " + TABLE_SAMPLES + " ("
+	    + sampleVehicle + ", " + sampleSignal + ", " + sampleValue + ", " + sampleTime + ") VALUES (?, ?, ?, ?)";
+
+    private static final String INSERT_CODE = "INSERT INTO " + TABLE_USERCODES + " ("
+	    + userCode + ", " + userVehicle + ", " + userCodeTime + ") VALUES (?, ?, ?)";
+
+    /**
+     * Keeps one rollup table up to date. A batch is aggregated in memory, then merged into the table with one seed and
+     * one update per period it touches.
+     */
+    private static final class Rollup {
+	final long period;
+	final String seedSql;
+	final String updateSql;
+	SQLiteStatement seed;
+	SQLiteStatement update;
+
+	//The aggregates of the current batch
+	final long vehicles[] = new long[QUEUE_SIZE];
+	final int signals[] = new int[QUEUE_SIZE];
+	final long buckets[] = new long[QUEUE_SIZE];
+	final double minimums[] = new double[QUEUE_SIZE];
+	final double maximums[] = new double[QUEUE_SIZE];
+	final double totals[] = new double[QUEUE_SIZE];
+	final int counts[] = new int[QUEUE_SIZE];
+	int size;
+
+	Rollup(String table, long period){
+	    this.period = period;
+	    seedSql = "INSERT OR IGNORE INTO " + table + " (" + rollupVehicle + ", " + rollupSignal + ", " + rollupBucket + ", "
+		    + rollupMin + ", " + rollupMax + ", " + rollupTotal + ", " + rollupCount + ") VALUES (?, ?, ?, ?, ?, 0, 0)";
+	    updateSql = "UPDATE " + table + " SET " + rollupMin + " = MIN(" + rollupMin + ", ?), " + rollupMax + " = MAX(" + rollupMax + ", ?), "
+		    + rollupTotal + " = " + rollupTotal + " + ?, " + rollupCount + " = " + rollupCount + " + ? "
+		    + "WHERE " + rollupVehicle + " = ? AND " + rollupSignal + " = ? AND " + rollupBucket + " = ?";
+	}
+
+	void open(SQLiteDatabase db){
+	    seed = db.compileStatement(seedSql);
+	    update = db.compileStatement(updateSql);
+	}
+
+	void close(){
+	    if(seed != null){
+		seed.close();
+	    }
+	    //End if
+	    if(update != null){
+		update.close();
+	    }
+	    //End if
+	}
+
+	/**
+	 * Adds a value to the aggregate of its period. Values of one batch mostly share a few periods, so the search
+	 * starts from the newest aggregate.
+	 */
+	void add(long vehicle, int signal, long time, double value){
+	    long bucket = (time / period) * period;
+	    for(int i = size - 1; i >= 0; i--){
+		if(buckets[i] == bucket && signals[i] == signal && vehicles[i] == vehicle){
+		    minimums[i] = Math.min(minimums[i], value);
+		    maximums[i] = Math.max(maximums[i], value);
+		    totals[i] += value;
+		    counts[i]++;
+		    return;
+		}
+		//End if
+	    }
+	    //End for
+	    vehicles[size] = vehicle;
+	    signals[size] = signal;
+	    buckets[size] = bucket;
+	    minimums[size] = value;
+	    maximums[size] = value;
+	    totals[size] = value;
+	    counts[size] = 1;
+	    size++;
+	}
+
+	/**
+	 * Merges the aggregates into the table. Called inside the commit transaction.
+	 */
+	void write(){
+	    for(int i = 0; i < size; i++){
+		seed.clearBindings();
+		seed.bindLong(1, vehicles[i]);
+		seed.bindLong(2, signals[i]);
+		seed.bindLong(3, buckets[i]);
+		seed.bindDouble(4, minimums[i]);
+		seed.bindDouble(5, maximums[i]);
+		seed.executeInsert();
+
+		update.clearBindings();
+		update.bindDouble(1, minimums[i]);
+		update.bindDouble(2, maximums[i]);
+		update.bindDouble(3, totals[i]);
+		update.bindLong(4, counts[i]);
+		update.bindLong(5, vehicles[i]);
+		update.bindLong(6, signals[i]);
+		update.bindLong(7, buckets[i]);
+		update.execute();
+	    }
+	    //End for
+	    size = 0;
+	}
+    }
+    //End Rollup
+
+    private final DatabaseHelper mHelper;
+    private final Object mLock = new Object();
+
+    //The queue. Rows are kept in parallel arrays so queuing a value allocates nothing.
+    private final String mVehicles[] = new String[QUEUE_SIZE];
+    private final int mPids[] = new int[QUEUE_SIZE];
+    private final float mValues[] = new float[QUEUE_SIZE];
+    private final String mCodes[] = new String[QUEUE_SIZE];
+    private final long mTimes[] = new long[QUEUE_SIZE];
+    private int mHead;
+    private int mDepth;
+
+    //The rows being written, copied out of the queue so it can keep filling during the commit
+    private final String mBatchVehicles[] = new String[QUEUE_SIZE];
+    private final int mBatchPids[] = new int[QUEUE_SIZE];
+    private final float mBatchValues[] = new float[QUEUE_SIZE];
+    private final String mBatchCodes[] = new String[QUEUE_SIZE];
+    private final long mBatchTimes[] = new long[QUEUE_SIZE];
+
+    //The rollup tables, maintained by the writer thread
+    private final Rollup mMinutes = new Rollup(TABLE_ROLLUP_MINUTE, ROLLUP_MINUTE);
+    private final Rollup mHours = new Rollup(TABLE_ROLLUP_HOUR, ROLLUP_HOUR);
+
+    //The last vehicle identifier resolved and its userVehicles id. Only used on the writer thread.
+    private String mVehicle;
+    private long mVehicleKey = -1;
+
+    //Rows queued and rows handled since the writer was built, used to wait for a flush
+    private long mQueued;
+    private long mHandled;
+    private boolean mFlushRequested;
+
+    private Thread mThread;
+    private boolean mRunning;
+
+    //Metrics
+    private int mMaxDepth;
+    private long mDropped;
+    private long mCommits;
+    private long mRowsWritten;
+    private long mFailures;
+    private double mLastCommitMillis;
+    private double mTotalCommitMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param helper The helper of the database to write to.
+     */
+    public SampleWriter(DatabaseHelper helper){
+	mHelper = helper;
+    }
+    //End SampleWriter
+
+    /**
+     * Starts the writer thread. Does nothing if it is already running.
+     */
+    public void start(){
+	synchronized(mLock){
+	    if(mThread != null){
+		return;
+	    }
+	    //End if
+	    mRunning = true;
+	    mThread = new Thread(this, TAG);
+	    mThread.start();
+	}
+	//End synchronized
+    }
+    //End start
+
+    /**
+     * Writes whatever is queued, then stops the writer thread.
+     *
+     * @param timeoutMillis The longest time to wait for the last commit.
+     */
+    public void stop(long timeoutMillis){
+	Thread thread;
+	synchronized(mLock){
+	    thread = mThread;
+	    mThread = null;
+	    mRunning = false;
+	    mLock.notifyAll();
+	}
+	//End synchronized
+	if(thread != null){
+	    try {
+		thread.join(timeoutMillis);
+	    }
+	    catch (InterruptedException e){
+		Thread.currentThread().interrupt();
+	    }
+	    //End try/catch
+	}
+	//End if
+    }
+    //End stop
+
+    /**
+     * Queues a mode 01 value.
+     *
+     * @param identifier The identifier of the vehicle the value was read from, or null if it is not known yet.
+     * @param pid The PID of the value. Stored as the signal id.
+     * @param value The value.
+     * @param timeMillis The time the value was read.
+     * @return false if the queue was full or the writer is not running, and the value was dropped.
+     */
+    public boolean put(String identifier, int pid, float value, long timeMillis){
+	return queue(identifier, pid, value, null, timeMillis);
+    }
+    //End put
+
+    /**
+     * Queues a trouble code.
+     *
+     * @param identifier The identifier of the vehicle the code was read from, or null if it is not known yet.
+     * @param code The code.
+     * @param timeMillis The time the code was read.
+     * @return false if the queue was full or the writer is not running, and the code was dropped.
+     */
+    public boolean putCode(String identifier, String code, long timeMillis){
+	return queue(identifier, -1, 0, code, timeMillis);
+    }
+    //End putCode
+
+    /**
+     * Asks the writer to commit everything queued so far and waits until it has.
+     *
+     * @param timeoutMillis The longest time to wait.
+     * @return true if everything queued before the call has been handled.
+     */
+    public boolean flush(long timeoutMillis){
+	synchronized(mLock){
+	    //With no writer thread alive nothing will be handled, so there is nothing to wait for
+	    if(mThread == null){
+		return mHandled >= mQueued;
+	    }
+	    //End if
+	    long target = mQueued;
+	    long deadline = System.currentTimeMillis() + timeoutMillis;
+	    mFlushRequested = true;
+	    mLock.notifyAll();
+	    while(mHandled < target && mThread != null){
+		long left = deadline - System.currentTimeMillis();
+		if(left <= 0){
+		    return false;
+		}
+		//End if
+		try {
+		    mLock.wait(left);
+		}
+		catch (InterruptedException e){
+		    Thread.currentThread().interrupt();
+		    return false;
+		}
+		//End try/catch
+	    }
+	    //End while
+	    return mHandled >= target;
+	}
+	//End synchronized
+    }
+    //End flush
+
+    /**
+     * Returns the number of rows waiting in the queue.
+     */
+    public int getQueueDepth(){
+	synchronized(mLock){
+	    return mDepth;
+	}
+	//End synchronized
+    }
+    //End getQueueDepth
+
+    /**
+     * Returns the largest number of rows that have waited in the queue at once.
+     */
+    public int getMaxQueueDepth(){
+	synchronized(mLock){
+	    return mMaxDepth;
+	}
+	//End synchronized
+    }
+    //End getMaxQueueDepth
+
+    /**
+     * Returns the number of rows dropped because the queue was full.
+     */
+    public long getDroppedCount(){
+	synchronized(mLock){
+	    return mDropped;
+	}
+	//End synchronized
+    }
+    //End getDroppedCount
+
+    /**
+     * Returns the number of transactions committed.
+     */
+    public long getCommitCount(){
+	synchronized(mLock){
+	    return mCommits;
+	}
+	//End synchronized
+    }
+    //End getCommitCount
+
+    /**
+     * Returns the number of rows written.
+     */
+    public long getRowCount(){
+	synchronized(mLock){
+	    return mRowsWritten;
+	}
+	//End synchronized
+    }
+    //End getRowCount
+
+    /**
+     * Returns the time the last commit took in milliseconds.
+     */
+    public double getLastCommitMillis(){
+	synchronized(mLock){
+	    return mLastCommitMillis;
+	}
+	//End synchronized
+    }
+    //End getLastCommitMillis
+
+    /**
+     * Returns the average time a commit took in milliseconds, or 0 before the first commit.
+     */
+    public double getAverageCommitMillis(){
+	synchronized(mLock){
+	    return mCommits > 0 ? mTotalCommitMillis / mCommits : 0;
+	}
+	//End synchronized
+    }
+    //End getAverageCommitMillis
+
+    /**
+     * Builds a one line summary of the writer metrics.
+     */
+    public String report(){
+	synchronized(mLock){
+	    return "depth " + mDepth + "/" + mMaxDepth + " max, " + mRowsWritten + " rows in " + mCommits + " commits, "
+		    + Math.round(getAverageCommitMillis() * 100) / 100.0 + " ms avg, " + Math.round(mLastCommitMillis * 100) / 100.0
+		    + " ms last, " + mDropped + " dropped, " + mFailures + " failed";
+	}
+	//End synchronized
+    }
+    //End report
+
+    /**
+     * The writer loop. Waits for a full group, the end of the period or a flush, then commits what is queued.
+     */
+    public void run(){
+	SQLiteDatabase db = null;
+	SQLiteStatement insert = null;
+	SQLiteStatement insertCode = null;
+	try {
+	    db = mHelper.getWritableDatabase();
+	    insert = db.compileStatement(INSERT_SAMPLE);
+	    insertCode = db.compileStatement(INSERT_CODE);
+	    mMinutes.open(db);
+	    mHours.open(db);
+
+	    while(true){
+		int count;
+		synchronized(mLock){
+		    long deadline = System.currentTimeMillis() + COMMIT_PERIOD;
+		    while(mRunning && !mFlushRequested && mDepth < COMMIT_ROWS){
+			long left = deadline - System.currentTimeMillis();
+			if(left <= 0){
+			    break;
+			}
+			//End if
+			mLock.wait(left);
+		    }
+		    //End while
+		    mFlushRequested = false;
+		    count = drain();
+		    if(count == 0 && !mRunning){
+			break;
+		    }
+		    //End if
+		}
+		//End synchronized
+
+		if(count > 0){
+		    commit(db, insert, insertCode, count);
+		}
+		//End if
+	    }
+	    //End while
+	}
+	catch (InterruptedException e){
+	    Log.e(TAG, "Sample writer interrupted. "+e.getMessage(), e.getCause());
+	}
+	catch (Exception e){
+	    Log.e(TAG, "Unable to run the sample writer. "+e.getMessage(), e.getCause());
+	}
+	finally {
+	    if(insert != null){
+		insert.close();
+	    }
+	    //End if
+	    if(insertCode != null){
+		insertCode.close();
+	    }
+	    //End if
+	    mMinutes.close();
+	    mHours.close();
+	    synchronized(mLock){
+		//Nothing more will be written. Let waiting flushes go and let start run a new thread.
+		mHandled = mQueued;
+		if(mThread == Thread.currentThread()){
+		    mThread = null;
+		    mRunning = false;
+		}
+		//End if
+		mLock.notifyAll();
+	    }
+	    //End synchronized
+	}
+	//End try/catch/finally
+    }
+    //End run
+
+    /**
+     * Adds a row to the queue.
+     */
+    private boolean queue(String identifier, int pid, float value, String code, long timeMillis){
+	synchronized(mLock){
+	    //Without a writer thread the row would only sit in the queue
+	    if(mDepth == QUEUE_SIZE || mThread == null){
+		mDropped++;
+		return false;
+	    }
+	    //End if
+	    int i = (mHead + mDepth) % QUEUE_SIZE;
+	    mVehicles[i] = identifier;
+	    mPids[i] = pid;
+	    mValues[i] = value;
+	    mCodes[i] = code;
+	    mTimes[i] = timeMillis;
+	    mDepth++;
+	    mQueued++;
+	    if(mDepth > mMaxDepth){
+		mMaxDepth = mDepth;
+	    }
+	    //End if
+	    if(mDepth >= COMMIT_ROWS){
+		mLock.notifyAll();
+	    }
+	    //End if
+	    return true;
+	}
+	//End synchronized
+    }
+    //End queue
+
+    /**
+     * Moves every queued row into the batch arrays. Called with the lock held.
+     *
+     * @return The number of rows moved.
+     */
+    private int drain(){
+	int count = mDepth;
+	for(int k = 0; k < count; k++){
+	    int i = (mHead + k) % QUEUE_SIZE;
+	    mBatchVehicles[k] = mVehicles[i];
+	    mBatchPids[k] = mPids[i];
+	    mBatchValues[k] = mValues[i];
+	    mBatchCodes[k] = mCodes[i];
+	    mBatchTimes[k] = mTimes[i];
+	    mVehicles[i] = null;
+	    mCodes[i] = null;
+	}
+	//End for
+	mHead = (mHead + count) % QUEUE_SIZE;
+	mDepth = 0;
+	return count;
+    }
+    //End drain
+
+    /**
+     * Writes the batch in one transaction.
+     */
+    private void commit(SQLiteDatabase db, SQLiteStatement insert, SQLiteStatement insertCode, int count){
+	long start = System.nanoTime();
+	int written = 0;
+	boolean failed = false;
+	mMinutes.size = 0;
+	mHours.size = 0;
+	db.beginTransaction();
+	try {
+	    for(int k = 0; k < count; k++){
+		long vehicle = vehicleKey(db, mBatchVehicles[k]);
+		if(mBatchCodes[k] != null){
+		    insertCode.clearBindings();
+		    insertCode.bindString(1, mBatchCodes[k]);
+		    bindVehicle(insertCode, 2, vehicle);
+		    insertCode.bindLong(3, mBatchTimes[k]);
+		    insertCode.executeInsert();
+		}
+		else {
+		    insert.clearBindings();
+		    bindVehicle(insert, 1, vehicle);
+		    insert.bindLong(2, mBatchPids[k]);
+		    insert.bindDouble(3, mBatchValues[k]);
+		    insert.bindLong(4, mBatchTimes[k]);
+		    insert.executeInsert();
+
+		    //Rollups file values without a vehicle under 0
+		    long rollupKey = vehicle < 0 ? 0 : vehicle;
+		    mMinutes.add(rollupKey, mBatchPids[k], mBatchTimes[k], mBatchValues[k]);
+		    mHours.add(rollupKey, mBatchPids[k], mBatchTimes[k], mBatchValues[k]);
+		}
+		//End if/else
+		written++;
+	    }
+	    //End for
+	    mMinutes.write();
+	    mHours.write();
+	    db.setTransactionSuccessful();
+	}
+	catch (Exception e){
+	    failed = true;
+	    written = 0;
+	    //A vehicle added in the failed transaction is gone again
+	    mVehicle = null;
+	    Log.e(TAG, "Unable to write samples. "+e.getMessage(), e.getCause());
+	}
+	finally {
+	    db.endTransaction();
+	}
+	//End try/catch/finally
+
+	double millis = (System.nanoTime() - start) / 1000000.0;
+	synchronized(mLock){
+	    mCommits++;
+	    mRowsWritten += written;
+	    if(failed){
+		mFailures++;
+	    }
+	    //End if
+	    mLastCommitMillis = millis;
+	    mTotalCommitMillis += millis;
+	    mHandled += count;
+	    mLock.notifyAll();
+	}
+	//End synchronized
+
+	for(int k = 0; k < count; k++){
+	    mBatchVehicles[k] = null;
+	    mBatchCodes[k] = null;
+	}
+	//End for
+    }
+    //End commit
+
+    /**
+     * Returns the userVehicles id of a vehicle identifier, adding the vehicle if it is new, or -1 for no vehicle.
+     * A null or empty identifier means no vehicle. Called inside the commit transaction.
+     */
+    private long vehicleKey(SQLiteDatabase db, String identifier){
+	if(identifier == null || identifier.length() == 0){
+	    return -1;
+	}
+	//End if
+	if(identifier.equals(mVehicle)){
+	    return mVehicleKey;
+	}
+	//End if
+
+	long key = -1;
+	Cursor cursor = db.query(TABLE_USERVEHICLES, new String[] {_ID}, vehicleId + " = ?", new String[] {identifier}, null, null, null);
+	try {
+	    if(cursor.moveToFirst()){
+		key = cursor.getLong(0);
+	    }
+	    //End if
+	}
+	finally {
+	    cursor.close();
+	}
+	//End try/finally
+	if(key < 0){
+	    ContentValues values = new ContentValues();
+	    values.put(vehicleId, identifier);
+	    key = db.insertOrThrow(TABLE_USERVEHICLES, null, values);
+	}
+	//End if
+
+	mVehicle = identifier;
+	mVehicleKey = key;
+	return key;
+    }
+    //End vehicleKey
+
+    private static void bindVehicle(SQLiteStatement statement, int index, long vehicle){
+	if(vehicle < 0){
+	    statement.bindNull(index);
+	}
+	else {
+	    statement.bindLong(index, vehicle);
+	}
+	//End if/else
+    }
+    //End bindVehicle
+}
+//End SampleWriter
@@ -0,0 +1,291 @@
+package com.vroom;
+
+/**
+ * TroubleCodeDecoder reads the answers to the trouble code requests: stored (03), pending (07) and permanent (0A).
+ * <p>
+ * Lines are decoded byte by byte as they arrive, straight from the adapter's line buffer, and only the two byte codes
+ * found are kept. Every answer is read as its own message:
+ * <ul>
+ * <li>a CAN single frame line, holding the mode byte, the number of codes and the codes (43 02 01 33 04 20);</li>
+ * <li>a CAN multi-frame answer, a byte count line followed by numbered frames (00A, 0: 43 04 ..., 1: ...), read up to
+ * the byte count so the padding of the last frame is ignored;</li>
+ * <li>a line of the older protocols, holding the mode byte and three codes padded with zeros (43 01 33 00 00 00 00).</li>
+ * </ul>
+ * CAN lines always hold an even number of bytes and the older lines seven, which is how the two are told apart. When
+ * several ECUs answer, their messages follow one another and the codes of all of them are reported once each. A
+ * frame that arrives out of order ends its message, since its bytes can not be placed.
+ * <p>
+ * The decoder is not thread safe. It is driven by whatever thread handles the adapter's responses.
+ *
+ * @version 1
+ *
+ * @see ObdSession
+ * @see PidBatcher
+ */
+public class TroubleCodeDecoder {
+
+    /**
+     * The requests for stored, pending and permanent trouble codes.
+     */
+    public static final int MODE_STORED = 0x03;
+    public static final int MODE_PENDING = 0x07;
+    public static final int MODE_PERMANENT = 0x0A;
+
+    /**
+     * The largest number of distinct codes kept for one request.
+     */
+    public static final int MAX_CODES = 128;
+
+    /**
+     * Callback for the codes found in an answer.
+     */
+    public interface Listener {
+	/**
+	 * Called once for every distinct code found.
+	 *
+	 * @param mode The request the code answers, one of the MODE_ constants.
+	 * @param code The two byte code. Use {@link TroubleCodeDecoder#format(int)} to turn it into its text form.
+	 */
+	void onTroubleCode(int mode, int code);
+    }
+    //End Listener
+
+    private static final char SYSTEMS[] = {'P', 'C', 'B', 'U'};
+    private static final char DIGITS[] = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    //What the next byte of the current message is
+    private static final int MODE = 0;
+    private static final int COUNT = 1;
+    private static final int HIGH = 2;
+    private static final int LOW = 3;
+    private static final int SKIP = 4;
+
+    //The outstanding request and the first two characters of its answers, or -1 if there is none
+    private int mMode = -1;
+    private char mPrefix0;
+    private char mPrefix1;
+
+    //The codes found so far
+    private final int mCodes[] = new int[MAX_CODES];
+    private int mCount;
+
+    //The state of the current message
+    private int mState = SKIP;
+    private boolean mCounted;
+    private int mCodesLeft;
+    private int mBytesLeft;
+    private int mNextFrame;
+    private int mHigh;
+
+    /**
+     * Marks a trouble code request as outstanding. Modes other than the trouble code requests are ignored.
+     *
+     * @param mode The request sent, one of the MODE_ constants.
+     */
+    public void begin(int mode){
+	if(mode != MODE_STORED && mode != MODE_PENDING && mode != MODE_PERMANENT){
+	    mMode = -1;
+	    return;
+	}
+	//End if
+	mMode = mode;
+	mPrefix0 = DIGITS[(0x40 | mode) >> 4];
+	mPrefix1 = DIGITS[mode & 0xF];
+	mCount = 0;
+	mState = SKIP;
+	mNextFrame = -1;
+    }
+    //End begin
+
+    /**
+     * Offers a response line to the decoder.
+     *
+     * @param line The trimmed response line. Only read during the call, so a reused line buffer can be passed.
+     * @return true if the line was part of the answer to the outstanding request.
+     */
+    public boolean onLine(CharSequence line){
+	if(mMode < 0){
+	    return false;
+	}
+	//End if
+
+	int length = line.length();
+	if(length == 3 && PidBatcher.isHex(line, 0, 3)){
+	    //Byte count line starting a multi-frame message
+	    startMessage(true);
+	    mBytesLeft = (PidBatcher.hexValue(line.charAt(0)) << 8) | (PidBatcher.hexValue(line.charAt(1)) << 4)
+		    | PidBatcher.hexValue(line.charAt(2));
+	    mNextFrame = 0;
+	    return true;
+	}
+	else if(length > 2 && line.charAt(1) == ':' && PidBatcher.isHex(line, 0, 1)){
+	    //Consecutive frame. Numbers wrap after F.
+	    if(mNextFrame < 0 || PidBatcher.hexValue(line.charAt(0)) != (mNextFrame & 0xF)){
+		mState = SKIP;
+	    }
+	    //End if
+	    mNextFrame++;
+	    feed(line, 2);
+	    return true;
+	}
+	else if(length >= 2 && line.charAt(0) == mPrefix0 && line.charAt(1) == mPrefix1){
+	    //A whole message on one line
+	    startMessage(countBytes(line) % 2 == 0);
+	    mBytesLeft = -1;
+	    mNextFrame = -1;
+	    feed(line, 0);
+	    return true;
+	}
+	//End if/else
+	return false;
+    }
+    //End onLine
+
+    /**
+     * Finishes the outstanding request when the adapter sends its prompt and passes every code found to the listener.
+     *
+     * @param listener The listener receiving the codes.
+     * @return The number of codes found, or -1 if no trouble code request was outstanding.
+     */
+    public int onPrompt(Listener listener){
+	if(mMode < 0){
+	    return -1;
+	}
+	//End if
+
+	int mode = mMode;
+	mMode = -1;
+	for(int i = 0; i < mCount; i++){
+	    listener.onTroubleCode(mode, mCodes[i]);
+	}
+	//End for
+	return mCount;
+    }
+    //End onPrompt
+
+    /**
+     * Returns the text form of a two byte code, such as P0133 for 0x0133.
+     */
+    public static String format(int code){
+	char text[] = new char[5];
+	text[0] = SYSTEMS[(code >> 14) & 0x3];
+	text[1] = DIGITS[(code >> 12) & 0x3];
+	text[2] = DIGITS[(code >> 8) & 0xF];
+	text[3] = DIGITS[(code >> 4) & 0xF];
+	text[4] = DIGITS[code & 0xF];
+	return new String(text);
+    }
+    //End format
+
+    private void startMessage(boolean counted){
+	mState = MODE;
+	mCounted = counted;
+	mCodesLeft = -1;
+    }
+    //End startMessage
+
+    /**
+     * Parses the hex digit pairs of a line from start on, skipping spaces, and passes each byte on.
+     */
+    private void feed(CharSequence line, int start){
+	int high = -1;
+	for(int i = start; i < line.length() && mState != SKIP; i++){
+	    int digit = PidBatcher.hexValue(line.charAt(i));
+	    if(digit < 0){
+		continue;
+	    }
+	    //End if
+	    if(high < 0){
+		high = digit;
+		continue;
+	    }
+	    //End if
+
+	    int value = (high << 4) | digit;
+	    high = -1;
+
+	    //Multi-frame messages end at their byte count, the rest of the last frame is padding
+	    if(mBytesLeft == 0){
+		mState = SKIP;
+		break;
+	    }
+	    else if(mBytesLeft > 0){
+		mBytesLeft--;
+	    }
+	    //End if/else
+	    onByte(value);
+	}
+	//End for
+    }
+    //End feed
+
+    private void onByte(int value){
+	switch(mState){
+	case MODE:
+	    mState = value == (0x40 | mMode) ? (mCounted ? COUNT : HIGH) : SKIP;
+	    break;
+	case COUNT:
+	    mCodesLeft = value;
+	    mState = HIGH;
+	    break;
+	case HIGH:
+	    if(mCodesLeft == 0){
+		mState = SKIP;
+		break;
+	    }
+	    //End if
+	    mHigh = value;
+	    mState = LOW;
+	    break;
+	case LOW:
+	    if(mCodesLeft > 0){
+		mCodesLeft--;
+	    }
+	    //End if
+	    add((mHigh << 8) | value);
+	    mState = HIGH;
+	    break;
+	default:
+	    break;
+	}
+	//End switch
+    }
+    //End onByte
+
+    /**
+     * Keeps a code unless it is padding or already known.
+     */
+    private void add(int code){
+	if(code == 0){
+	    return;
+	}
+	//End if
+	for(int i = 0; i < mCount; i++){
+	    if(mCodes[i] == code){
+		return;
+	    }
+	}
+	//End for
+	if(mCount < MAX_CODES){
+	    mCodes[mCount++] = code;
+	}
+	//End if
+    }
+    //End add
+
+    /**
+     * Returns the number of whole bytes written as hex digits in a line.
+     */
+    private static int countBytes(CharSequence line){
+	int digits = 0;
+	for(int i = 0; i < line.length(); i++){
+	    if(PidBatcher.hexValue(line.charAt(i)) >= 0){
+		digits++;
+	    }
+	}
+	//End for
+	return digits / 2;
+    }
+    //End countBytes
+}
+//End TroubleCodeDecoder
@@ -1,13 +1,13 @@
-package com.vroom;
-
-import android.app.Activity;
-import android.os.Bundle;
-
-public class Upload extends Activity{
-
-	@Override
-	protected void onCreate(Bundle savedInstanceState) {
-		super.onCreate(savedInstanceState);
-		setContentView(R.layout.upload);
-	}
-}
+package com.vroom;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+public class Upload extends Activity{
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.upload);
+	}
+}
@@ -0,0 +1,266 @@
+package com.vroom;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * VehicleInfoCache keeps the vehicle data that never or rarely changes, such as the serial number, the calibration ids
+ * and the supported PID bitmaps, so they are not asked for again on every connect.
+ * <p>
+ * Every value is kept per adapter MAC address and vehicle serial number, together with the time it was read. A value
+ * older than the time to live is treated as missing, so it is read again and put back. Values can also be dropped
+ * explicitly, for one item or for everything known about a vehicle.
+ * <p>
+ * The values are held in memory and stored in their own preferences file. Loading and every write run on the cache's
+ * own thread, so the UI thread never waits on the disk. Reads wait for the first load only.
+ *
+ * @version 1
+ *
+ * @see Monitor
+ * @see ObdSession
+ */
+public class VehicleInfoCache {
+
+    private static final String TAG = "VehicleInfoCache";
+
+    /**
+     * The preferences file holding the values.
+     */
+    public static final String PREFS_NAME = "vehicle_info";
+
+    /**
+     * The default time to live of a value in milliseconds, thirty days.
+     */
+    public static final long DEFAULT_TTL = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The items kept. VEHICLE_ID is kept per adapter only, as the vehicle last seen through it.
+     */
+    public static final String VEHICLE_ID = "vin";
+    public static final String PROTOCOL = "protocol";
+    public static final String CALIBRATION_ID = "calid";
+    public static final String CALIBRATION_CVN = "cvn";
+    public static final String SUPPORTED = "pids_";
+
+    private static final char SEPARATOR = '/';
+
+    private final SharedPreferences mPrefs;
+    private final long mTtl;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+    //The values by key, each stored as the time it was read, a colon and the value
+    private final HashMap<String, String> mValues = new HashMap<String, String>();
+
+    /**
+     * Constructor. Starts loading the stored values on the cache thread.
+     *
+     * @param context The context the preferences belong to.
+     * @param ttl The time to live of a value in milliseconds.
+     */
+    public VehicleInfoCache(Context context, long ttl){
+	mPrefs = context.getSharedPreferences(PREFS_NAME, 0);
+	mTtl = ttl;
+	mExecutor.execute(new Runnable() {
+	    public void run(){
+		load();
+	    }
+	});
+    }
+    //End VehicleInfoCache
+
+    /**
+     * Returns a value, or null if it is not known or has expired.
+     *
+     * @param address The MAC address of the adapter.
+     * @param vehicle The serial number of the vehicle, or an empty String for items kept per adapter.
+     * @param item One of the item constants.
+     */
+    public String get(String address, String vehicle, String item){
+	awaitLoaded();
+	String stored;
+	synchronized(mValues){
+	    stored = mValues.get(key(address, vehicle, item));
+	}
+	if(stored == null || isExpired(stored, System.currentTimeMillis())){
+	    return null;
+	}
+	//End if
+	return stored.substring(stored.indexOf(':') + 1);
+    }
+    //End get
+
+    /**
+     * Keeps a value, read just now. It is stored on the cache thread.
+     *
+     * @param address The MAC address of the adapter.
+     * @param vehicle The serial number of the vehicle, or an empty String for items kept per adapter.
+     * @param item One of the item constants.
+     * @param value The value.
+     */
+    public void put(String address, String vehicle, String item, String value){
+	final String key = key(address, vehicle, item);
+	long now = System.currentTimeMillis();
+	final String stored = now + ":" + value;
+	synchronized(mValues){
+	    String old = mValues.get(key);
+	    if(old != null && valueOf(old).equals(valueOf(stored)) && !isExpired(old, now)){
+		//Nothing to write. The value keeps the time it was first read, so it still expires.
+		return;
+	    }
+	    //End if
+	    mValues.put(key, stored);
+	}
+	mExecutor.execute(new Runnable() {
+	    public void run(){
+		mPrefs.edit().putString(key, stored).commit();
+	    }
+	});
+    }
+    //End put
+
+    /**
+     * Drops one value, so it is read again on the next connect.
+     */
+    public void invalidate(String address, String vehicle, String item){
+	remove(key(address, vehicle, item));
+    }
+    //End invalidate
+
+    /**
+     * Drops everything known about a vehicle through an adapter.
+     */
+    public void invalidate(String address, String vehicle){
+	remove(key(address, vehicle, ""));
+    }
+    //End invalidate
+
+    /**
+     * Stops the cache thread. Writes already queued still run.
+     */
+    public void close(){
+	mExecutor.shutdown();
+    }
+    //End close
+
+    /**
+     * Returns the item a supported PID bitmap is kept under, such as pids_20 for the bitmap read with 0120.
+     */
+    public static String supportedItem(int base){
+	return SUPPORTED + Character.forDigit(base >> 4, 16) + Character.forDigit(base & 0xF, 16);
+    }
+    //End supportedItem
+
+    private static String key(String address, String vehicle, String item){
+	return address + SEPARATOR + vehicle + SEPARATOR + item;
+    }
+    //End key
+
+    /**
+     * Returns the colon and value part of a stored value, or null.
+     */
+    private static String valueOf(String stored){
+	return stored != null ? stored.substring(stored.indexOf(':')) : null;
+    }
+    //End valueOf
+
+    private boolean isExpired(String stored, long now){
+	try {
+	    return now - Long.parseLong(stored.substring(0, stored.indexOf(':'))) > mTtl;
+	}
+	catch (NumberFormatException e){
+	    return true;
+	}
+	//End try/catch
+    }
+    //End isExpired
+
+    /**
+     * Drops every value whose key starts with the prefix, in memory now and on disk on the cache thread.
+     */
+    private void remove(final String prefix){
+	synchronized(mValues){
+	    Iterator<String> keys = mValues.keySet().iterator();
+	    while(keys.hasNext()){
+		if(keys.next().startsWith(prefix)){
+		    keys.remove();
+		}
+		//End if
+	    }
+	    //End while
+	}
+	mExecutor.execute(new Runnable() {
+	    public void run(){
+		SharedPreferences.Editor editor = mPrefs.edit();
+		for(String key : mPrefs.getAll().keySet()){
+		    if(key.startsWith(prefix)){
+			editor.remove(key);
+		    }
+		    //End if
+		}
+		//End for
+		editor.commit();
+	    }
+	});
+    }
+    //End remove
+
+    /**
+     * Reads the stored values into memory, dropping the expired ones from the file. Runs on the cache thread.
+     */
+    private void load(){
+	try {
+	    long now = System.currentTimeMillis();
+	    SharedPreferences.Editor expired = null;
+	    for(Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()){
+		Object value = entry.getValue();
+		if(!(value instanceof String) || ((String) value).indexOf(':') < 0 || isExpired((String) value, now)){
+		    expired = expired != null ? expired : mPrefs.edit();
+		    expired.remove(entry.getKey());
+		    continue;
+		}
+		//End if
+		synchronized(mValues){
+		    //A value put while loading is newer than the stored one
+		    if(!mValues.containsKey(entry.getKey())){
+			mValues.put(entry.getKey(), (String) value);
+		    }
+		    //End if
+		}
+	    }
+	    //End for
+	    if(expired != null){
+		expired.commit();
+	    }
+	    //End if
+	}
+	catch (Exception e){
+	    Log.e(TAG, "Unable to load the vehicle data. "+e.getMessage(), e.getCause());
+	}
+	finally {
+	    mLoaded.countDown();
+	}
+	//End try/catch/finally
+    }
+    //End load
+
+    private void awaitLoaded(){
+	try {
+	    mLoaded.await();
+	}
+	catch (InterruptedException e){
+	    Thread.currentThread().interrupt();
+	}
+	//End try/catch
+    }
+    //End awaitLoaded
+}
+//End VehicleInfoCache
\ No newline at end of file
@@ -0,0 +1,304 @@
+package com.vroom;
+
+/**
+ * VehicleInfoDecoder reads the answers to the mode 09 vehicle information requests: the serial number (0902), the
+ * calibration ids (0904) and the calibration verification numbers (0906).
+ * <p>
+ * Every answer starts with 49, the info type and a third byte, followed by the data. The answer can come as:
+ * <ul>
+ * <li>a CAN multi-frame answer, a byte count line followed by numbered frames (014, 0: 49 02 01 31 47 31, 1: ...),
+ * read up to the byte count so the padding of the last frame is ignored;</li>
+ * <li>a CAN single frame line, where the third byte is the number of items (49 06 01 1A 2B 3C 4D);</li>
+ * <li>numbered lines of the older protocols, where the third byte counts the lines from 1 and every line holds four
+ * data bytes (49 02 01 00 00 00 31, 49 02 02 47 31 4A 43, ...).</li>
+ * </ul>
+ * A single frame counts as line 1, so both of the last two are read the same way. Only the first ECU to answer is
+ * read: a second byte count line, or a line whose number is not the next one, ends the answer.
+ * <p>
+ * The decoder is not thread safe. It is driven by whatever thread handles the adapter's responses.
+ *
+ * @version 1
+ *
+ * @see ObdSession
+ * @see VehicleInfoCache
+ */
+public class VehicleInfoDecoder {
+
+    /**
+     * The info types read.
+     */
+    public static final int VEHICLE_ID = 0x02;
+    public static final int CALIBRATION_ID = 0x04;
+    public static final int CALIBRATION_CVN = 0x06;
+
+    /**
+     * The largest number of data bytes kept for one answer.
+     */
+    public static final int MAX_BYTES = 256;
+
+    /**
+     * The length of one calibration id and of one calibration verification number in bytes.
+     */
+    private static final int CALIBRATION_ID_LENGTH = 16;
+    private static final int CALIBRATION_CVN_LENGTH = 4;
+
+    /**
+     * Callback for a decoded answer.
+     */
+    public interface Listener {
+	/**
+	 * Called with the decoded answer.
+	 *
+	 * @param infoType The info type the answer is for, one of the type constants.
+	 * @param value The serial number or calibration ids as text, or the verification numbers in hex. Several ids or
+	 * numbers are separated by spaces.
+	 */
+	void onVehicleInfo(int infoType, String value);
+    }
+    //End Listener
+
+    //The outstanding request and the first four characters of its answers, or -1 if there is none
+    private int mType = -1;
+    private final char mPrefix[] = new char[4];
+
+    //The data bytes read so far
+    private final byte mData[] = new byte[MAX_BYTES];
+    private int mCount;
+
+    //The state of the answer
+    private boolean mDone;
+    private int mHeaderLeft;
+    private int mBytesLeft;
+    private int mNextFrame;
+    private int mNextLine;
+
+    /**
+     * Marks a vehicle information request as outstanding.
+     *
+     * @param infoType The info type asked for, one of the type constants.
+     */
+    public void begin(int infoType){
+	mType = infoType;
+	mPrefix[0] = '4';
+	mPrefix[1] = '9';
+	mPrefix[2] = Character.forDigit(infoType >> 4, 16);
+	mPrefix[3] = Character.toUpperCase(Character.forDigit(infoType & 0xF, 16));
+	mCount = 0;
+	mDone = false;
+	mHeaderLeft = 0;
+	mBytesLeft = -1;
+	mNextFrame = -1;
+	mNextLine = 1;
+    }
+    //End begin
+
+    /**
+     * Offers a response line to the decoder.
+     *
+     * @param line The trimmed response line. Only read during the call, so a reused line buffer can be passed.
+     * @return true if the line was part of the answer to the outstanding request.
+     */
+    public boolean onLine(CharSequence line){
+	if(mType < 0){
+	    return false;
+	}
+	//End if
+
+	int length = line.length();
+	if(length == 3 && PidBatcher.isHex(line, 0, 3)){
+	    //Byte count line starting a multi-frame answer. A second one is another ECU.
+	    if(mNextFrame >= 0 || mCount > 0){
+		mDone = true;
+	    }
+	    //End if
+	    mBytesLeft = (PidBatcher.hexValue(line.charAt(0)) << 8) | (PidBatcher.hexValue(line.charAt(1)) << 4)
+		    | PidBatcher.hexValue(line.charAt(2));
+	    mHeaderLeft = 3;
+	    mNextFrame = 0;
+	    return true;
+	}
+	else if(length > 2 && line.charAt(1) == ':' && PidBatcher.isHex(line, 0, 1)){
+	    //Consecutive frame. Numbers wrap after F.
+	    if(mNextFrame < 0 || PidBatcher.hexValue(line.charAt(0)) != (mNextFrame & 0xF)){
+		mDone = true;
+	    }
+	    //End if
+	    mNextFrame++;
+	    feed(line, 2);
+	    return true;
+	}
+	else if(startsWithPrefix(line)){
+	    //A numbered line, or a single frame that counts as line 1
+	    int number = lineNumber(line);
+	    if(number != mNextLine || mNextFrame >= 0){
+		mDone = true;
+	    }
+	    //End if
+	    mNextLine++;
+	    mBytesLeft = -1;
+	    mHeaderLeft = 3;
+	    feed(line, 0);
+	    return true;
+	}
+	//End if/else
+	return false;
+    }
+    //End onLine
+
+    /**
+     * Finishes the outstanding request when the adapter sends its prompt and passes the answer to the listener.
+     *
+     * @param listener The listener receiving the answer.
+     * @return true if the request was answered, false if it was not or no request was outstanding.
+     */
+    public boolean onPrompt(Listener listener){
+	int type = mType;
+	mType = -1;
+	if(type < 0 || mCount == 0){
+	    return false;
+	}
+	//End if
+
+	String value = type == CALIBRATION_CVN ? formatHex(CALIBRATION_CVN_LENGTH) : formatText(type == CALIBRATION_ID ? CALIBRATION_ID_LENGTH : mCount);
+	if(value.length() == 0){
+	    return false;
+	}
+	//End if
+	listener.onVehicleInfo(type, value);
+	return true;
+    }
+    //End onPrompt
+
+    private boolean startsWithPrefix(CharSequence line){
+	int matched = 0;
+	for(int i = 0; i < line.length() && matched < mPrefix.length; i++){
+	    char c = line.charAt(i);
+	    if(c == ' '){
+		continue;
+	    }
+	    //End if
+	    if(Character.toUpperCase(c) != mPrefix[matched]){
+		return false;
+	    }
+	    //End if
+	    matched++;
+	}
+	//End for
+	return matched == mPrefix.length;
+    }
+    //End startsWithPrefix
+
+    /**
+     * Returns the third byte of a line, or -1 if it has none.
+     */
+    private static int lineNumber(CharSequence line){
+	int digits = 0;
+	int value = 0;
+	for(int i = 0; i < line.length(); i++){
+	    int digit = PidBatcher.hexValue(line.charAt(i));
+	    if(digit < 0){
+		continue;
+	    }
+	    //End if
+	    digits++;
+	    if(digits == 5){
+		value = digit << 4;
+	    }
+	    else if(digits == 6){
+		return value | digit;
+	    }
+	    //End if/else
+	}
+	//End for
+	return -1;
+    }
+    //End lineNumber
+
+    /**
+     * Parses the hex digit pairs of a line from start on, skipping spaces and the header bytes, and keeps the data.
+     */
+    private void feed(CharSequence line, int start){
+	int high = -1;
+	for(int i = start; i < line.length() && !mDone; i++){
+	    int digit = PidBatcher.hexValue(line.charAt(i));
+	    if(digit < 0){
+		continue;
+	    }
+	    //End if
+	    if(high < 0){
+		high = digit;
+		continue;
+	    }
+	    //End if
+
+	    int value = (high << 4) | digit;
+	    high = -1;
+
+	    //Multi-frame answers end at their byte count, the rest of the last frame is padding
+	    if(mBytesLeft == 0){
+		mDone = true;
+		break;
+	    }
+	    else if(mBytesLeft > 0){
+		mBytesLeft--;
+	    }
+	    //End if/else
+
+	    if(mHeaderLeft > 0){
+		mHeaderLeft--;
+		if((mHeaderLeft == 2 && value != 0x49) || (mHeaderLeft == 1 && value != mType)){
+		    mDone = true;
+		}
+		//End if
+	    }
+	    else if(mCount < MAX_BYTES){
+		mData[mCount++] = (byte) value;
+	    }
+	    //End if/else
+	}
+	//End for
+    }
+    //End feed
+
+    /**
+     * Returns the printable characters of the data, with the items of the given length separated by spaces. The zero
+     * padding the items are filled up with is left out.
+     */
+    private String formatText(int itemLength){
+	StringBuilder text = new StringBuilder(mCount);
+	for(int i = 0; i < mCount; i++){
+	    if(i > 0 && i % itemLength == 0 && text.length() > 0 && text.charAt(text.length() - 1) != ' '){
+		text.append(' ');
+	    }
+	    //End if
+	    int c = mData[i] & 0xFF;
+	    if(c > ' ' && c < 0x7F){
+		text.append((char) c);
+	    }
+	    //End if
+	}
+	//End for
+	return text.toString().trim();
+    }
+    //End formatText
+
+    /**
+     * Returns the data in hex, with the items of the given length separated by spaces.
+     */
+    private String formatHex(int itemLength){
+	StringBuilder text = new StringBuilder(mCount * 3);
+	for(int i = 0; i < mCount; i++){
+	    if(i > 0 && i % itemLength == 0){
+		text.append(' ');
+	    }
+	    //End if
+	    int value = mData[i] & 0xFF;
+	    text.append(Character.toUpperCase(Character.forDigit(value >> 4, 16)));
+	    text.append(Character.toUpperCase(Character.forDigit(value & 0xF, 16)));
+	}
+	//End for
+	return text.toString();
+    }
+    //End formatHex
+}
+//End VehicleInfoDecoder
\ No newline at end of file